@@ -7,11 +7,13 @@ package org.elasticsearch.plugin.degraphmalizer;
 import org.elasticsearch.cluster.ClusterChangedEvent;
 import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.plugin.degraphmalizer.updater.UpdaterManager;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -33,25 +35,32 @@ public class DegraphmalizerClusterListener implements ClusterStateListener {
     public void clusterChanged(ClusterChangedEvent clusterChangedEvent) {
         if (clusterChangedEvent.nodesChanged()) {
             DiscoveryNodes.Delta nodesChanged = clusterChangedEvent.nodesDelta();
-            if (nodesChanged.added()) {
-                if (findNode(nodesChanged.addedNodes(), DEGRAPHMALIZER_NODENAME) != null) {
-                    updaterManager.startSending();
-                }
+            if (!findNodes(nodesChanged.addedNodes()).isEmpty() || !findNodes(nodesChanged.removedNodes()).isEmpty()) {
+                updaterManager.degraphmalizerNodesChanged(findNodes(clusterChangedEvent.state().nodes()));
             }
-            if (nodesChanged.removed()) {
-                if (findNode(nodesChanged.removedNodes(), DEGRAPHMALIZER_NODENAME) != null) {
-                    updaterManager.stopSending();
+        }
+        if (clusterChangedEvent.metaDataChanged()) {
+            for (IndexMetaData indexMetaData : clusterChangedEvent.state().metaData()) {
+                if (clusterChangedEvent.indexMetaDataChanged(indexMetaData)) {
+                    final IndexMetaData previous = clusterChangedEvent.previousState().metaData().index(indexMetaData.index());
+                    if (previous == null || !previous.aliases().keySet().equals(indexMetaData.aliases().keySet())) {
+                        updaterManager.aliasesChanged(indexMetaData.index(), indexMetaData.aliases().keySet());
+                    }
                 }
             }
         }
     }
 
-    private static DiscoveryNode findNode(List<DiscoveryNode> nodes, String nodeName) {
+    /**
+     * @return the Degraphmalizer nodes, named Degraphmalizer or Degraphmalizer-something
+     */
+    private static List<DiscoveryNode> findNodes(Iterable<DiscoveryNode> nodes) {
+        final List<DiscoveryNode> found = new ArrayList<DiscoveryNode>();
         for (DiscoveryNode node : nodes) {
-            if (nodeName.equals(node.name())) {
-                return node;
+            if (node.name() != null && (node.name().equals(DEGRAPHMALIZER_NODENAME) || node.name().startsWith(DEGRAPHMALIZER_NODENAME + "-"))) {
+                found.add(node);
             }
         }
-        return null;
+        return found;
     }
 }
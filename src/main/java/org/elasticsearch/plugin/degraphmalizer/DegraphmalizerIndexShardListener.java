@@ -4,7 +4,7 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.index.engine.Engine;
 import org.elasticsearch.index.indexing.IndexingOperationListener;
-import org.elasticsearch.plugin.degraphmalizer.updater.Change;
+import org.elasticsearch.plugin.degraphmalizer.updater.Action;
 import org.elasticsearch.plugin.degraphmalizer.updater.UpdaterManager;
 
 import static org.elasticsearch.index.engine.Engine.Operation.Origin.PRIMARY;
@@ -18,10 +18,12 @@ public class DegraphmalizerIndexShardListener extends IndexingOperationListener
 
     private final UpdaterManager graphUpdaterManager;
     private final String index;
+    private final int shard;
 
-    public DegraphmalizerIndexShardListener(final UpdaterManager graphUpdaterManager, final String index) {
+    public DegraphmalizerIndexShardListener(final UpdaterManager graphUpdaterManager, final String index, final int shard) {
         this.graphUpdaterManager = graphUpdaterManager;
         this.index = index;
+        this.shard = shard;
     }
 
     @Override
@@ -30,9 +32,11 @@ public class DegraphmalizerIndexShardListener extends IndexingOperationListener
         final String id = createOperation.id();
         final long version = createOperation.version();
 
-        LOG.trace("Origin {} of create to id {} ", createOperation.origin(), id);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Origin {} of create to id {} ", createOperation.origin(), id);
+        }
         if (isFromPrimary(createOperation)) {
-            graphUpdaterManager.add(index, Change.update(type, id, version));
+            graphUpdaterManager.add(index, shard, Action.UPDATE, type, id, version);
         }
     }
 
@@ -42,9 +46,11 @@ public class DegraphmalizerIndexShardListener extends IndexingOperationListener
         final String id = indexOperation.id();
         final long version = indexOperation.version();
 
-        LOG.trace("Origin {} of index to id {} ", indexOperation.origin(), id);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Origin {} of index to id {} ", indexOperation.origin(), id);
+        }
         if (isFromPrimary(indexOperation)) {
-            graphUpdaterManager.add(index, Change.update(type, id, version));
+            graphUpdaterManager.add(index, shard, Action.UPDATE, type, id, version);
         }
     }
 
@@ -54,9 +60,11 @@ public class DegraphmalizerIndexShardListener extends IndexingOperationListener
         final String id = deleteOperation.id();
         final long version = deleteOperation.version();
 
-        LOG.trace("Origin {} of index to id {} ", deleteOperation.origin(), id);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Origin {} of index to id {} ", deleteOperation.origin(), id);
+        }
         if (isFromPrimary(deleteOperation)) {
-            graphUpdaterManager.add(index, Change.delete(type, id, version));
+            graphUpdaterManager.add(index, shard, Action.DELETE, type, id, version);
         }
     }
 
@@ -64,10 +64,11 @@ public class DegraphmalizerLifecycleListener extends IndicesLifecycle.Listener
     private void addIndexShardListener(final IndexShard indexShard) {
         final String indexName = getIndexName(indexShard);
 
-        final DegraphmalizerIndexShardListener shardListener = new DegraphmalizerIndexShardListener(updaterManager, indexName);
         final ShardId shardId = indexShard.shardId();
+        final DegraphmalizerIndexShardListener shardListener = new DegraphmalizerIndexShardListener(updaterManager, indexName, shardId.id());
         listeners.put(shardId, shardListener);
         indexShard.indexingService().addListener(shardListener);
+        updaterManager.shardStarted(indexName, indexShard);
 
         LOG.info("Index shard listener added for shard {}", shardId);
     }
@@ -76,6 +77,8 @@ public class DegraphmalizerLifecycleListener extends IndicesLifecycle.Listener
         final DegraphmalizerIndexShardListener shardListener = listeners.get(shardId);
         indexShard.indexingService().removeListener(shardListener);
         listeners.remove(shardId);
+        // hands the changes of the shard that are still on their way off to the queue of the index
+        updaterManager.shardClosed(shardId.index().name(), shardId.id());
 
         LOG.info("Index shard listener removed for shard {}", shardId);
     }
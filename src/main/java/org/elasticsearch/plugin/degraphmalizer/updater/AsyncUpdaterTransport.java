@@ -0,0 +1,178 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * Executes the requests on non-blocking connections, so no thread waits for a slow Degraphmalizer. The requests of a
+ * single call go out together on pooled connections, and the call completes when all of them are answered. At most
+ * 'window' calls are outstanding, the calls beyond that wait in line until an earlier call completes.
+ * <p/>
+ * The callbacks run on the I/O threads of the client.
+ */
+public final class AsyncUpdaterTransport implements UpdaterTransport {
+    private static final ESLogger LOG = Loggers.getLogger(AsyncUpdaterTransport.class);
+
+    private final HttpClientPool pool;
+    private final CloseableHttpAsyncClient httpClient;
+    // Whether the pool is closed with the transport
+    private final boolean ownsPool;
+
+    private final int window;
+    private final Semaphore outstanding;
+    private final Queue<Call> waiting = new ConcurrentLinkedQueue<Call>();
+
+    /**
+     * @param maxConnections the number of connections the calls are spread over
+     * @param window the maximum number of outstanding calls
+     */
+    public AsyncUpdaterTransport(final int maxConnections, final int window) {
+        this(HttpClientPool.create(maxConnections), true, window);
+    }
+
+    /**
+     * @param pool the pool shared with other transports, it stays open when the transport is closed
+     * @param window the maximum number of outstanding calls
+     */
+    public AsyncUpdaterTransport(final HttpClientPool pool, final int window) {
+        this(pool, false, window);
+    }
+
+    private AsyncUpdaterTransport(final HttpClientPool pool, final boolean ownsPool, final int window) {
+        this.window = window;
+        this.outstanding = new Semaphore(window);
+        this.pool = pool;
+        this.httpClient = pool.asyncClient();
+        this.ownsPool = ownsPool;
+    }
+
+    @Override
+    public void execute(final HttpHost target, final List<HttpRequest> requests, final Callback callback) {
+        waiting.add(new Call(target, requests, callback));
+        startWaiting();
+    }
+
+    public int getOutstanding() {
+        return window - outstanding.availablePermits();
+    }
+
+    private void startWaiting() {
+        while (!waiting.isEmpty() && outstanding.tryAcquire()) {
+            final Call call = waiting.poll();
+            if (call == null) {
+                outstanding.release();
+                return;
+            }
+            call.start();
+        }
+    }
+
+    /**
+     * Calls that did not start yet fail. With a shared pool the outstanding calls complete as usual.
+     */
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.close();
+        }
+        Call call;
+        while ((call = waiting.poll()) != null) {
+            call.callback.completed(Collections.<HttpResponse>nCopies(call.requests.size(), null));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "asynchronous http, " + window + " outstanding";
+    }
+
+    private final class Call {
+        private final HttpHost target;
+        private final List<HttpRequest> requests;
+        private final Callback callback;
+        private final HttpResponse[] responses;
+        private final AtomicInteger remaining;
+
+        private Call(final HttpHost target, final List<HttpRequest> requests, final Callback callback) {
+            this.target = target;
+            this.requests = requests;
+            this.callback = callback;
+            this.responses = new HttpResponse[requests.size()];
+            this.remaining = new AtomicInteger(requests.size());
+        }
+
+        private void start() {
+            pool.executed(requests.size());
+            if (requests.isEmpty()) {
+                done();
+                return;
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                final Response response = new Response(i);
+                try {
+                    httpClient.execute(target, requests.get(i), response);
+                } catch (RuntimeException e) {
+                    // the client is shut down
+                    response.failed(e);
+                }
+            }
+        }
+
+        private void answered(final int index, final HttpResponse response) {
+            responses[index] = response;
+            if (remaining.decrementAndGet() == 0) {
+                done();
+            }
+        }
+
+        private void done() {
+            outstanding.release();
+            try {
+                callback.completed(Arrays.asList(responses));
+            } finally {
+                startWaiting();
+            }
+        }
+
+        /**
+         * Puts the response to one of the requests of the call in its place, or null if there is none.
+         */
+        private final class Response implements FutureCallback<HttpResponse> {
+            private final int index;
+
+            private Response(final int index) {
+                this.index = index;
+            }
+
+            @Override
+            public void completed(final HttpResponse response) {
+                answered(index, response);
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                LOG.warn("Error executing {} on {}: {}", requests.get(index).getRequestLine(), target, e.getMessage());
+                answered(index, null);
+            }
+
+            @Override
+            public void cancelled() {
+                LOG.warn("Execution of {} on {} was cancelled", requests.get(index).getRequestLine(), target);
+                answered(index, null);
+            }
+        }
+    }
+}
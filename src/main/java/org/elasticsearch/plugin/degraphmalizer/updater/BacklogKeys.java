@@ -0,0 +1,89 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts the documents of the changes that are behind, in the input queue or in the overflow files, by the hash of
+ * their key. A live change for a document that is not counted can go ahead of the backlog, since there is no older
+ * version of the document it could overtake. Documents that share a hash with a document in the backlog, and all
+ * documents while the backlog holds changes of an earlier run, wait behind the backlog.
+ * <p/>
+ * The queue adds a change and counts it, and clears the counts when the backlog is empty, while holding the lock of
+ * the keys, so a change that goes in while the backlog runs empty is not forgotten.
+ */
+final class BacklogKeys {
+    private final AtomicIntegerArray counts;
+    private final int mask;
+    // The backlog holds changes that were not counted
+    private volatile boolean unknown;
+    // Nothing was counted since the last clear
+    private volatile boolean cleared = true;
+
+    /**
+     * @param buckets the number of hashes that are told apart, a power of two
+     */
+    BacklogKeys(final int buckets) {
+        this.counts = new AtomicIntegerArray(buckets);
+        this.mask = buckets - 1;
+    }
+
+    void add(final Change change) {
+        cleared = false;
+        counts.incrementAndGet(bucket(change));
+    }
+
+    /**
+     * Uncounts a document. The changes of an earlier run were not counted, so a count does not go below 0.
+     */
+    void remove(final Change change) {
+        final int bucket = bucket(change);
+        while (true) {
+            final int count = counts.get(bucket);
+            if (count <= 0 || counts.compareAndSet(bucket, count, count - 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if nothing was counted since the backlog was last found empty
+     */
+    boolean isEmpty() {
+        return cleared;
+    }
+
+    /**
+     * @return true if the backlog may hold a change for the document
+     */
+    boolean mayContain(final Change change) {
+        return unknown || counts.get(bucket(change)) > 0;
+    }
+
+    /**
+     * Marks the backlog as holding changes that were not counted, until it is empty.
+     */
+    void markUnknown() {
+        cleared = false;
+        unknown = true;
+    }
+
+    /**
+     * Forgets all documents, when the backlog is empty.
+     */
+    void clear() {
+        if (cleared) {
+            return;
+        }
+        cleared = true;
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        unknown = false;
+    }
+
+    private int bucket(final Change change) {
+        int hash = new UpdaterQueue.ChangeKey(change).hashCode();
+        hash ^= hash >>> 16;
+        return hash & mask;
+    }
+}
@@ -56,7 +56,7 @@ public class Change implements StringSerialization<Change> {
 
     @Override
 	public Change fromValue(String value) {
-        String[] values = value.split(",", 5);
+        String[] values = value.split(",", 4);
         Action action = Action.valueOf(values[0]);
         String type = values[1];
         Long version = Long.valueOf(values[2]);
@@ -64,6 +64,17 @@ public class Change implements StringSerialization<Change> {
         return new Change(action, type, id, version);
     }
 
+    /**
+     * @return a change, or a retry change if it is for a single index or alias, or has been retried.
+     */
+    static Change create(final Action action, final String type, final String id, final long version, final String indexNameOrAlias, final int retries) {
+        final Change change = new Change(action, type, id, version);
+        if (indexNameOrAlias == null && retries == 0) {
+            return change;
+        }
+        return new RetryChange(change, indexNameOrAlias, retries);
+    }
+
     public static Change update(final String type, final String id, final long version) {
         return new Change(Action.UPDATE, type, id, version);
     }
@@ -0,0 +1,139 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * Stops the calls for an index to a Degraphmalizer when too many of them fail. The breaker is closed as long as the
+ * failure rate over the last calls stays below the threshold of the policy. When it opens no calls are made, until
+ * after a while a single probe call is let through. If the probe succeeds the breaker closes again, otherwise it
+ * stays open for another while.
+ * <p/>
+ * The changes that can not be sent while the breaker is open wait in the queue, they are not retried.
+ */
+final class CircuitBreaker {
+    private static final ESLogger LOG = Loggers.getLogger(CircuitBreaker.class);
+    // How soon the changes held back during a probe are looked at again
+    private static final long PROBE_WAIT_MILLIS = 500;
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final CircuitBreakerPolicy policy;
+
+    // Guarded by this
+    private final boolean[] failed;
+    private int next;
+    private int calls;
+    private int failures;
+    private State state = State.CLOSED;
+    private long openUntilMillis;
+
+    /**
+     * @param name the index and the Degraphmalizer, for logging
+     */
+    CircuitBreaker(final String name, final CircuitBreakerPolicy policy) {
+        this.name = name;
+        this.policy = policy;
+        this.failed = new boolean[policy.getWindowSize()];
+    }
+
+    /**
+     * Lets the first call after the open time through as the probe.
+     *
+     * @return true if a call may be made
+     */
+    synchronized boolean allowCall(final long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now < openUntilMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                LOG.info("Circuit breaker for {} is half open, sending a probe", name);
+                return true;
+            default:
+                // the probe is on its way
+                return false;
+        }
+    }
+
+    /**
+     * @return the time until a call may be made, 0 if it may be made now
+     */
+    synchronized long millisUntilCall(final long now) {
+        switch (state) {
+            case CLOSED:
+                return 0;
+            case OPEN:
+                return Math.max(openUntilMillis - now, 0);
+            default:
+                return Math.min(PROBE_WAIT_MILLIS, Math.max(policy.getOpenInMillis(), 1));
+        }
+    }
+
+    /**
+     * Records the outcome of a call. The outcomes of calls that were made before the breaker opened do not count.
+     *
+     * @return true if the breaker opened
+     */
+    synchronized boolean record(final boolean failure, final long now) {
+        switch (state) {
+            case HALF_OPEN:
+                if (failure) {
+                    open(now);
+                    return true;
+                }
+                close();
+                return false;
+            case OPEN:
+                return false;
+            default:
+                if (calls == failed.length && failed[next]) {
+                    failures--;
+                }
+                failed[next] = failure;
+                next = (next + 1) % failed.length;
+                calls = Math.min(calls + 1, failed.length);
+                if (failure) {
+                    failures++;
+                    if (policy.isTripped(failures, calls)) {
+                        LOG.warn("Circuit breaker for {} opens for {} milliseconds, {} of the last {} calls failed", name, policy.getOpenInMillis(), failures, calls);
+                        open(now);
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    private void open(final long now) {
+        state = State.OPEN;
+        openUntilMillis = now + policy.getOpenInMillis();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        calls = 0;
+        failures = 0;
+        next = 0;
+        LOG.info("Circuit breaker for {} is closed again", name);
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + state().name().toLowerCase();
+    }
+}
@@ -0,0 +1,67 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+/**
+ * When the circuit breaker of an index and a Degraphmalizer opens, and how long it stays open. A call fails if the
+ * Degraphmalizer did not respond, responded with a server error, or took longer than the slow call time.
+ */
+public final class CircuitBreakerPolicy {
+    private final double failureRateThreshold;
+    private final int windowSize;
+    private final int minCalls;
+    private final long openInMillis;
+    private final long slowCallInMillis;
+
+    /**
+     * @param failureRateThreshold the fraction of failed calls, between 0 and 1, that opens the breaker, 0 to never open it
+     * @param windowSize the number of last calls the failure rate is computed over
+     * @param minCalls the number of calls in the window before the breaker may open
+     * @param openInMillis the time the breaker stays open before a probe call is let through
+     * @param slowCallInMillis the time after which a call counts as failed, 0 to only count errors
+     */
+    public CircuitBreakerPolicy(final double failureRateThreshold, final int windowSize, final int minCalls, final long openInMillis, final long slowCallInMillis) {
+        this.failureRateThreshold = Math.min(Math.max(failureRateThreshold, 0), 1);
+        this.windowSize = Math.max(windowSize, 1);
+        this.minCalls = Math.min(Math.max(minCalls, 1), this.windowSize);
+        this.openInMillis = openInMillis;
+        this.slowCallInMillis = slowCallInMillis;
+    }
+
+    public static CircuitBreakerPolicy disabled() {
+        return new CircuitBreakerPolicy(0, 1, 1, 0, 0);
+    }
+
+    boolean isEnabled() {
+        return failureRateThreshold > 0;
+    }
+
+    /**
+     * @param healthy false if the Degraphmalizer did not respond or responded with a server error
+     */
+    boolean isFailure(final boolean healthy, final long latencyInMillis) {
+        return !healthy || (slowCallInMillis > 0 && latencyInMillis > slowCallInMillis);
+    }
+
+    /**
+     * @return true if the given number of failures in the given number of calls opens the breaker
+     */
+    boolean isTripped(final int failures, final int calls) {
+        return isEnabled() && calls >= minCalls && failures >= failureRateThreshold * calls;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    long getOpenInMillis() {
+        return openInMillis;
+    }
+
+    @Override
+    public String toString() {
+        if (!isEnabled()) {
+            return "no circuit breaker";
+        }
+        return "a circuit breaker that opens for " + openInMillis + " milliseconds when " + Math.round(failureRateThreshold * 100)
+                + "% of the last " + windowSize + " calls failed";
+    }
+}
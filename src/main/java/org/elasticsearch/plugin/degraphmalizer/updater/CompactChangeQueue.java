@@ -0,0 +1,160 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * First in, first out queue of delayed changes that keeps them in primitive arrays instead of objects. The type and
+ * index or alias are numbers in a dictionary of names, the id is kept as UTF-8 bytes. The objects are only created
+ * again when changes leave the queue.
+ * <p/>
+ * A queued change takes about 70 bytes plus the length of its id, less than half of what the objects take.
+ */
+final class CompactChangeQueue {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Action[] ACTIONS = Action.values();
+
+    // Type and index or alias names, never shrinks as there are only a few of them
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+    private final List<String> dictionary = new ArrayList<String>();
+
+    // Ring buffer, all guarded by this
+    private byte[] actions;
+    private int[] types;
+    private int[] targets;
+    private byte[][] ids;
+    private long[] versions;
+    private long[] delays;
+    private long[] bases;
+    private long[] sequences;
+    private int[] retries;
+    private int head;
+    private int size;
+
+    CompactChangeQueue() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    synchronized void add(final DelayedImpl<Change> delayed) {
+        if (size == actions.length) {
+            allocate(actions.length * 2);
+        }
+        final Change change = delayed.thing();
+        final int slot = (head + size) % actions.length;
+        actions[slot] = (byte) change.action().ordinal();
+        types[slot] = intern(change.type());
+        targets[slot] = change.getIndexNameOrAlias() == null ? -1 : intern(change.getIndexNameOrAlias());
+        ids[slot] = change.id().getBytes(UTF8);
+        versions[slot] = change.version();
+        delays[slot] = delayed.delayInMillis();
+        bases[slot] = delayed.baseMillis();
+        sequences[slot] = delayed.sequence();
+        retries[slot] = change.retries();
+        size++;
+    }
+
+    /**
+     * @return the oldest change, or null if the queue is empty
+     */
+    synchronized DelayedImpl<Change> poll() {
+        if (size == 0) {
+            return null;
+        }
+        final int slot = head;
+        final int target = targets[slot];
+        final Change change = Change.create(ACTIONS[actions[slot]], dictionary.get(types[slot]), new String(ids[slot], UTF8), versions[slot], target < 0 ? null : dictionary.get(target), retries[slot]);
+        final DelayedImpl<Change> delayed = new DelayedImpl<Change>(change, delays[slot], bases[slot]);
+        delayed.sequence(sequences[slot]);
+
+        ids[slot] = null;
+        head = (head + 1) % actions.length;
+        size--;
+        if (size == 0 && actions.length > INITIAL_CAPACITY) {
+            allocate(INITIAL_CAPACITY);
+        }
+        return delayed;
+    }
+
+    /**
+     * Moves at most max changes, oldest first, to the collection.
+     *
+     * @return the number of changes moved
+     */
+    synchronized int drainTo(final Collection<DelayedImpl<Change>> changes, final int max) {
+        int drained = 0;
+        while (drained < max && size > 0) {
+            changes.add(poll());
+            drained++;
+        }
+        return drained;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized void clear() {
+        size = 0;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private int intern(final String name) {
+        Integer number = names.get(name);
+        if (number == null) {
+            number = dictionary.size();
+            dictionary.add(name);
+            names.put(name, number);
+        }
+        return number;
+    }
+
+    /**
+     * Replaces the arrays by arrays of the given capacity, keeping the changes if they fit.
+     */
+    private void allocate(final int capacity) {
+        final byte[] actions = new byte[capacity];
+        final int[] types = new int[capacity];
+        final int[] targets = new int[capacity];
+        final byte[][] ids = new byte[capacity][];
+        final long[] versions = new long[capacity];
+        final long[] delays = new long[capacity];
+        final long[] bases = new long[capacity];
+        final long[] sequences = new long[capacity];
+        final int[] retries = new int[capacity];
+
+        final int kept = size <= capacity ? size : 0;
+        for (int i = 0; i < kept; i++) {
+            final int slot = (head + i) % this.actions.length;
+            actions[i] = this.actions[slot];
+            types[i] = this.types[slot];
+            targets[i] = this.targets[slot];
+            ids[i] = this.ids[slot];
+            versions[i] = this.versions[slot];
+            delays[i] = this.delays[slot];
+            bases[i] = this.bases[slot];
+            sequences[i] = this.sequences[slot];
+            retries[i] = this.retries[slot];
+        }
+
+        this.actions = actions;
+        this.types = types;
+        this.targets = targets;
+        this.ids = ids;
+        this.versions = versions;
+        this.delays = delays;
+        this.bases = bases;
+        this.sequences = sequences;
+        this.retries = retries;
+        this.head = 0;
+        this.size = kept;
+    }
+}
@@ -0,0 +1,107 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of calls of an updater in flight, and adapts the limit to the latency of the Degraphmalizer
+ * (additive increase, multiplicative decrease). The limit grows by one per limit calls that complete in time, and is
+ * halved when a call fails or takes longer than the tolerance times the lowest latency seen recently. It is halved at
+ * most once per round trip, so a burst of slow calls counts once.
+ * <p/>
+ * With a tolerance of 0 the limit stays at its maximum.
+ */
+final class ConcurrencyLimit {
+    // Number of calls after which the lowest latency is measured anew, so it follows a Degraphmalizer that slows down
+    private static final int LATENCY_WINDOW = 100;
+    // Latencies below this are not told apart
+    private static final long MIN_LATENCY_MICROS = 1000;
+
+    private final int max;
+    private final double tolerance;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int current;
+
+    // Guarded by this
+    private double limit;
+    private long minLatencyMicros = Long.MAX_VALUE;
+    private long nextMinLatencyMicros = Long.MAX_VALUE;
+    private int samples;
+    private boolean decreased;
+    private long lastDecreaseNanos;
+
+    /**
+     * @param max the maximum number of calls in flight
+     * @param tolerance how many times the lowest latency a call may take before the limit is lowered, 0 to not adapt
+     */
+    ConcurrencyLimit(final int max, final double tolerance) {
+        this.max = Math.max(max, 1);
+        this.tolerance = tolerance;
+        this.limit = this.max;
+        this.current = this.max;
+    }
+
+    /**
+     * @return true if a call may be made, it must be released when it completes
+     */
+    boolean tryAcquire() {
+        while (true) {
+            final int calls = inFlight.get();
+            if (calls >= current) {
+                return false;
+            }
+            if (inFlight.compareAndSet(calls, calls + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Adapts the limit to the outcome of a call.
+     */
+    void record(final boolean failure, final long latencyMicros) {
+        if (tolerance <= 0) {
+            return;
+        }
+        synchronized (this) {
+            nextMinLatencyMicros = Math.min(nextMinLatencyMicros, latencyMicros);
+            if (++samples >= LATENCY_WINDOW) {
+                minLatencyMicros = nextMinLatencyMicros;
+                nextMinLatencyMicros = Long.MAX_VALUE;
+                samples = 0;
+            }
+            minLatencyMicros = Math.min(minLatencyMicros, latencyMicros);
+
+            final boolean congested = failure || latencyMicros > tolerance * Math.max(minLatencyMicros, MIN_LATENCY_MICROS);
+            if (congested) {
+                final long now = System.nanoTime();
+                if (!decreased || now - lastDecreaseNanos > latencyMicros * 1000) {
+                    limit = Math.max(1, limit / 2);
+                    decreased = true;
+                    lastDecreaseNanos = now;
+                }
+            } else {
+                limit = Math.min(max, limit + 1 / limit);
+            }
+            current = (int) limit;
+        }
+    }
+
+    /**
+     * @return how many times the lowest latency a call may take before the limit is lowered, 0 if it does not adapt
+     */
+    double tolerance() {
+        return tolerance;
+    }
+
+    int limit() {
+        return current;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,270 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Error log of an index, with the changes that were given up on, one per line in the format of
+ * {@link Change#toValue()}.
+ * <p/>
+ * The updater only puts a change in line. A flush on the worker pool writes all changes that came in during the flush
+ * interval at once and forces them to disk, so a burst of failures during an outage costs a write per interval rather
+ * than opening the file for every change. The file stays open, and when it reaches the maximum size it is renamed to
+ * {@code <index>-error.log.<time>} and a new one is started.
+ * <p/>
+ * The changes can be replayed once the cause of the failures has been fixed. The log is rotated first, so the changes
+ * that fail again end up in a new file, and every file is deleted once its changes are replayed.
+ */
+final class DeadLetterLog {
+    private static final ESLogger LOG = Loggers.getLogger(DeadLetterLog.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final File[] NO_FILES = {};
+
+    /**
+     * Receives the changes that are replayed.
+     */
+    interface Consumer {
+        void accept(Change change);
+    }
+
+    private final File file;
+    private final long maxBytes;
+    private final long flushIntervalInMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Pattern rotatedPattern;
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Only one replay at a time, it does not hold up the flushes
+    private final Object replaying = new Object();
+
+    // Guarded by this
+    private FileOutputStream output;
+    private long size;
+
+    /**
+     * @param file the error log, it is created when the first change is written
+     * @param maxBytes the size at which the log is rotated, 0 to never rotate it
+     * @param flushIntervalInMillis the time changes wait, so they are written together
+     * @param scheduler runs the flushes
+     */
+    DeadLetterLog(final File file, final long maxBytes, final long flushIntervalInMillis, final ScheduledExecutorService scheduler) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.flushIntervalInMillis = flushIntervalInMillis;
+        this.scheduler = scheduler;
+        this.rotatedPattern = Pattern.compile(Pattern.quote(file.getName()) + "\\.\\d+");
+    }
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * Puts the change in line to be written, it is written by the next flush.
+     */
+    void append(final Change change) {
+        pending.add(change.toValue());
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(flush, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the updater is stopping, the change is written on close
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the changes in line with a single write, and forces them to disk.
+     */
+    synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int count = 0;
+        String line;
+        while ((line = pending.poll()) != null) {
+            final byte[] record = (line + "\n").getBytes(UTF8);
+            bytes.write(record, 0, record.length);
+            count++;
+        }
+        try {
+            if (output == null) {
+                output = new FileOutputStream(file, true);
+                size = file.length();
+            }
+            final FileChannel channel = output.getChannel();
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            size += bytes.size();
+            if (maxBytes > 0 && size >= maxBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            LOG.error("Error writing {} changes to error log {}, they are lost: {}", count, file, e.getMessage());
+            closeOutput();
+        }
+    }
+
+    /**
+     * Reads the changes of the error log into the consumer, and deletes the files they were read from. Lines that can
+     * not be parsed are skipped.
+     *
+     * @return the number of changes replayed
+     */
+    int replay(final Consumer consumer) {
+        synchronized (replaying) {
+            synchronized (this) {
+                flush();
+                rotate();
+            }
+            int count = 0;
+            for (File rotated : rotatedFiles()) {
+                try {
+                    count += replay(rotated, consumer);
+                    if (!rotated.delete()) {
+                        LOG.error("Can not remove replayed error log {}", rotated);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Error replaying error log {}, leaving it for inspection: {}", rotated, e.getMessage());
+                }
+            }
+            LOG.info("Replayed {} changes from error log {}", count, file);
+            return count;
+        }
+    }
+
+    private int replay(final File rotated, final Consumer consumer) throws IOException {
+        final Change factory = Change.update("", "", 0);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(rotated), UTF8));
+        try {
+            int count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                final Change change;
+                try {
+                    change = factory.fromValue(line);
+                } catch (Exception e) {
+                    LOG.error("Unparsable line in error log {}: {}", rotated, line);
+                    continue;
+                }
+                consumer.accept(change);
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the error log and the rotated files that were not replayed yet
+     */
+    List<File> files() {
+        final List<File> files = new ArrayList<File>(rotatedFiles());
+        if (file.exists()) {
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Writes the changes in line and closes the file.
+     */
+    synchronized void close() {
+        flush();
+        closeOutput();
+    }
+
+    /**
+     * Renames the error log to a name with the current time, the next flush starts a new one.
+     */
+    private void rotate() {
+        closeOutput();
+        if (!file.exists() || file.length() == 0) {
+            return;
+        }
+        File rotated;
+        long millis = System.currentTimeMillis();
+        do {
+            rotated = new File(file.getParentFile(), file.getName() + "." + millis);
+            millis++;
+        } while (rotated.exists());
+        if (!file.renameTo(rotated)) {
+            LOG.error("Can not rotate error log {} to {}", file, rotated);
+        }
+    }
+
+    private void closeOutput() {
+        if (output == null) {
+            return;
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            LOG.error("Error closing error log {}: {}", file, e.getMessage());
+        }
+        output = null;
+    }
+
+    /**
+     * @return the rotated files, oldest first
+     */
+    private List<File> rotatedFiles() {
+        File[] files = file.getParentFile() == null ? null : file.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return rotatedPattern.matcher(name).matches();
+            }
+        });
+        if (files == null) {
+            files = NO_FILES;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Long.valueOf(rotatedMillis(file1)).compareTo(rotatedMillis(file2));
+            }
+        });
+        return Arrays.asList(files);
+    }
+
+    private long rotatedMillis(final File rotated) {
+        return Long.parseLong(rotated.getName().substring(file.getName().length() + 1));
+    }
+}
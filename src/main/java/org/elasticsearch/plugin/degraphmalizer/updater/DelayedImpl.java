@@ -11,9 +11,11 @@ import java.util.concurrent.TimeUnit;
  *            Note: this class has a natural ordering that is inconsistent with equals.
  */
 public class DelayedImpl<T extends StringSerialization<T>> implements Delayed, StringSerialization<DelayedImpl<T>> {
-    private final T thing;
+    private volatile T thing;
     private final long delayInMillis;
     private final long baseMillis;
+    // Sequence number of the thing in the SegmentLog, or -1 if it is not in a log
+    private volatile long sequence = -1;
 
     public DelayedImpl(final T thing, final long delayInMillis) {
         this(thing, delayInMillis, System.currentTimeMillis());
@@ -29,14 +31,57 @@ public class DelayedImpl<T extends StringSerialization<T>> implements Delayed, S
         return thing;
     }
 
+    long delayInMillis() {
+        return delayInMillis;
+    }
+
+    long baseMillis() {
+        return baseMillis;
+    }
+
+    /**
+     * @return the time in milliseconds at which the thing is due
+     */
+    long dueMillis() {
+        return baseMillis + delayInMillis;
+    }
+
+    /**
+     * @return a copy that is due the given delay from now, with the same base time, so the time it waited so far
+     * still counts
+     */
+    DelayedImpl<T> delayedFromNow(final long delayInMillis) {
+        return new DelayedImpl<T>(thing, System.currentTimeMillis() - baseMillis + delayInMillis, baseMillis);
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    void sequence(final long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Replaces the thing while keeping the position of this delayed in its queue.
+     */
+    void replace(final T thing) {
+        this.thing = thing;
+    }
+
     @Override
     public long getDelay(final TimeUnit timeUnit) {
         return timeUnit.convert(delayInMillis - (System.currentTimeMillis() - baseMillis), TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Compares the due times, which unlike the delays do not change, so no clock has to be read.
+     */
     @Override
     public int compareTo(final Delayed other) {
-        return Long.valueOf(getDelay(TimeUnit.MILLISECONDS)).compareTo(other.getDelay(TimeUnit.MILLISECONDS));
+        final long due = dueMillis();
+        final long otherDue = other instanceof DelayedImpl ? ((DelayedImpl) other).dueMillis() : System.currentTimeMillis() + other.getDelay(TimeUnit.MILLISECONDS);
+        return due < otherDue ? -1 : (due == otherDue ? 0 : 1);
     }
 
     @Override
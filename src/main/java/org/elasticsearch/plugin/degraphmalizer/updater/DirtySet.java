@@ -0,0 +1,81 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The documents that changed, with only the latest known version of each, in the order they first changed. Its size
+ * is bounded by the number of distinct documents, not by the number of changes.
+ * <p/>
+ * A change in the set is for the index and all its aliases, the retry state of a change is not kept.
+ */
+final class DirtySet {
+    // Guarded by this
+    private final Map<UpdaterQueue.ChangeKey, Change> changes = new LinkedHashMap<UpdaterQueue.ChangeKey, Change>();
+    // The size of changes, readable without locking
+    private volatile int size;
+
+    /**
+     * Keeps the change if it is newer than the one in the set for the same document.
+     *
+     * @return true if the document was in the set already
+     */
+    synchronized boolean add(final Change change) {
+        final UpdaterQueue.ChangeKey key = new UpdaterQueue.ChangeKey(change);
+        final Change existing = changes.get(key);
+        if (existing == null || isNewer(change, existing)) {
+            changes.put(key, Change.create(change.action(), change.type(), change.id(), change.version(), null, 0));
+            size = changes.size();
+        }
+        return existing != null;
+    }
+
+    /**
+     * @return true if the document of the change is in the set
+     */
+    synchronized boolean contains(final Change change) {
+        return changes.containsKey(new UpdaterQueue.ChangeKey(change));
+    }
+
+    /**
+     * Moves at most max changes, in the order the documents first changed, to the collection.
+     *
+     * @return the number of changes moved
+     */
+    synchronized int drainTo(final Collection<DelayedImpl<Change>> target, final int max) {
+        int drained = 0;
+        final Iterator<Change> iterator = changes.values().iterator();
+        while (drained < max && iterator.hasNext()) {
+            target.add(DelayedImpl.immediate(iterator.next()));
+            iterator.remove();
+            drained++;
+        }
+        size = changes.size();
+        return drained;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized void clear() {
+        changes.clear();
+        size = 0;
+    }
+
+    /**
+     * For the same version a delete wins, like in {@link UpdaterQueue#merge}.
+     */
+    private static boolean isNewer(final Change change, final Change existing) {
+        if (change.version() != existing.version()) {
+            return change.version() > existing.version();
+        }
+        return change.action() == Action.DELETE && existing.action() != Action.DELETE;
+    }
+}
@@ -0,0 +1,266 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * The Degraphmalizers the changes are sent to. A change goes to an endpoint chosen by consistent hashing on index, type
+ * and id, so all versions of a document go to the same Degraphmalizer. When endpoints are added or removed only the
+ * documents of those endpoints move.
+ * <p/>
+ * The health of the endpoints is checked passively: an endpoint that fails a number of calls in a row is ejected for
+ * a while, and its documents go to the next endpoint on the ring. After that time it gets calls again, and it is
+ * ejected again on the first failure until a call succeeds. When all endpoints are ejected the changes go to their own
+ * endpoint anyway, to be retried as usual.
+ */
+public final class Endpoints {
+    private static final ESLogger LOG = Loggers.getLogger(Endpoints.class);
+
+    private final int virtualNodes;
+    private final int maxFailures;
+    private final long ejectionInMillis;
+
+    // Replaced as a whole when the endpoints change, an endpoint that stays keeps its health
+    private volatile Ring ring;
+
+    /**
+     * @param hosts the Degraphmalizers, at least one
+     * @param virtualNodes the number of points of each endpoint on the ring, more points spread the documents more evenly
+     * @param maxFailures the number of failed calls in a row after which an endpoint is ejected
+     * @param ejectionInMillis the time an ejected endpoint gets no calls
+     */
+    public Endpoints(final Collection<HttpHost> hosts, final int virtualNodes, final int maxFailures, final long ejectionInMillis) {
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("There must be at least one Degraphmalizer endpoint");
+        }
+        this.virtualNodes = Math.max(virtualNodes, 1);
+        this.maxFailures = Math.max(maxFailures, 1);
+        this.ejectionInMillis = ejectionInMillis;
+        this.ring = new Ring(endpoints(hosts, Collections.<HttpHost, Endpoint>emptyMap()), this.virtualNodes);
+    }
+
+    public static Endpoints single(final HttpHost host) {
+        return new Endpoints(Collections.singletonList(host), 1, 3, 30000);
+    }
+
+    /**
+     * @param hosts comma separated host:port pairs, the port is optional
+     */
+    public static List<HttpHost> parse(final String scheme, final String hosts, final int defaultPort) {
+        final List<HttpHost> parsed = new ArrayList<HttpHost>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) {
+                continue;
+            }
+            final int colon = host.lastIndexOf(':');
+            if (colon < 0) {
+                parsed.add(new HttpHost(host, defaultPort, scheme));
+            } else {
+                parsed.add(new HttpHost(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1)), scheme));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Replaces the endpoints, when Degraphmalizers join or leave. An empty collection leaves the endpoints as they are.
+     */
+    public synchronized void setHosts(final Collection<HttpHost> hosts) {
+        if (hosts.isEmpty()) {
+            return;
+        }
+        final Map<HttpHost, Endpoint> current = new LinkedHashMap<HttpHost, Endpoint>();
+        for (Endpoint endpoint : ring.endpoints) {
+            current.put(endpoint.host, endpoint);
+        }
+        if (current.keySet().equals(new HashSet<HttpHost>(hosts))) {
+            return;
+        }
+        ring = new Ring(endpoints(hosts, current), virtualNodes);
+        LOG.info("Degraphmalizer endpoints are now {}", ring.endpoints);
+    }
+
+    private List<Endpoint> endpoints(final Collection<HttpHost> hosts, final Map<HttpHost, Endpoint> existing) {
+        final Map<HttpHost, Endpoint> endpoints = new LinkedHashMap<HttpHost, Endpoint>();
+        for (HttpHost host : hosts) {
+            final Endpoint endpoint = existing.get(host);
+            endpoints.put(host, endpoint == null ? new Endpoint(host) : endpoint);
+        }
+        return new ArrayList<Endpoint>(endpoints.values());
+    }
+
+    /**
+     * @return the endpoint for the document, the first available one on the ring from the hash of the document
+     */
+    Endpoint select(final String index, final String type, final String id) {
+        final Ring current = ring;
+        if (current.endpoints.size() == 1) {
+            return current.endpoints.get(0);
+        }
+        final long hash = hash(index, type, id);
+        int point = Arrays.binarySearch(current.points, hash);
+        if (point < 0) {
+            point = -point - 1;
+        }
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < current.points.length; i++) {
+            final Endpoint endpoint = current.owners[(point + i) % current.points.length];
+            if (endpoint.isAvailable(now)) {
+                return endpoint;
+            }
+        }
+        return current.owners[point % current.points.length];
+    }
+
+    List<Endpoint> endpoints() {
+        return ring.endpoints;
+    }
+
+    /**
+     * @return for each endpoint its share of the documents and whether it is ejected
+     */
+    public Map<String, String> getStatus() {
+        final Ring current = ring;
+        final long now = System.currentTimeMillis();
+        final Map<String, String> status = new LinkedHashMap<String, String>();
+        for (int i = 0; i < current.endpoints.size(); i++) {
+            final Endpoint endpoint = current.endpoints.get(i);
+            final String share = String.format("%.1f%% of the documents", current.shares[i] * 100);
+            final long ejectedFor = endpoint.ejectedUntilMillis - now;
+            status.put(endpoint.host.toURI(), ejectedFor > 0 ? share + ", ejected for " + ejectedFor + " ms" : share);
+        }
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return ring.endpoints.toString();
+    }
+
+    /**
+     * FNV-1a over the characters, with the mixing of MurmurHash3 so nearby ids end up far apart on the ring.
+     */
+    static long hash(final String index, final String type, final String id) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, index);
+        hash = (hash ^ '/') * 0x100000001b3L;
+        hash = hash(hash, type);
+        hash = (hash ^ '/') * 0x100000001b3L;
+        hash = hash(hash, id);
+        return mix(hash);
+    }
+
+    private static long hash(long hash, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * The points of all endpoints on the ring, sorted by hash.
+     */
+    private static final class Ring {
+        private final List<Endpoint> endpoints;
+        private final long[] points;
+        private final Endpoint[] owners;
+        // The fraction of the hash space of each endpoint
+        private final double[] shares;
+
+        private Ring(final List<Endpoint> endpoints, final int virtualNodes) {
+            this.endpoints = Collections.unmodifiableList(endpoints);
+            final Map<Long, Endpoint> byPoint = new TreeMap<Long, Endpoint>();
+            for (Endpoint endpoint : endpoints) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    byPoint.put(mix(hash(hash(0xcbf29ce484222325L, endpoint.host.toURI()), "#" + i)), endpoint);
+                }
+            }
+            points = new long[byPoint.size()];
+            owners = new Endpoint[byPoint.size()];
+            int i = 0;
+            for (Map.Entry<Long, Endpoint> entry : byPoint.entrySet()) {
+                points[i] = entry.getKey();
+                owners[i] = entry.getValue();
+                i++;
+            }
+
+            // A document belongs to the first point at or after its hash, so a point owns the arc before it
+            shares = new double[endpoints.size()];
+            for (int p = 0; p < points.length; p++) {
+                final long arc = points[p] - points[(p + points.length - 1) % points.length];
+                final double fraction = points.length == 1 ? 1 : unsigned(arc) / 18446744073709551616.0;
+                shares[endpoints.indexOf(owners[p])] += fraction;
+            }
+        }
+
+        private static double unsigned(final long value) {
+            return value >= 0 ? value : (value >>> 1) * 2.0;
+        }
+    }
+
+    /**
+     * A Degraphmalizer and its health.
+     */
+    final class Endpoint {
+        private final HttpHost host;
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long ejectedUntilMillis;
+
+        private Endpoint(final HttpHost host) {
+            this.host = host;
+        }
+
+        HttpHost host() {
+            return host;
+        }
+
+        boolean isAvailable(final long now) {
+            return ejectedUntilMillis <= now;
+        }
+
+        void succeeded() {
+            failures.set(0);
+            if (ejectedUntilMillis != 0) {
+                ejectedUntilMillis = 0;
+                LOG.info("Degraphmalizer {} is healthy again", host);
+            }
+        }
+
+        void failed() {
+            if (failures.incrementAndGet() >= maxFailures) {
+                final long now = System.currentTimeMillis();
+                if (isAvailable(now)) {
+                    ejectedUntilMillis = now + ejectionInMillis;
+                    LOG.warn("Degraphmalizer {} failed {} calls in a row, it is ejected for {} milliseconds", host, failures.get(), ejectionInMillis);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host.toURI();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.ManagedNHttpClientConnection;
+import org.apache.http.nio.conn.NHttpConnectionFactory;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.metrics.CounterMetric;
+
+/**
+ * The pooled HTTP clients the updaters of all indices on the node send their requests with, so connections to the
+ * Degraphmalizer are shared and reused. Connections are kept alive for as long as the Degraphmalizer allows, at most
+ * the keep alive time. Connections that are idle longer than the idle timeout are evicted by
+ * {@link #evictIdleConnections()}, and a blocking connection that was idle for a while is checked before it is reused.
+ * <p/>
+ * The blocking client is created right away, the non-blocking client and its I/O reactor only when a transport asks
+ * for it.
+ */
+public final class HttpClientPool {
+    private static final ESLogger LOG = Loggers.getLogger(HttpClientPool.class);
+
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final int connectTimeoutInMillis;
+    private final int socketTimeoutInMillis;
+    private final long idleTimeoutInMillis;
+    private final RequestConfig requestConfig;
+    private final KeepAliveStrategy keepAliveStrategy;
+
+    private final CounterMetric requests = new CounterMetric();
+    private final CounterMetric connections = new CounterMetric();
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    // Guarded by this
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private CloseableHttpAsyncClient asyncHttpClient;
+
+    /**
+     * @param maxConnections the maximum number of connections of each client
+     * @param maxConnectionsPerRoute the maximum number of connections to a single Degraphmalizer
+     * @param connectTimeoutInMillis the time to wait for a connection to be set up, or to be leased from the pool
+     * @param socketTimeoutInMillis the time to wait for data of a response
+     * @param keepAliveInMillis the maximum time a connection is kept alive
+     * @param idleTimeoutInMillis the time after which an idle connection is evicted
+     * @param validateAfterInactivityInMillis the time after which an idle connection is checked before it is reused
+     */
+    public HttpClientPool(final int maxConnections, final int maxConnectionsPerRoute, final int connectTimeoutInMillis, final int socketTimeoutInMillis,
+                          final long keepAliveInMillis, final long idleTimeoutInMillis, final int validateAfterInactivityInMillis) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerRoute = Math.min(maxConnectionsPerRoute, maxConnections);
+        this.connectTimeoutInMillis = connectTimeoutInMillis;
+        this.socketTimeoutInMillis = socketTimeoutInMillis;
+        this.idleTimeoutInMillis = idleTimeoutInMillis;
+
+        connectionManager = new PoolingHttpClientConnectionManager(new HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection>() {
+            @Override
+            public ManagedHttpClientConnection create(final HttpRoute route, final ConnectionConfig config) {
+                connections.inc();
+                return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+            }
+        });
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(this.maxConnectionsPerRoute);
+        connectionManager.setValidateAfterInactivity(validateAfterInactivityInMillis);
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutInMillis)
+                .setConnectionRequestTimeout(connectTimeoutInMillis)
+                .setSocketTimeout(socketTimeoutInMillis)
+                .build();
+        keepAliveStrategy = new KeepAliveStrategy(keepAliveInMillis);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .build();
+    }
+
+    /**
+     * A pool for the connections of a single transport, with the timeouts the transports used to have.
+     */
+    static HttpClientPool create(final int maxConnections) {
+        return new HttpClientPool(maxConnections, maxConnections, 50000, 50000, 60000, 30000, 2000);
+    }
+
+    CloseableHttpClient client() {
+        return httpClient;
+    }
+
+    /**
+     * @return the non-blocking client, which keeps its connections alive like the blocking one
+     */
+    synchronized CloseableHttpAsyncClient asyncClient() {
+        if (asyncHttpClient == null) {
+            final IOReactorConfig reactorConfig = IOReactorConfig.custom().setConnectTimeout(connectTimeoutInMillis).setSoTimeout(socketTimeoutInMillis).setIoThreadCount(1).build();
+            try {
+                asyncConnectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig), new NHttpConnectionFactory<ManagedNHttpClientConnection>() {
+                    @Override
+                    public ManagedNHttpClientConnection create(final IOSession session, final ConnectionConfig config) {
+                        connections.inc();
+                        return ManagedNHttpClientConnectionFactory.INSTANCE.create(session, config);
+                    }
+                });
+            } catch (IOReactorException e) {
+                throw new RuntimeException("Could not start the I/O reactor of the http client", e);
+            }
+            asyncConnectionManager.setMaxTotal(maxConnections);
+            asyncConnectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            asyncHttpClient = HttpAsyncClients.custom()
+                    .setConnectionManager(asyncConnectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy(keepAliveStrategy)
+                    .build();
+            asyncHttpClient.start();
+        }
+        return asyncHttpClient;
+    }
+
+    /**
+     * A transport counts the requests it executes, for the reuse rate of the connections.
+     */
+    void executed(final int count) {
+        requests.inc(count);
+    }
+
+    /**
+     * Closes the connections that are idle too long, or that the Degraphmalizer does not keep alive anymore.
+     */
+    public void evictIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeoutInMillis, TimeUnit.MILLISECONDS);
+        final PoolingNHttpClientConnectionManager async;
+        synchronized (this) {
+            async = asyncConnectionManager;
+        }
+        if (async != null) {
+            async.closeExpiredConnections();
+            async.closeIdleConnections(idleTimeoutInMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public long getIdleTimeoutInMillis() {
+        return idleTimeoutInMillis;
+    }
+
+    public int getLeasedConnections() {
+        int leased = connectionManager.getTotalStats().getLeased();
+        final PoolStats async = asyncStats();
+        return async == null ? leased : leased + async.getLeased();
+    }
+
+    public int getAvailableConnections() {
+        int available = connectionManager.getTotalStats().getAvailable();
+        final PoolStats async = asyncStats();
+        return async == null ? available : available + async.getAvailable();
+    }
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    public int getPendingConnections() {
+        int pending = connectionManager.getTotalStats().getPending();
+        final PoolStats async = asyncStats();
+        return async == null ? pending : pending + async.getPending();
+    }
+
+    /**
+     * @return the fraction of the connections of the busiest client that is leased
+     */
+    public double getSaturation() {
+        double saturation = (double) connectionManager.getTotalStats().getLeased() / maxConnections;
+        final PoolStats async = asyncStats();
+        if (async != null) {
+            saturation = Math.max(saturation, (double) async.getLeased() / maxConnections);
+        }
+        return saturation;
+    }
+
+    public long getCreatedConnections() {
+        return connections.count();
+    }
+
+    public long getRequestCount() {
+        return requests.count();
+    }
+
+    /**
+     * @return the fraction of the requests that were sent on a connection that was used before
+     */
+    public double getReuseRate() {
+        final long count = requests.count();
+        if (count == 0) {
+            return 0;
+        }
+        return Math.max(0, 1 - (double) connections.count() / count);
+    }
+
+    private synchronized PoolStats asyncStats() {
+        return asyncConnectionManager == null ? null : asyncConnectionManager.getTotalStats();
+    }
+
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing http client: {}", e.getMessage());
+        }
+        synchronized (this) {
+            if (asyncHttpClient != null) {
+                try {
+                    asyncHttpClient.close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing asynchronous http client: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return maxConnections + " connections, " + maxConnectionsPerRoute + " per route";
+    }
+
+    /**
+     * Keeps a connection alive as long as the Keep-Alive header of the response says, but at most the given time.
+     */
+    private static final class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final long keepAliveInMillis;
+
+        private KeepAliveStrategy(final long keepAliveInMillis) {
+            this.keepAliveInMillis = keepAliveInMillis;
+        }
+
+        @Override
+        public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+            final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, keepAliveInMillis) : keepAliveInMillis;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.lucene.uid.UidField;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+import org.elasticsearch.index.shard.IndexShardState;
+import org.elasticsearch.index.shard.service.IndexShard;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a whole index: queues an update for every document in the primary shards of the index on this node, at its
+ * current version, for instance after an outage or a change of the Degraphmalizer configuration.
+ * <p/>
+ * A shard is read in the order of the uids of its documents, straight from the terms of the uid field, a chunk at a
+ * time with a fresh searcher, so no segments are held on to. Every 100 milliseconds a chunk of a tenth of the rate
+ * goes to the backlog lane of the queue, but only when the changes of the previous chunk have been acknowledged. So
+ * the replay never runs ahead of the Degraphmalizer, and live changes keep their share of the sends.
+ * <p/>
+ * Once the changes of a chunk are acknowledged, the uid it ends with is saved in a checkpoint file for its shard. A
+ * replay that was stopped, also by a restart, goes on after the checkpoints when it is started again. The file is
+ * removed when the replay is done or cancelled.
+ */
+final class IndexReplay {
+    private static final ESLogger LOG = Loggers.getLogger(IndexReplay.class);
+    private static final long TICK_MILLIS = 100;
+
+    private final String index;
+    private final Map<Integer, IndexShard> shards;
+    private final UpdaterQueue queue;
+    private final File checkpointFile;
+    private final int chunkSize;
+    private final ScheduledExecutorService scheduler;
+
+    // Guarded by this
+    private final Map<Integer, Progress> progress = new TreeMap<Integer, Progress>();
+    private ScheduledFuture<?> task;
+    private boolean done;
+
+    /**
+     * @param shards the shards of the index on this node, by shard id, it may change while the replay runs
+     * @param ratePerSecond the maximum number of documents queued per second
+     */
+    IndexReplay(final String index, final Map<Integer, IndexShard> shards, final UpdaterQueue queue, final File checkpointFile, final int ratePerSecond, final ScheduledExecutorService scheduler) {
+        this.index = index;
+        this.shards = shards;
+        this.queue = queue;
+        this.checkpointFile = checkpointFile;
+        this.chunkSize = (int) Math.max(ratePerSecond * TICK_MILLIS / 1000, 1);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts the replay, after the checkpoints of an earlier replay if there are any.
+     */
+    synchronized void start() {
+        readCheckpoints();
+        if (progress.isEmpty()) {
+            LOG.info("Replaying index {}, at most {} documents per second", index, chunkSize * 1000 / TICK_MILLIS);
+        } else {
+            LOG.info("Resuming replay of index {} after the checkpoints in {}", index, checkpointFile);
+        }
+        task = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Exception e) {
+                    LOG.error("Replay of index {} failed: {}", index, e.getMessage());
+                }
+            }
+        }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the replay, it can be resumed from the checkpoints.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Stops the replay and removes the checkpoints.
+     */
+    synchronized void cancel() {
+        stop();
+        progress.clear();
+        deleteCheckpoints();
+        LOG.info("Replay of index {} is cancelled", index);
+    }
+
+    synchronized boolean isRunning() {
+        return task != null;
+    }
+
+    /**
+     * @return the progress of each shard
+     */
+    synchronized Map<String, String> getStatus() {
+        final Map<String, String> status = new LinkedHashMap<String, String>();
+        for (Map.Entry<Integer, Progress> entry : progress.entrySet()) {
+            status.put(index + "[" + entry.getKey() + "]", entry.getValue().toString());
+        }
+        for (Integer shard : shards.keySet()) {
+            if (!progress.containsKey(shard)) {
+                status.put(index + "[" + shard + "]", done ? "not replayed, not a primary on this node" : "waiting");
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Queues the next chunk of the first shard that is not done, once the changes of the previous chunk have been
+     * acknowledged.
+     */
+    private synchronized void tick() {
+        if (task == null || queue.getReplaySize() > 0) {
+            return;
+        }
+        boolean changed = false;
+        for (Progress shard : progress.values()) {
+            if (shard.last != null && !shard.last.equals(shard.checkpoint)) {
+                shard.checkpoint = shard.last;
+                changed = true;
+            }
+        }
+        if (changed) {
+            saveCheckpoints();
+        }
+
+        for (Map.Entry<Integer, IndexShard> entry : new TreeMap<Integer, IndexShard>(shards).entrySet()) {
+            final IndexShard shard = entry.getValue();
+            if (!shard.routingEntry().primary() || shard.state() != IndexShardState.STARTED) {
+                continue;
+            }
+            Progress shardProgress = progress.get(entry.getKey());
+            if (shardProgress != null && shardProgress.done) {
+                continue;
+            }
+            final List<Change> changes = new ArrayList<Change>(chunkSize);
+            final String last;
+            final Engine.Searcher searcher = shard.searcher();
+            try {
+                if (shardProgress == null) {
+                    shardProgress = new Progress();
+                    progress.put(entry.getKey(), shardProgress);
+                }
+                if (shardProgress.total < 0) {
+                    shardProgress.total = searcher.reader().numDocs();
+                }
+                last = scan(searcher.reader(), shardProgress.last, chunkSize, changes);
+            } catch (IOException e) {
+                LOG.error("Error reading shard {} of index {} for the replay, trying again: {}", entry.getKey(), index, e.getMessage());
+                return;
+            } finally {
+                searcher.release();
+            }
+            if (last == null) {
+                shardProgress.done = true;
+                saveCheckpoints();
+                LOG.info("Replay of shard {} of index {} is done, {} documents were queued", entry.getKey(), index, shardProgress.replayed);
+                continue;
+            }
+            shardProgress.last = last;
+            shardProgress.replayed += changes.size();
+            for (Change change : changes) {
+                queue.addReplay(change);
+            }
+            return;
+        }
+
+        done = true;
+        stop();
+        deleteCheckpoints();
+        LOG.info("Replay of index {} is done", index);
+    }
+
+    /**
+     * Reads the documents of a shard in the order of their uids, after the given uid, as updates at their current
+     * version.
+     *
+     * @param after the uid to start after, or null to start at the first document
+     * @return the uid of the last document read, or null if there are no documents after the given uid
+     */
+    static String scan(final IndexReader reader, final String after, final int max, final Collection<Change> changes) throws IOException {
+        final TermEnum terms = reader.terms(new Term(UidFieldMapper.NAME, after == null ? "" : after));
+        final TermDocs docs = reader.termDocs();
+        try {
+            String last = null;
+            int read = 0;
+            while (read < max) {
+                final Term term = terms.term();
+                if (term == null || !UidFieldMapper.NAME.equals(term.field())) {
+                    break;
+                }
+                if (!term.text().equals(after)) {
+                    docs.seek(term);
+                    // a uid of which all documents are deleted has no live document
+                    if (docs.next()) {
+                        final long version = UidField.loadVersion(reader, term);
+                        final Uid uid = Uid.createUid(term.text());
+                        if (version >= 0) {
+                            changes.add(Change.update(uid.type(), uid.id(), version));
+                        } else {
+                            LOG.debug("Not replaying {}, it has no version", term.text());
+                        }
+                        last = term.text();
+                        read++;
+                    }
+                }
+                if (!terms.next()) {
+                    break;
+                }
+            }
+            return last;
+        } finally {
+            docs.close();
+            terms.close();
+        }
+    }
+
+    /**
+     * The checkpoint file has a line per shard with the shard id, the number of documents replayed, whether the shard
+     * is done, and the uid of the last document whose change was acknowledged, separated by commas.
+     */
+    private void readCheckpoints() {
+        if (!checkpointFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] values = line.split(",", 4);
+                final Progress shard = new Progress();
+                shard.replayed = Long.parseLong(values[1]);
+                shard.done = Boolean.parseBoolean(values[2]);
+                shard.checkpoint = values[3].length() == 0 ? null : values[3];
+                shard.last = shard.checkpoint;
+                progress.put(Integer.valueOf(values[0]), shard);
+            }
+        } catch (Exception e) {
+            LOG.error("Error reading replay checkpoints {}, replaying index {} from the start: {}", checkpointFile, index, e.getMessage());
+            progress.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the checkpoints to a new file that replaces the old one.
+     */
+    private void saveCheckpoints() {
+        final File written = new File(checkpointFile.getPath() + ".new");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(written), "UTF-8");
+            for (Map.Entry<Integer, Progress> entry : progress.entrySet()) {
+                final Progress shard = entry.getValue();
+                writer.write(entry.getKey() + "," + shard.replayed + "," + shard.done + "," + (shard.checkpoint == null ? "" : shard.checkpoint) + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!written.renameTo(checkpointFile)) {
+                throw new IOException("can not rename " + written);
+            }
+        } catch (IOException e) {
+            LOG.error("Error saving replay checkpoints {}: {}", checkpointFile, e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // the checkpoints were not saved
+                }
+            }
+        }
+    }
+
+    private void deleteCheckpoints() {
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            LOG.error("Can not remove replay checkpoints {}", checkpointFile);
+        }
+    }
+
+    /**
+     * How far the replay of a shard got.
+     */
+    private static final class Progress {
+        // Uid of the last document whose change was acknowledged, saved in the checkpoint file
+        private String checkpoint;
+        // Uid of the last document queued
+        private String last;
+        private long replayed;
+        // Number of documents in the shard when the replay reached it, -1 if it did not in this run
+        private long total = -1;
+        private boolean done;
+
+        @Override
+        public String toString() {
+            if (done) {
+                return "done, " + replayed + " documents";
+            }
+            return replayed + " of " + (total < 0 ? "?" : String.valueOf(total)) + " documents";
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer that takes changes from many threads without locking or allocating, and hands them to a single
+ * consumer at a time.
+ * <p/>
+ * A producer claims a sequence number with a compare-and-set, writes the fields of the change in the slot of that
+ * number, and then publishes the slot by storing the number in it. The consumer takes published slots in sequence and
+ * moves the head past them, which frees them for producers.
+ */
+final class IngestRing {
+    /**
+     * Receives the changes taken from the ring.
+     */
+    interface Consumer {
+        /**
+         * @param enqueuedMillis the time the change was put in the ring
+         */
+        void accept(Action action, String type, String id, long version, long enqueuedMillis);
+    }
+
+    private final int mask;
+    private final Action[] actions;
+    private final String[] types;
+    private final String[] ids;
+    private final long[] versions;
+    private final long[] enqueuedMillis;
+    // Sequence number of the change in each slot, written after the fields of the change
+    private final AtomicLongArray published;
+
+    // Next sequence number to claim
+    private final AtomicLong tail = new AtomicLong();
+    // Next sequence number to take, only written by the consumer
+    private volatile long head;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    IngestRing(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        actions = new Action[size];
+        types = new String[size];
+        ids = new String[size];
+        versions = new long[size];
+        enqueuedMillis = new long[size];
+        final long[] unpublished = new long[size];
+        Arrays.fill(unpublished, -1);
+        published = new AtomicLongArray(unpublished);
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(final Action action, final String type, final String id, final long version) {
+        final long now = System.currentTimeMillis();
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head > mask) {
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        final int slot = (int) sequence & mask;
+        actions[slot] = action;
+        types[slot] = type;
+        ids[slot] = id;
+        versions[slot] = version;
+        enqueuedMillis[slot] = now;
+        // a full volatile store, not a lazy one: a producer that checks whether the ring was closed after this must
+        // not see it open while the thread closing it does not see the change yet
+        published.set(slot, sequence);
+        return true;
+    }
+
+    /**
+     * Takes at most max changes, in the order they were claimed. Only one thread may drain at a time.
+     *
+     * @return the number of changes taken
+     */
+    int drain(final Consumer consumer, final int max) {
+        long sequence = head;
+        int drained = 0;
+        while (drained < max) {
+            final int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence) {
+                break;
+            }
+            final Action action = actions[slot];
+            final String type = types[slot];
+            final String id = ids[slot];
+            final long version = versions[slot];
+            final long enqueued = enqueuedMillis[slot];
+            types[slot] = null;
+            ids[slot] = null;
+            head = ++sequence;
+            consumer.accept(action, type, id, version, enqueued);
+            drained++;
+        }
+        return drained;
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * @return the number of changes put in the ring since it was created
+     */
+    long offered() {
+        return tail.get();
+    }
+}
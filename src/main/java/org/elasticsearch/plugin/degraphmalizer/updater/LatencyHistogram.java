@@ -0,0 +1,148 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free histogram of latencies in microseconds, for percentiles over the last one to two minutes.
+ * <p/>
+ * Values are counted in buckets of 1/8th of a power of two, so a percentile is at most 12.5% too high. Recording is
+ * an atomic increment; a window is replaced by a fresh one every minute, and percentiles are read from the current
+ * and the previous window together. Reading rolls the windows too, so values do not linger when nothing is recorded.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final long WINDOW_MILLIS = 60000;
+
+    private final AtomicReference<Window> current = new AtomicReference<Window>(new Window(System.currentTimeMillis()));
+    private volatile Window previous = new Window(0);
+
+    void record(final long micros) {
+        record(micros, System.currentTimeMillis());
+    }
+
+    void record(final long micros, final long now) {
+        final long value = Math.max(micros, 0);
+        final Window window = current(now);
+        window.counts.incrementAndGet(bucket(value));
+        long max;
+        while (value > (max = window.max.get()) && !window.max.compareAndSet(max, value)) {
+            // another thread raised the maximum, check again
+        }
+    }
+
+    Snapshot snapshot() {
+        return snapshot(System.currentTimeMillis());
+    }
+
+    Snapshot snapshot(final long now) {
+        final Window window = current(now);
+        final Snapshot snapshot = new Snapshot();
+        final Window last = previous;
+        if (now - last.startedMillis < 2 * WINDOW_MILLIS) {
+            snapshot.add(last);
+        }
+        snapshot.add(window);
+        return snapshot;
+    }
+
+    /**
+     * @return the current window, replaced by a fresh one if it is a window old. A window that is two windows old is
+     *         dropped rather than kept as the previous one.
+     */
+    private Window current(final long now) {
+        final Window window = current.get();
+        if (now - window.startedMillis < WINDOW_MILLIS) {
+            return window;
+        }
+        if (current.compareAndSet(window, new Window(now))) {
+            previous = now - window.startedMillis < 2 * WINDOW_MILLIS ? window : new Window(0);
+        }
+        return current.get();
+    }
+
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value that falls in the bucket
+     */
+    static long upperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        final long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static final class Window {
+        private final long startedMillis;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        private Window(final long startedMillis) {
+            this.startedMillis = startedMillis;
+        }
+    }
+
+    /**
+     * Counts of one or more histograms, which can be added up for an aggregate over several indices.
+     */
+    static final class Snapshot {
+        private final long[] counts = new long[BUCKETS];
+        private long total;
+        private long max;
+
+        private void add(final Window window) {
+            for (int i = 0; i < BUCKETS; i++) {
+                final long count = window.counts.get(i);
+                counts[i] += count;
+                total += count;
+            }
+            max = Math.max(max, window.max.get());
+        }
+
+        void add(final Snapshot other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * @param fraction the fraction of the values, between 0 and 1
+         * @return the value that the fraction of the values does not exceed, in milliseconds
+         */
+        double percentileMillis(final double fraction) {
+            final long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max) / 1000.0;
+                }
+            }
+            return 0;
+        }
+
+        double maxMillis() {
+            return max / 1000.0;
+        }
+
+        long count() {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the changes that the queues keep on disk, per index and for the whole node, and decides what happens to new
+ * changes when a queue is over the limit. A limit of 0 means no limit.
+ * <p/>
+ * The limits are soft: a queue that is over budget still saves the changes it holds in memory.
+ */
+public final class OverflowBudget {
+    public enum Policy {
+        /** Keep only the latest version of each changed document in memory, until the backlog is gone */
+        DIRTY,
+        /** Block the producer until the backlog is below the limits, keep the latest version after a timeout */
+        BLOCK,
+        /** Drop the change, and mark the index as needing a full resync */
+        RESYNC
+    }
+
+    private final long maxIndexBytes;
+    private final long maxIndexRecords;
+    private final long maxNodeBytes;
+    private final Policy policy;
+    private final long blockTimeoutInMillis;
+
+    // Bytes on disk of all queues on the node, as reported by the queues
+    private final AtomicLong nodeBytes = new AtomicLong();
+
+    public OverflowBudget(final long maxIndexBytes, final long maxIndexRecords, final long maxNodeBytes, final Policy policy, final long blockTimeoutInMillis) {
+        this.maxIndexBytes = maxIndexBytes;
+        this.maxIndexRecords = maxIndexRecords;
+        this.maxNodeBytes = maxNodeBytes;
+        this.policy = policy;
+        this.blockTimeoutInMillis = blockTimeoutInMillis;
+    }
+
+    public static OverflowBudget unlimited() {
+        return new OverflowBudget(0, 0, 0, Policy.DIRTY, 0);
+    }
+
+    /**
+     * @return true if a queue with the given backlog on disk may not take more changes
+     */
+    boolean isExceeded(final long indexBytes, final long indexRecords) {
+        return (maxIndexBytes > 0 && indexBytes >= maxIndexBytes)
+                || (maxIndexRecords > 0 && indexRecords >= maxIndexRecords)
+                || (maxNodeBytes > 0 && nodeBytes.get() >= maxNodeBytes);
+    }
+
+    /**
+     * A queue reports the change in its bytes on disk.
+     */
+    void addNodeBytes(final long delta) {
+        if (delta != 0) {
+            nodeBytes.addAndGet(delta);
+        }
+    }
+
+    public long getNodeBytes() {
+        return nodeBytes.get();
+    }
+
+    public long getMaxNodeBytes() {
+        return maxNodeBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public long getBlockTimeoutInMillis() {
+        return blockTimeoutInMillis;
+    }
+
+    @Override
+    public String toString() {
+        return policy.name().toLowerCase() + " when over " + maxIndexBytes + " bytes or " + maxIndexRecords + " changes per index, or "
+                + maxNodeBytes + " bytes per node";
+    }
+}
@@ -0,0 +1,264 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+/**
+ * Binary format of the overflow files.
+ * <p/>
+ * A file starts with a header: a magic number, the format version and the number of records. Each record is prefixed
+ * with its length, so fields added in later versions can be skipped by older readers. A record holds the action,
+ * version, delay, base time, retries, and the index or alias (empty for all), type and id as UTF-8 strings. The
+ * records are also used by the {@link SegmentLog}.
+ */
+final class OverflowFileFormat {
+    static final int MAGIC = 0x44474f46;
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 4 + 1 + 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] NO_BYTES = {};
+
+    private OverflowFileFormat() {
+    }
+
+    /**
+     * Writes the changes to the file and forces them to disk.
+     */
+    static void write(final File file, final Collection<DelayedImpl<Change>> changes) throws IOException {
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = output.getChannel();
+            channel.truncate(0);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.position(HEADER_SIZE);
+
+            for (DelayedImpl<Change> delayed : changes) {
+                final byte[] record = encode(delayed);
+                if (buffer.remaining() < 4 + record.length) {
+                    flush(channel, buffer);
+                    if (buffer.capacity() < 4 + record.length) {
+                        buffer = ByteBuffer.allocate(4 + record.length);
+                    }
+                }
+                buffer.putInt(record.length);
+                buffer.put(record);
+            }
+            flush(channel, buffer);
+
+            buffer.putInt(MAGIC).put(VERSION).putInt(changes.size());
+            buffer.flip();
+            long position = 0;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return the number of records in the file, from its header.
+     */
+    static int readCount(final File file) throws IOException {
+        final FileInputStream input = new FileInputStream(file);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readHeader(input.getChannel(), header);
+            return header.getInt(5);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the records of a file one at a time through a buffer, so a large file is never on the heap as a whole.
+     */
+    static final class Reader {
+        private final FileInputStream input;
+        private final FileChannel channel;
+        private final int count;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private int position;
+        private long bytesRead;
+
+        Reader(final File file) throws IOException {
+            input = new FileInputStream(file);
+            try {
+                channel = input.getChannel();
+                readHeader(channel, buffer);
+                count = buffer.getInt(5);
+                buffer.clear().flip();
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the next record, or null after the last one
+         */
+        DelayedImpl<Change> next() throws IOException {
+            if (position >= count) {
+                return null;
+            }
+            final int length = nextLength();
+            return decode(buffer, length);
+        }
+
+        /**
+         * Skips the given number of records without decoding them.
+         */
+        void skip(final int records) throws IOException {
+            for (int i = 0; i < records && position < count; i++) {
+                final int length = nextLength();
+                buffer.position(buffer.position() + length);
+            }
+        }
+
+        /**
+         * Makes sure the next record is in the buffer, and moves past it.
+         *
+         * @return the length of the record at the position of the buffer
+         */
+        private int nextLength() throws IOException {
+            fill(channel, buffer, 4);
+            final int length = buffer.getInt();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length).put(buffer);
+                buffer.flip();
+            }
+            fill(channel, buffer, length);
+            position++;
+            bytesRead += 4 + length;
+            return length;
+        }
+
+        /**
+         * @return the number of records in the file
+         */
+        int count() {
+            return count;
+        }
+
+        /**
+         * @return the number of records read or skipped
+         */
+        int position() {
+            return position;
+        }
+
+        long bytesRead() {
+            return bytesRead;
+        }
+
+        void close() {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // nothing was written
+            }
+        }
+    }
+
+    /**
+     * @return the record for the change, without its length prefix
+     */
+    static byte[] encode(final DelayedImpl<Change> delayed) {
+        final Change change = delayed.thing();
+        final byte[] target = change.getIndexNameOrAlias() == null ? NO_BYTES : change.getIndexNameOrAlias().getBytes(UTF8);
+        final byte[] type = change.type().getBytes(UTF8);
+        final byte[] id = change.id().getBytes(UTF8);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8 + 8 + 4 + 4 + target.length + 4 + type.length + 4 + id.length);
+        buffer.put((byte) change.action().ordinal());
+        buffer.putLong(change.version());
+        buffer.putLong(delayed.delayInMillis());
+        buffer.putLong(delayed.baseMillis());
+        buffer.putInt(change.retries());
+        putBytes(buffer, target);
+        putBytes(buffer, type);
+        putBytes(buffer, id);
+        return buffer.array();
+    }
+
+    /**
+     * Reads the record of the given length at the position of the buffer, and moves the position past it.
+     */
+    static DelayedImpl<Change> decode(final ByteBuffer buffer, final int length) {
+        final int end = buffer.position() + length;
+
+        final Action action = Action.values()[buffer.get()];
+        final long version = buffer.getLong();
+        final long delayInMillis = buffer.getLong();
+        final long baseMillis = buffer.getLong();
+        final int retries = buffer.getInt();
+        final String target = getString(buffer);
+        final String type = getString(buffer);
+        final String id = getString(buffer);
+        // skip fields of later versions
+        buffer.position(end);
+
+        final Change change = Change.create(action, type, id, version, target.length() > 0 ? target : null, retries);
+        return new DelayedImpl<Change>(change, delayInMillis, baseMillis);
+    }
+
+    private static void readHeader(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.clear().limit(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Overflow file header is incomplete");
+            }
+        }
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an overflow file");
+        }
+        if (buffer.get(4) > VERSION) {
+            throw new IOException("Unsupported overflow file version " + buffer.get(4));
+        }
+    }
+
+    /**
+     * Reads from the channel until the buffer has at least the given number of bytes remaining.
+     */
+    private static void fill(final FileChannel channel, final ByteBuffer buffer, final int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Overflow file is truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void flush(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void putBytes(final ByteBuffer buffer, final byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,82 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Builds the paths of the requests for changes, like /index/type/id/version. The encoded names of the index, its
+ * aliases and the types are cached, so for every change only the id is encoded, and only if it has characters that
+ * need it.
+ * <p/>
+ * The result is the same as encoding every part with {@link URLEncoder}.
+ */
+final class RequestPaths {
+    // Enough for the index, its aliases and its types, ids are never cached
+    private static final int MAX_CACHED_NAMES = 1024;
+
+    private final ConcurrentMap<String, String> encodedNames = new ConcurrentHashMap<String, String>();
+
+    /**
+     * @param aliases the aliases the receiver fans out to, or null
+     */
+    String path(final String indexNameOrAlias, final String type, final String id, final long version, final List<String> aliases) {
+        final StringBuilder builder = new StringBuilder(indexNameOrAlias.length() + type.length() + id.length() + 24);
+        append(builder, indexNameOrAlias, type, id, version, aliases);
+        return builder.toString();
+    }
+
+    /**
+     * Appends the path, so the lines of a batch request go straight into its body. The aliases the receiver fans out
+     * to are added as a comma separated parameter, e.g. ?aliases=a,b
+     *
+     * @param aliases the aliases the receiver fans out to, or null
+     */
+    void append(final StringBuilder builder, final String indexNameOrAlias, final String type, final String id, final long version, final List<String> aliases) {
+        builder.append('/').append(name(indexNameOrAlias)).append('/').append(name(type)).append('/');
+        encode(id, builder);
+        builder.append('/').append(version);
+        if (aliases != null) {
+            for (int i = 0; i < aliases.size(); i++) {
+                builder.append(i == 0 ? "?aliases=" : ",").append(name(aliases.get(i)));
+            }
+        }
+    }
+
+    private String name(final String name) {
+        String encoded = encodedNames.get(name);
+        if (encoded == null) {
+            final StringBuilder builder = new StringBuilder(name.length());
+            encode(name, builder);
+            encoded = builder.toString();
+            if (encodedNames.size() < MAX_CACHED_NAMES) {
+                encodedNames.putIfAbsent(name, encoded);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Appends the value as is if {@link URLEncoder} would leave it unchanged, which is the common case for ids.
+     */
+    static void encode(final String value, final StringBuilder builder) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!isUnreserved(value.charAt(i))) {
+                try {
+                    builder.append(URLEncoder.encode(value, "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    // cannot happen UTF-8 is supported
+                    throw new RuntimeException(e);
+                }
+                return;
+            }
+        }
+        builder.append(value);
+    }
+
+    private static boolean isUnreserved(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+}
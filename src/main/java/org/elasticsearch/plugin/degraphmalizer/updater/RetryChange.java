@@ -10,8 +10,15 @@ public class RetryChange extends Change {
     private final String indexNameOrAlias;
 
     RetryChange(Change change, String indexNameOrAlias) {
+        this(change, indexNameOrAlias, 0);
+    }
+
+    /**
+     * @param indexNameOrAlias the index or alias to retry on, or null for the index and all its aliases.
+     */
+    RetryChange(Change change, String indexNameOrAlias, int retries) {
         super(change.action(), change.type(), change.id(), change.version());
-        retries = 0;
+        this.retries = retries;
         this.indexNameOrAlias = indexNameOrAlias;
     }
 
@@ -25,8 +32,14 @@ public class RetryChange extends Change {
         return retries;
     }
 
+    /**
+     * @param name the index or alias to retry on, or null for the index and all its aliases.
+     */
     @Override
     public RetryChange retried(String name) {
+        if (name == null ? indexNameOrAlias != null : !name.equals(indexNameOrAlias)) {
+            return new RetryChange(this, name, retries + 1);
+        }
         retries++;
         return this;
     }
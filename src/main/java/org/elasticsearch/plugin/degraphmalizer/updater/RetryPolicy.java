@@ -0,0 +1,53 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.Random;
+
+/**
+ * How often and after what delay failed changes are retried. The delay doubles with every retry up to a maximum, and
+ * is shortened by a random fraction so the retries of changes that failed together are spread out.
+ */
+public final class RetryPolicy {
+    private final long delayInMillis;
+    private final long maxDelayInMillis;
+    private final double jitter;
+    private final int maxRetries;
+    private final Random random = new Random();
+
+    /**
+     * @param delayInMillis the delay before the first retry
+     * @param maxDelayInMillis the maximum delay before a retry
+     * @param jitter the maximum fraction, between 0 and 1, by which a delay is shortened
+     * @param maxRetries the number of times a change is retried
+     */
+    public RetryPolicy(final long delayInMillis, final long maxDelayInMillis, final double jitter, final int maxRetries) {
+        this.delayInMillis = delayInMillis;
+        this.maxDelayInMillis = Math.max(delayInMillis, maxDelayInMillis);
+        this.jitter = Math.min(Math.max(jitter, 0), 1);
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return true if a change that has been retried the given number of times may be retried again
+     */
+    public boolean canRetry(final int retries) {
+        return retries < maxRetries;
+    }
+
+    /**
+     * @param retries the number of earlier retries of the change
+     * @return the delay before the retry
+     */
+    public long delayInMillis(final int retries) {
+        long delay = delayInMillis;
+        for (int i = 0; i < retries && delay < maxDelayInMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayInMillis);
+        return delay - (long) (delay * jitter * random.nextDouble());
+    }
+
+    @Override
+    public String toString() {
+        return "at most " + maxRetries + " retries after " + delayInMillis + " to " + maxDelayInMillis + " milliseconds";
+    }
+}
@@ -0,0 +1,442 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.lucene.store.bytebuffer.ByteBufferAllocator;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * Append-only log of the changes of an index, kept in memory-mapped segment files. Every change gets a sequence
+ * number. The changes are read in sequence by a single cursor, and acknowledged when they are done with, in any order.
+ * The offset below which all changes are acknowledged is kept in a file, so after a restart the log is read again
+ * from there. Segments with only acknowledged changes are unmapped and deleted.
+ * <p/>
+ * A segment starts with a header (magic number, version and the sequence number of its first change), followed by
+ * length-prefixed records in the format of {@link OverflowFileFormat}. A zero length marks the end of the records.
+ * <p/>
+ * Appended changes are forced to disk right away if the fsync interval is 0, otherwise by {@link #sync()}, which the
+ * owner of the log should call every interval.
+ * <p/>
+ * Opening the log scans the directory once. Only the last segment is scanned for the end of its records, the number of
+ * changes in the other segments follows from the first sequence number of the next one, and their end is found when
+ * the cursor gets there.
+ */
+public class SegmentLog {
+    private static final ESLogger LOG = Loggers.getLogger(SegmentLog.class);
+
+    private static final int MAGIC = 0x4447534c;
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final String SUFFIX = ".seg";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long fsyncIntervalInMillis;
+
+    // All fields below are guarded by this
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private long nextSequence;
+
+    private Segment readSegment;
+    private int readPosition;
+    private long readSequence;
+    private long bytesRead;
+
+    // All changes before the committed sequence are acknowledged, the acknowledged changes after it are in acked
+    private long committed;
+    private final TreeSet<Long> acked = new TreeSet<Long>();
+    private long savedCommitted = -1;
+    private boolean dirty = false;
+
+    private final RandomAccessFile offsetFile;
+
+    /**
+     * @param directory the directory of the segment files, created if it does not exist
+     * @param segmentSize the size of a segment file in bytes
+     * @param fsyncIntervalInMillis the time appended changes may wait before they are forced to disk
+     */
+    public SegmentLog(final File directory, final int segmentSize, final long fsyncIntervalInMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncIntervalInMillis = fsyncIntervalInMillis;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create log directory " + directory);
+        }
+
+        final File[] files = getSegmentFiles();
+        for (int i = 0; i < files.length; i++) {
+            segments.add(Segment.open(files[i], i == files.length - 1));
+        }
+        if (!segments.isEmpty()) {
+            final Segment last = segments.get(segments.size() - 1);
+            nextSequence = last.firstSequence + last.count;
+        }
+
+        offsetFile = new RandomAccessFile(new File(directory, "offset"), "rw");
+        if (offsetFile.length() >= 8) {
+            committed = offsetFile.readLong();
+        } else if (!segments.isEmpty()) {
+            committed = segments.get(0).firstSequence;
+        }
+        committed = Math.min(Math.max(committed, segments.isEmpty() ? nextSequence : segments.get(0).firstSequence), nextSequence);
+        savedCommitted = committed;
+
+        seek(committed);
+        LOG.info("Opened log {} with {} segments, {} changes to read", directory, segments.size(), nextSequence - readSequence);
+    }
+
+    public long getFsyncIntervalInMillis() {
+        return fsyncIntervalInMillis;
+    }
+
+    /**
+     * Appends the change to the log and sets its sequence number.
+     *
+     * @param read whether the change should be read right away if there are no earlier changes to read.
+     * @return true if the change was read.
+     */
+    public synchronized boolean append(final DelayedImpl<Change> delayed, final boolean read) throws IOException {
+        final byte[] record = OverflowFileFormat.encode(delayed);
+        Segment head = head();
+        if (head == null || head.remaining() < 4 + record.length + 4) {
+            head = roll(record.length);
+        }
+        head.append(record);
+        delayed.sequence(nextSequence++);
+
+        if (fsyncIntervalInMillis == 0) {
+            head.buffer.force();
+        } else {
+            dirty = true;
+        }
+
+        if (read && readSequence == delayed.sequence()) {
+            readSegment = head;
+            readPosition = head.end;
+            readSequence++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads changes at the cursor into the given collection, without loading whole segments onto the heap.
+     *
+     * @return the number of changes read.
+     */
+    public synchronized int read(final Collection<DelayedImpl<Change>> changes, final int max) {
+        int read = 0;
+        while (read < max && readSequence < nextSequence) {
+            if (readPosition >= readSegment.end()) {
+                readSegment = next(readSegment);
+                readPosition = HEADER_SIZE;
+                continue;
+            }
+            final ByteBuffer view = readSegment.buffer.duplicate();
+            final int length = view.getInt(readPosition);
+            view.position(readPosition + 4);
+            final DelayedImpl<Change> delayed = OverflowFileFormat.decode(view, length);
+            delayed.sequence(readSequence++);
+            readPosition += 4 + length;
+            bytesRead += 4 + length;
+            changes.add(delayed);
+            read++;
+        }
+        return read;
+    }
+
+    /**
+     * Marks a change as done with. Changes that are not acknowledged are read again after a restart.
+     */
+    public synchronized void acknowledge(final long sequence) {
+        if (sequence < committed) {
+            return;
+        }
+        if (sequence == committed) {
+            committed++;
+            while (!acked.isEmpty() && acked.first() == committed) {
+                acked.pollFirst();
+                committed++;
+            }
+        } else {
+            acked.add(sequence);
+        }
+    }
+
+    /**
+     * Loads the segment at the cursor into memory, so the first reads after a restart do not wait for the disk.
+     */
+    public void prefetch() {
+        final MappedByteBuffer buffer;
+        synchronized (this) {
+            buffer = readSegment == null ? null : readSegment.buffer;
+        }
+        if (buffer != null) {
+            buffer.load();
+        }
+    }
+
+    /**
+     * @return the number of bytes in the segment files.
+     */
+    public synchronized long getSizeInBytes() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.buffer.capacity();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes read by this instance.
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the number of changes that are not read yet.
+     */
+    public synchronized int unread() {
+        return (int) (nextSequence - readSequence);
+    }
+
+    /**
+     * Acknowledges all changes, read or not.
+     */
+    public synchronized void clear() {
+        committed = nextSequence;
+        acked.clear();
+        seek(nextSequence);
+    }
+
+    /**
+     * Forces appended changes to disk, saves the committed offset and deletes the segments with only acknowledged
+     * changes.
+     */
+    public void sync() {
+        final MappedByteBuffer buffer;
+        final long committed;
+        final List<Segment> done = new ArrayList<Segment>();
+        synchronized (this) {
+            final Segment head = head();
+            buffer = dirty && head != null ? head.buffer : null;
+            dirty = false;
+            committed = this.committed;
+            while (segments.size() > 1 && segments.get(1).firstSequence <= committed) {
+                done.add(segments.remove(0));
+            }
+        }
+
+        if (buffer != null) {
+            buffer.force();
+        }
+        try {
+            saveCommitted(committed);
+        } catch (IOException e) {
+            LOG.error("Error saving offset of log {}: {}", directory, e.getMessage());
+        }
+        for (Segment segment : done) {
+            segment.unmap();
+            if (!segment.file.delete()) {
+                LOG.error("Can not remove log segment {}", segment.file);
+            }
+        }
+    }
+
+    public void close() {
+        sync();
+        try {
+            offsetFile.close();
+        } catch (IOException e) {
+            LOG.error("Error closing offset file of log {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private synchronized void saveCommitted(final long committed) throws IOException {
+        if (committed == savedCommitted) {
+            return;
+        }
+        offsetFile.seek(0);
+        offsetFile.writeLong(committed);
+        offsetFile.getChannel().force(false);
+        savedCommitted = committed;
+    }
+
+    private Segment head() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    private Segment next(final Segment segment) {
+        for (Segment next : segments) {
+            if (next.firstSequence > segment.firstSequence) {
+                return next;
+            }
+        }
+        throw new IllegalStateException("No segment after " + segment.file);
+    }
+
+    private Segment roll(final int recordLength) throws IOException {
+        final Segment previous = head();
+        if (previous != null) {
+            previous.buffer.force();
+        }
+        final File file = new File(directory, String.format("%020d", nextSequence) + SUFFIX);
+        final Segment segment = Segment.create(file, nextSequence, Math.max(segmentSize, HEADER_SIZE + 4 + recordLength + 4));
+        segments.add(segment);
+        if (readSequence == nextSequence) {
+            readSegment = segment;
+            readPosition = HEADER_SIZE;
+        }
+        return segment;
+    }
+
+    /**
+     * Moves the cursor to the change with the given sequence number.
+     */
+    private void seek(final long sequence) {
+        readSequence = sequence;
+        readSegment = null;
+        for (Segment segment : segments) {
+            if (segment.firstSequence <= sequence) {
+                readSegment = segment;
+            }
+        }
+        if (readSegment == null) {
+            readPosition = 0;
+            return;
+        }
+        readPosition = HEADER_SIZE;
+        for (long s = readSegment.firstSequence; s < sequence; s++) {
+            readPosition += 4 + readSegment.buffer.getInt(readPosition);
+        }
+    }
+
+    private File[] getSegmentFiles() {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches("\\d{20}\\" + SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // the names are zero padded sequence numbers
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final long firstSequence;
+        private final MappedByteBuffer buffer;
+        // Only known for the last segment, which is appended to
+        private int count;
+        // End of the records, or -1 if the segment has not been scanned yet
+        private int end;
+
+        private Segment(final File file, final long firstSequence, final MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstSequence = firstSequence;
+            this.buffer = buffer;
+        }
+
+        static Segment create(final File file, final long firstSequence, final int size) throws IOException {
+            final Segment segment = new Segment(file, firstSequence, map(file, size));
+            segment.buffer.putInt(0, MAGIC);
+            segment.buffer.put(4, VERSION);
+            segment.buffer.putLong(5, firstSequence);
+            segment.end = HEADER_SIZE;
+            return segment;
+        }
+
+        /**
+         * Opens an existing segment.
+         *
+         * @param scan whether to find the end of its records right away
+         */
+        static Segment open(final File file, final boolean scan) throws IOException {
+            final MappedByteBuffer buffer = map(file, (int) file.length());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a log segment: " + file);
+            }
+            if (buffer.get(4) > VERSION) {
+                throw new IOException("Unsupported log segment version " + buffer.get(4) + ": " + file);
+            }
+            final Segment segment = new Segment(file, buffer.getLong(5), buffer);
+            segment.end = -1;
+            if (scan) {
+                segment.end();
+            }
+            return segment;
+        }
+
+        /**
+         * @return the end of the records, the segment is scanned for it the first time
+         */
+        int end() {
+            if (end < 0) {
+                int position = HEADER_SIZE;
+                while (position + 4 <= buffer.capacity()) {
+                    final int length = buffer.getInt(position);
+                    if (length <= 0 || position + 4 + length > buffer.capacity()) {
+                        break;
+                    }
+                    position += 4 + length;
+                    count++;
+                }
+                end = position;
+            }
+            return end;
+        }
+
+        private static MappedByteBuffer map(final File file, final int size) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        int remaining() {
+            return buffer.capacity() - end;
+        }
+
+        /**
+         * Releases the mapping right away, like Elasticsearch does for its memory-mapped files, instead of when the
+         * buffer is garbage collected, which keeps the disk space of a deleted segment in use. The segment must not be
+         * used after this.
+         */
+        void unmap() {
+            ByteBufferAllocator.Cleaner.clean(buffer);
+        }
+
+        /**
+         * Writes the record and the end marker after it.
+         */
+        void append(final byte[] record) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position(end + 4);
+            view.put(record);
+            view.putInt(0);
+            buffer.putInt(end, record.length);
+            end += 4 + record.length;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * Executes the requests one after the other on the calling thread, which blocks until the responses are in.
+ */
+public final class SyncUpdaterTransport implements UpdaterTransport {
+    private static final ESLogger LOG = Loggers.getLogger(SyncUpdaterTransport.class);
+
+    private final HttpClientPool pool;
+    private final CloseableHttpClient httpClient;
+    // Whether the pool is closed with the transport
+    private final boolean ownsPool;
+
+    /**
+     * @param maxConnections the number of connections, which is the number of requests that can be executed concurrently
+     */
+    public SyncUpdaterTransport(final int maxConnections) {
+        this(HttpClientPool.create(maxConnections), true);
+    }
+
+    /**
+     * @param pool the pool shared with other transports, it stays open when the transport is closed
+     */
+    public SyncUpdaterTransport(final HttpClientPool pool) {
+        this(pool, false);
+    }
+
+    private SyncUpdaterTransport(final HttpClientPool pool, final boolean ownsPool) {
+        this.pool = pool;
+        this.httpClient = pool.client();
+        this.ownsPool = ownsPool;
+    }
+
+    @Override
+    public void execute(final HttpHost target, final List<HttpRequest> requests, final Callback callback) {
+        final List<HttpResponse> responses = new ArrayList<HttpResponse>(requests.size());
+        for (HttpRequest request : requests) {
+            responses.add(execute(target, request));
+        }
+        callback.completed(responses);
+    }
+
+    private HttpResponse execute(final HttpHost target, final HttpRequest request) {
+        pool.executed(1);
+        try {
+            final CloseableHttpResponse response = httpClient.execute(target, request);
+            try {
+                final HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    final ByteArrayEntity buffered = new ByteArrayEntity(EntityUtils.toByteArray(entity));
+                    buffered.setContentType(entity.getContentType());
+                    response.setEntity(buffered);
+                }
+                return response;
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Error executing request {} on {}: {}", request.getRequestLine(), target, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "synchronous http";
+    }
+}
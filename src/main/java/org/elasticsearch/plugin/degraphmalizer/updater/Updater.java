@@ -1,82 +1,526 @@
 package org.elasticsearch.plugin.degraphmalizer.updater;
 
 import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.netty.util.Timer;
 import org.elasticsearch.index.aliases.IndexAlias;
 import org.elasticsearch.index.aliases.IndexAliasesService;
+import org.elasticsearch.index.shard.service.IndexShard;
 
 /**
  * This class handles Change instances. The class can be configured via elasticsearch.yml (see README.md for
  * more information). The Updater manages a queue of Change objects, executes HTTP requests for these
  * changes and retries changes when HTTP requests fail.
+ * <p/>
+ * Changes are spread over a number of partitions by type and id, each partition sends one request at a time. So the
+ * versions of a document are always sent in order, while different documents can be sent concurrently. Each document
+ * is sent to the same Degraphmalizer, see {@link Endpoints}.
+ * <p/>
+ * Each shard of the index on this node puts its changes in an ingest ring of its own, so the indexing threads of
+ * different shards do not contend. A single ingester merges the rings into the queue. All versions of a document come
+ * from the same shard, so they reach the queue in order.
  */
-public final class Updater implements Runnable {
+public final class Updater {
+    /**
+     * How a change for the index and all its aliases is sent.
+     */
+    public enum AliasFanOut {
+        /** A request for the index and for each alias */
+        CLIENT,
+        /** The requests for the index and its aliases go in a single batch request, also without batches */
+        BATCH,
+        /** A single request for the index with the names of the aliases, the receiver fans out */
+        RECEIVER
+    }
+
     private static final ESLogger LOG = Loggers.getLogger(Updater.class);
-    private static final int NAPTIME = 5 * 1000;
-    private final HttpClient httpClient;
+    private static final String BATCH_PATH = "/_batch";
+    private static final int INGEST_RING_SIZE = 4096;
+    // Shard of the changes that are not added by a shard
+    private static final int NO_SHARD = -1;
+    private static final int INGEST_DRAIN_BATCH = 1024;
+    private final UpdaterTransport transport;
+    private final Endpoints endpoints;
 
-    private final String uriScheme;
-    private final String uriHost;
-    private final int uriPort;
-    private final long retryDelayOnFailureInMillis;
-    private final int maxRetries;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreakerPolicy breakerPolicy;
+    // The circuit breakers of the index, per Degraphmalizer
+    private final ConcurrentMap<Endpoints.Endpoint, CircuitBreaker> breakers = new ConcurrentHashMap<Endpoints.Endpoint, CircuitBreaker>();
+    private final ConcurrencyLimit concurrencyLimit;
+    private final int batchSize;
+    private final long batchTimeoutInMillis;
 
     private final String index;
 	private final IndexAliasesService aliasesService;
+    // The names of the aliases, resolved when first needed and replaced when they change
+    private final AtomicReference<List<String>> aliases = new AtomicReference<List<String>>();
+    private final AliasFanOut aliasFanOut;
+    private final RequestPaths paths = new RequestPaths();
+
+    private final DeadLetterLog deadLetters;
 
-    private File errorFile;
+    // The shards of the index on this node, by shard id
+    private final ConcurrentMap<Integer, IndexShard> shards = new ConcurrentHashMap<Integer, IndexShard>();
+    private final File replayCheckpoint;
+    // The replay of the index, guarded by this
+    private IndexReplay replay;
 
-    private UpdaterQueue queue;
-    private boolean shutdownInProgress = false;
-    private boolean sending = false;
+    private final UpdaterQueue queue;
+    private final UpdaterMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final int weight;
 
+    // Changes from the indexing threads on their way to the queue, by shard
+    private final ConcurrentMap<Integer, ShardIngest> ingests = new ConcurrentHashMap<Integer, ShardIngest>();
+    private final AtomicBoolean ingestScheduled = new AtomicBoolean();
 
-    public Updater(final String index, IndexAliasesService indexAliases, final String uriScheme, final String uriHost, final int uriPort, final long retryDelayOnFailureInMillis, final String logPath, final int queueLimit, final int maxRetries) {
-        this.index = index;
-		this.aliasesService = indexAliases;
-        this.uriScheme = uriScheme;
-        this.uriHost = uriHost;
-        this.uriPort = uriPort;
-        this.retryDelayOnFailureInMillis = retryDelayOnFailureInMillis;
-        this.maxRetries = maxRetries;
+    private final Partition[] partitions;
+    private final Task dispatcher = new Dispatcher();
+    // Number of changes taken from the queue that are not sent yet, bounded by bufferLimit
+    private final AtomicInteger buffered = new AtomicInteger();
+    private final int bufferLimit;
 
-        queue = new UpdaterQueue(logPath, index, queueLimit);
-        new Thread(queue,"updaterqueue-" + index).start();
+    // Number of tasks that are scheduled or running, the last one to finish after shutdown stops the updater
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private volatile boolean shutdownInProgress = false;
+    private volatile boolean sending = false;
 
-        errorFile = new File(logPath, index + "-error.log");
 
+    /**
+     * @return a builder for an updater of the index
+     */
+    public static Builder builder(final String index) {
+        return new Builder(index);
+    }
+
+    private Updater(final Builder builder) {
+        this.index = builder.index;
+		this.aliasesService = builder.aliasesService;
+        this.transport = builder.transport;
+        this.endpoints = builder.endpoints;
+        this.retryPolicy = builder.retryPolicy;
+        this.breakerPolicy = builder.breakerPolicy;
+        this.aliasFanOut = builder.aliasFanOut;
+        this.batchSize = builder.batchSize;
+        this.batchTimeoutInMillis = builder.batchTimeoutInMillis;
+        this.scheduler = builder.scheduler;
+        this.weight = builder.weight;
+        this.deadLetters = builder.deadLetters;
+        this.replayCheckpoint = new File(builder.logPath, index + "-replay");
 
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, 50000);
-        HttpConnectionParams.setSoTimeout(params, 50000);
-        httpClient = new DefaultHttpClient(params);
+        final int concurrency = builder.concurrency;
+        partitions = new Partition[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            partitions[i] = new Partition();
+        }
+        bufferLimit = 2 * concurrency * batchSize;
+        this.concurrencyLimit = builder.concurrencyLimit == null ? new ConcurrencyLimit(concurrency, 0) : builder.concurrencyLimit;
 
+        queue = new UpdaterQueue(builder.logPath, index, builder.queueLimit, builder.log, builder.dirtyDocuments, scheduler, builder.retryTimer, builder.budget, builder.lanes, wakeUp);
+        metrics = queue.getMetrics();
 
-        LOG.info("Updater instantiated for index {}. Updates will be sent to {}://{}:{}. Retry delay on failure is {} milliseconds.", index, uriScheme, uriHost, uriPort, retryDelayOnFailureInMillis);
-        LOG.info("Updater will overflow in {} after limit of {} has been reached, messages will be retried {} times ", logPath, queueLimit, maxRetries);
+        LOG.info("Updater instantiated for index {}. Updates will be sent to {} with {}. Failed changes get {}.", index, endpoints, transport, retryPolicy);
+        LOG.info("Updater will overflow in {} after limit of {} has been reached, overflow policy is {}", builder.logPath, builder.queueLimit, builder.budget);
+        LOG.info("Updater queue has {}", builder.lanes);
+        if (batchSize > 1) {
+            LOG.info("Updater will send batches of at most {} changes, waiting at most {} milliseconds to fill a batch", batchSize, batchTimeoutInMillis);
+        }
+        if (concurrency > 1) {
+            LOG.info("Updater will send at most {} requests concurrently", concurrency);
+            if (concurrencyLimit.tolerance() > 0) {
+                LOG.info("Updater will send fewer requests concurrently when they take more than {} times the lowest latency", concurrencyLimit.tolerance());
+            }
+        }
+        if (breakerPolicy.isEnabled()) {
+            LOG.info("Updater has {} per Degraphmalizer", breakerPolicy);
+        }
+        if (aliasFanOut != AliasFanOut.CLIENT) {
+            LOG.info("Updater will send changes for the aliases of the index with fan out {}", aliasFanOut.name().toLowerCase());
+        }
     }
 
+    /**
+     * Collects the settings of an updater. The defaults are those of the plugin settings; the transport, endpoints,
+     * log path, dead letter log, scheduler and retry timer have to be given.
+     */
+    public static final class Builder {
+        private final String index;
+        private IndexAliasesService aliasesService;
+        private UpdaterTransport transport;
+        private Endpoints endpoints;
+        private RetryPolicy retryPolicy = new RetryPolicy(5000, 60000, 0.2, 5);
+        private CircuitBreakerPolicy breakerPolicy = CircuitBreakerPolicy.disabled();
+        private String logPath;
+        private SegmentLog log;
+        private DeadLetterLog deadLetters;
+        private boolean dirtyDocuments;
+        private OverflowBudget budget = OverflowBudget.unlimited();
+        private WeightedLanes lanes = new WeightedLanes();
+        private AliasFanOut aliasFanOut = AliasFanOut.CLIENT;
+        private int queueLimit = 100000;
+        private int batchSize = 1;
+        private long batchTimeoutInMillis = 100;
+        private ScheduledExecutorService scheduler;
+        private Timer retryTimer;
+        private int weight = 1;
+        private int concurrency = 1;
+        private ConcurrencyLimit concurrencyLimit;
+
+        private Builder(final String index) {
+            this.index = index;
+        }
+
+        public Builder aliases(final IndexAliasesService aliasesService) {
+            this.aliasesService = aliasesService;
+            return this;
+        }
+
+        /**
+         * @param transport sends the requests, it is closed when the updater stops
+         */
+        public Builder transport(final UpdaterTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * @param endpoints the Degraphmalizers the changes are spread over, shared by all updaters
+         */
+        public Builder endpoints(final Endpoints endpoints) {
+            this.endpoints = endpoints;
+            return this;
+        }
+
+        /**
+         * @param retryPolicy decides when failed changes are retried
+         */
+        public Builder retryPolicy(final RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * @param breakerPolicy decides when the calls to a Degraphmalizer are stopped for a while
+         */
+        public Builder breakerPolicy(final CircuitBreakerPolicy breakerPolicy) {
+            this.breakerPolicy = breakerPolicy;
+            return this;
+        }
+
+        public Builder logPath(final String logPath) {
+            this.logPath = logPath;
+            return this;
+        }
+
+        /**
+         * @param log keeps the queue of changes, or null to keep the queue in memory
+         */
+        public Builder log(final SegmentLog log) {
+            this.log = log;
+            return this;
+        }
+
+        /**
+         * @param deadLetters keeps the changes that are given up on, it is closed when the updater stops
+         */
+        public Builder deadLetters(final DeadLetterLog deadLetters) {
+            this.deadLetters = deadLetters;
+            return this;
+        }
+
+        /**
+         * @param dirtyDocuments true to queue only the latest version of each changed document, without a log
+         */
+        public Builder dirtyDocuments(final boolean dirtyDocuments) {
+            this.dirtyDocuments = dirtyDocuments;
+            return this;
+        }
+
+        /**
+         * @param budget limits the changes the queue keeps on disk
+         */
+        public Builder budget(final OverflowBudget budget) {
+            this.budget = budget;
+            return this;
+        }
+
+        /**
+         * @param lanes the lanes of the queue, with their weights
+         */
+        public Builder lanes(final WeightedLanes lanes) {
+            this.lanes = lanes;
+            return this;
+        }
+
+        /**
+         * @param aliasFanOut how a change is sent to the index and its aliases
+         */
+        public Builder aliasFanOut(final AliasFanOut aliasFanOut) {
+            this.aliasFanOut = aliasFanOut;
+            return this;
+        }
+
+        public Builder queueLimit(final int queueLimit) {
+            this.queueLimit = queueLimit;
+            return this;
+        }
+
+        public Builder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder batchTimeoutInMillis(final long batchTimeoutInMillis) {
+            this.batchTimeoutInMillis = batchTimeoutInMillis;
+            return this;
+        }
+
+        /**
+         * @param scheduler the worker pool that is shared by all updaters
+         */
+        public Builder scheduler(final ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @param retryTimer holds the retries until they are due, shared by all updaters
+         */
+        public Builder retryTimer(final Timer retryTimer) {
+            this.retryTimer = retryTimer;
+            return this;
+        }
+
+        /**
+         * @param weight the number of requests a partition may send per turn
+         */
+        public Builder weight(final int weight) {
+            this.weight = weight;
+            return this;
+        }
+
+        /**
+         * @param concurrency the number of partitions, and so the maximum number of requests in flight
+         */
+        public Builder concurrency(final int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * @param concurrencyLimit limits the requests in flight of all partitions, it may allow fewer than concurrency.
+         *                         Without one all partitions may send at the same time.
+         */
+        public Builder concurrencyLimit(final ConcurrencyLimit concurrencyLimit) {
+            this.concurrencyLimit = concurrencyLimit;
+            return this;
+        }
+
+        public Updater build() {
+            return new Updater(this);
+        }
+    }
+
+    /**
+     * Replaces the aliases of the index, after they changed in the cluster state.
+     */
+    public void setAliases(final Collection<String> names) {
+        aliases.set(Collections.unmodifiableList(new ArrayList<String>(names)));
+        LOG.info("Aliases of index {} are now {}", index, names);
+    }
+
+    /**
+     * @return the names of the aliases of the index, resolved only once
+     */
+    private List<String> aliases() {
+        final List<String> names = aliases.get();
+        if (names != null) {
+            return names;
+        }
+        final List<String> resolved = new ArrayList<String>();
+        for (IndexAlias alias : aliasesService) {
+            resolved.add(alias.alias());
+        }
+        // aliases that were set in the meantime are newer
+        aliases.compareAndSet(null, Collections.unmodifiableList(resolved));
+        return aliases.get();
+    }
+
+    /**
+     * Stops the updater after the running tasks, if any. The queue is saved to disk.
+     */
     public void shutdown() {
+        stopReplay();
         shutdownInProgress = true;
+        if (active.get() == 0) {
+            stop();
+        }
     }
 
     public int getQueueSize() {
-        return queue.size();
+        int ingesting = 0;
+        for (ShardIngest ingest : ingests.values()) {
+            ingesting += ingest.ring.size();
+        }
+        return ingesting + queue.size() + buffered.get();
+    }
+
+    /**
+     * @return the number of changes received from each shard, by index and shard
+     */
+    public Map<String, Long> getShardChangeCounts() {
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        for (ShardIngest ingest : ingests.values()) {
+            counts.put(ingest.name, ingest.ring.offered());
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of changes of each shard that did not reach the queue yet, by index and shard
+     */
+    public Map<String, Integer> getShardIngestSizes() {
+        final Map<String, Integer> sizes = new HashMap<String, Integer>();
+        for (ShardIngest ingest : ingests.values()) {
+            sizes.put(ingest.name, ingest.ring.size());
+        }
+        return sizes;
+    }
+
+    /**
+     * @return the number of times an indexing thread of each shard found the ring full, by index and shard
+     */
+    public Map<String, Long> getShardIngestStalls() {
+        final Map<String, Long> stalls = new HashMap<String, Long>();
+        for (ShardIngest ingest : ingests.values()) {
+            stalls.put(ingest.name, ingest.stalls.get());
+        }
+        return stalls;
+    }
+
+    public long getCoalescedCount() {
+        return queue.getCoalescedCount();
+    }
+
+    UpdaterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the time the oldest change in each lane of the queue has been due
+     */
+    public Map<String, Long> getLaneAgeMillis() {
+        return queue.getLaneAgeMillis();
+    }
+
+    /**
+     * @return the state of the circuit breaker for each Degraphmalizer the index sent changes to
+     */
+    public Map<String, String> getCircuitBreakers() {
+        final Map<String, String> states = new HashMap<String, String>();
+        for (CircuitBreaker breaker : breakers.values()) {
+            states.put(breaker.name(), breaker.state().name().toLowerCase());
+        }
+        return states;
+    }
+
+    /**
+     * Adds a shard of the index that was started on this node, its documents are replayed if it is a primary.
+     */
+    public void addShard(final IndexShard shard) {
+        shards.put(shard.shardId().id(), shard);
+    }
+
+    /**
+     * Removes a shard that is closed, for instance because it moved to another node. The changes of the shard that did
+     * not reach the queue yet are handed off to it.
+     */
+    public void removeShard(final int shardId) {
+        shards.remove(shardId);
+        final ShardIngest ingest = ingests.remove(shardId);
+        if (ingest != null) {
+            ingest.closed = true;
+            final int handedOff = drain(ingest);
+            LOG.info("Shard {} of index {} is closed, {} of its changes were handed off to the queue", shardId, index, handedOff);
+        }
+    }
+
+    /**
+     * Starts a replay of all documents in the primary shards of the index on this node, or resumes a replay that was
+     * stopped.
+     *
+     * @param ratePerSecond the maximum number of documents queued per second
+     * @return false if a replay is running already
+     */
+    public synchronized boolean startReplay(final int ratePerSecond) {
+        if (replay != null && replay.isRunning()) {
+            return false;
+        }
+        replay = new IndexReplay(index, shards, queue, replayCheckpoint, ratePerSecond, scheduler);
+        replay.start();
+        return true;
+    }
+
+    /**
+     * Stops the replay, it goes on where it stopped when it is started again.
+     */
+    public synchronized void stopReplay() {
+        if (replay != null) {
+            replay.stop();
+        }
+    }
+
+    /**
+     * Stops the replay, it starts from the first document when it is started again.
+     */
+    public synchronized void cancelReplay() {
+        if (replay == null) {
+            replay = new IndexReplay(index, shards, queue, replayCheckpoint, 1, scheduler);
+        }
+        replay.cancel();
+    }
+
+    /**
+     * @return the progress of the replay for each shard, empty if there was no replay
+     */
+    public synchronized Map<String, String> getReplayStatus() {
+        if (replay == null) {
+            return Collections.emptyMap();
+        }
+        return replay.getStatus();
     }
 
     public void flushQueue() {
@@ -89,136 +533,789 @@ public final class Updater implements Runnable {
 
     public void startSending() {
         sending = true;
+        dispatcher.schedule();
+        for (Partition partition : partitions) {
+            partition.schedule();
+        }
+    }
+
+    private final Runnable wakeUp = new Runnable() {
+        @Override
+        public void run() {
+            dispatcher.schedule();
+        }
+    };
+
+    private boolean enter() {
+        active.incrementAndGet();
+        if (shutdownInProgress) {
+            leave();
+            return false;
+        }
+        return true;
+    }
+
+    private void leave() {
+        if (active.decrementAndGet() == 0 && shutdownInProgress) {
+            stop();
+        }
+    }
+
+    private void stop() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        drainIngestRings();
+        for (Partition partition : partitions) {
+            partition.returnToQueue();
+        }
+        queue.shutdown();
+        deadLetters.close();
+        transport.close();
+        LOG.info("Updater stopped for index {}.", index);
     }
 
-    @Override
-	public void run() {
-		while (true) {
-            Change change = null;
+    /**
+     * Work for the shared worker pool. A task waits in line at most once and never runs concurrently with itself.
+     */
+    private abstract class Task implements Runnable {
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong wakeUpAtMillis = new AtomicLong();
+
+        private final Runnable wakeUp = new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        };
+
+        /**
+         * Puts the task at the back of the line of the worker pool, unless it is already waiting there or running.
+         */
+        void schedule() {
+            if (sending && !shutdownInProgress && scheduled.compareAndSet(false, true)) {
+                if (!enter()) {
+                    return;
+                }
+                try {
+                    scheduler.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    LOG.warn("Updater for index {} could not be scheduled, the worker pool is shut down", index);
+                    leave();
+                }
+            }
+        }
+
+        /**
+         * Schedules the task after the delay, unless an earlier wake up is scheduled already.
+         */
+        void scheduleIn(final long delayInMillis) {
+            final long now = System.currentTimeMillis();
+            final long at = now + delayInMillis;
+            final long scheduledAt = wakeUpAtMillis.get();
+            if (scheduledAt > now && scheduledAt <= at) {
+                return;
+            }
+            wakeUpAtMillis.set(at);
             try {
-                if (sending) {
-                    change = queue.take().thing();
-                    perform(change);
+                scheduler.schedule(wakeUp, delayInMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Wake up of updater for index {} rejected, the worker pool is shut down", index);
+            }
+        }
+
+        @Override
+        public final void run() {
+            try {
+                if (sending && !shutdownInProgress) {
+                    runOnce();
+                }
+            } catch (Exception e) {
+                LOG.error("Updater for index {} got exception: {}", index, e);
+            } finally {
+                scheduled.set(false);
+                leave();
+            }
+            if (hasWork()) {
+                schedule();
+            }
+        }
+
+        abstract void runOnce();
+
+        /**
+         * Checked after the task has run, so work that arrived while running is not missed.
+         */
+        abstract boolean hasWork();
+    }
+
+    /**
+     * Moves changes that are due from the queue to the partitions. There is only one dispatcher per updater, so the
+     * changes for a partition arrive in queue order.
+     */
+    private final class Dispatcher extends Task {
+        @Override
+        void runOnce() {
+            final long paused = pausedForMillis();
+            if (paused > 0) {
+                scheduleIn(paused);
+                return;
+            }
+            while (buffered.get() < bufferLimit) {
+                final DelayedImpl<Change> delayed = queue.poll();
+                if (delayed == null) {
+                    break;
+                }
+                final Partition partition = partitions[partition(delayed.thing())];
+                buffered.incrementAndGet();
+                partition.buffer.add(delayed);
+                partition.schedule();
+            }
+        }
+
+        @Override
+        boolean hasWork() {
+            return buffered.get() < bufferLimit && queue.hasReady() && pausedForMillis() == 0;
+        }
+    }
+
+    /**
+     * @return the time until a circuit breaker of the index lets a call through, 0 if one does now. While the breakers
+     * of all Degraphmalizers are open the queue is not drained.
+     */
+    private long pausedForMillis() {
+        if (!breakerPolicy.isEnabled()) {
+            return 0;
+        }
+        final long now = System.currentTimeMillis();
+        long paused = Long.MAX_VALUE;
+        for (Endpoints.Endpoint endpoint : endpoints.endpoints()) {
+            paused = Math.min(paused, breaker(endpoint).millisUntilCall(now));
+        }
+        return paused;
+    }
+
+    private CircuitBreaker breaker(final Endpoints.Endpoint endpoint) {
+        CircuitBreaker breaker = breakers.get(endpoint);
+        if (breaker == null) {
+            final CircuitBreaker created = new CircuitBreaker(index + " on " + endpoint, breakerPolicy);
+            breaker = breakers.putIfAbsent(endpoint, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Updates the health of the Degraphmalizer, the circuit breaker and the concurrency limit after a call.
+     */
+    private void recordOutcome(final Endpoints.Endpoint endpoint, final List<HttpResponse> responses, final long latencyMicros) {
+        final boolean healthy = isHealthy(responses);
+        if (healthy) {
+            endpoint.succeeded();
+        } else {
+            endpoint.failed();
+        }
+        final boolean failure = breakerPolicy.isFailure(healthy, latencyMicros / 1000);
+        if (breaker(endpoint).record(failure, System.currentTimeMillis())) {
+            metrics.breakerOpened();
+        }
+        concurrencyLimit.record(failure, latencyMicros);
+        metrics.concurrencyLimit(concurrencyLimit.limit());
+    }
+
+    /**
+     * Records the time since the changes were added for the changes that succeeded on the index and all its aliases.
+     */
+    private void recordDelivered(final List<DelayedImpl<Change>> sent, final List<BatchItem> failed) {
+        final Set<Change> failedChanges = Collections.newSetFromMap(new IdentityHashMap<Change, Boolean>());
+        for (BatchItem item : failed) {
+            failedChanges.add(item.change);
+        }
+        final long now = System.currentTimeMillis();
+        for (DelayedImpl<Change> change : sent) {
+            if (!failedChanges.contains(change.thing())) {
+                metrics.delivered(now - change.baseMillis());
+            }
+        }
+    }
+
+    /**
+     * Puts changes back in the queue while the circuit breaker of their Degraphmalizer is open. They are not retried,
+     * so they keep their retries, and the time they were added, which the queue latency is measured from.
+     */
+    private void hold(final List<DelayedImpl<Change>> changes, final long delayInMillis) {
+        for (DelayedImpl<Change> change : changes) {
+            queue.add(change.delayedFromNow(Math.max(delayInMillis, 1)));
+        }
+        metrics.held(changes.size());
+    }
+
+    private int partition(final Change change) {
+        final int hash = 31 * change.type().hashCode() + change.id().hashCode();
+        return (hash & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    /**
+     * Sends the changes for a subset of the documents, one request at a time. A turn sends at most 'weight' requests,
+     * so other partitions and updaters get their turn as well. With an asynchronous transport the turn ends when the
+     * request is started, the partition is scheduled again when the request completes.
+     */
+    private final class Partition extends Task {
+        private final Queue<DelayedImpl<Change>> buffer = new ConcurrentLinkedQueue<DelayedImpl<Change>>();
+
+        // Changes that wait for the batch to fill up, only touched by the running turn
+        private List<DelayedImpl<Change>> batch = new ArrayList<DelayedImpl<Change>>();
+        private long batchStartedMillis;
+
+        private volatile boolean inFlight = false;
+        // Set while the partition waits for a call of another partition to complete, under the concurrency limit
+        private volatile boolean blocked = false;
+        // Set while the batch is full, or waited long enough, and only waits for the concurrency limit
+        private volatile boolean batchReady = false;
+
+        @Override
+        void runOnce() {
+            for (int i = 0; i < weight && sending && !shutdownInProgress && !inFlight; i++) {
+                fillBatch();
+                if (batch.isEmpty()) {
+                    return;
+                }
+                if (batch.size() < batchSize) {
+                    final long waited = System.currentTimeMillis() - batchStartedMillis;
+                    if (waited < batchTimeoutInMillis) {
+                        scheduleIn(batchTimeoutInMillis - waited);
+                        return;
+                    }
+                }
+                // blocked is set before the limit is checked, so a call that completes in between wakes up the
+                // partition. A wake up while this turn runs does not schedule a turn, batchReady makes sure the
+                // partition is scheduled again when the turn ends.
+                batchReady = true;
+                blocked = true;
+                if (!concurrencyLimit.tryAcquire()) {
+                    return;
+                }
+                blocked = false;
+                batchReady = false;
+
+                final List<DelayedImpl<Change>> changes = batch;
+                batch = new ArrayList<DelayedImpl<Change>>();
+                send(changes);
+            }
+        }
+
+        @Override
+        boolean hasWork() {
+            return !inFlight && !blocked && (batchReady || !buffer.isEmpty());
+        }
+
+        private void fillBatch() {
+            while (batch.size() < batchSize) {
+                final DelayedImpl<Change> change = buffer.poll();
+                if (change == null) {
+                    return;
+                }
+                if (batch.isEmpty()) {
+                    batchStartedMillis = System.currentTimeMillis();
+                }
+                batch.add(change);
+            }
+        }
+
+        /**
+         * The changes are sent with a call per Degraphmalizer, the partition waits for all of them. The changes for a
+         * Degraphmalizer with an open circuit breaker go back in the queue. The changes are acknowledged when the
+         * failed ones are queued for retry.
+         */
+        private void send(final List<DelayedImpl<Change>> changes) {
+            final Map<Endpoints.Endpoint, List<DelayedImpl<Change>>> calls = byEndpoint(changes);
+            final long now = System.currentTimeMillis();
+            final Iterator<Map.Entry<Endpoints.Endpoint, List<DelayedImpl<Change>>>> iterator = calls.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Endpoints.Endpoint, List<DelayedImpl<Change>>> call = iterator.next();
+                final CircuitBreaker breaker = breaker(call.getKey());
+                if (!breaker.allowCall(now)) {
+                    hold(call.getValue(), breaker.millisUntilCall(now));
+                    iterator.remove();
                 } else {
-                    Thread.sleep(NAPTIME);
+                    metrics.sent(call.getValue().size());
                 }
+            }
+            if (!calls.isEmpty() && metrics.firstSent()) {
+                LOG.info("First change for index {} sent {} milliseconds after start, {} changes were recovered from disk", index, metrics.timeToFirstSendMillis(), metrics.recoveredChanges());
+            }
+            final long startedNanos = System.nanoTime();
+            final AtomicInteger outstandingCalls = new AtomicInteger(calls.size());
+            inFlight = true;
+            // The request counts as a running task, so the updater does not stop before the response is in. The
+            // running turn is counted as well, so the updater cannot have stopped already.
+            active.incrementAndGet();
+            if (calls.isEmpty()) {
+                allCompleted(changes, -1);
+                return;
+            }
+            for (Map.Entry<Endpoints.Endpoint, List<DelayedImpl<Change>>> call : calls.entrySet()) {
+                final Endpoints.Endpoint endpoint = call.getKey();
+                final List<DelayedImpl<Change>> sent = call.getValue();
+                final List<BatchItem> items = toItems(sent);
+                transport.execute(endpoint.host(), toRequests(items), new UpdaterTransport.Callback() {
+                    @Override
+                    public void completed(final List<HttpResponse> responses) {
+                        try {
+                            recordOutcome(endpoint, responses, (System.nanoTime() - startedNanos) / 1000);
+                            final List<BatchItem> failed = failedItems(items, responses);
+                            recordDelivered(sent, failed);
+                            for (BatchItem item : failed) {
+                                if (isSuperseded(item.change, changes) || isSuperseded(item.change, buffer)) {
+                                    LOG.debug("Not retrying change {} on {}, a newer version follows", item.change, item.indexNameOrAlias);
+                                } else {
+                                    retry(item.change, item.retryTarget());
+                                }
+                            }
+                        } finally {
+                            if (outstandingCalls.decrementAndGet() == 0) {
+                                allCompleted(changes, startedNanos);
+                            }
+                        }
+                    }
+                });
+            }
+        }
 
-				if (shutdownInProgress) {
-                    queue.shutdown();
-					break;
+        /**
+         * @param startedNanos the time the calls were made, or -1 if no call was made
+         */
+        private void allCompleted(final List<DelayedImpl<Change>> changes, final long startedNanos) {
+            if (startedNanos >= 0) {
+                metrics.responded((System.nanoTime() - startedNanos) / 1000);
+            }
+            try {
+                for (DelayedImpl<Change> change : changes) {
+                    queue.acknowledge(change);
+                }
+                buffered.addAndGet(-changes.size());
+            } finally {
+                inFlight = false;
+                concurrencyLimit.release();
+                leave();
+            }
+            schedule();
+            for (Partition partition : partitions) {
+                if (partition.blocked) {
+                    partition.blocked = false;
+                    partition.schedule();
                 }
-            } catch (Exception e) {
-                LOG.error("Updater for index {} got exception: {} for the change {}", new Object[]{index, e, change});
             }
+            dispatcher.schedule();
         }
-        httpClient.getConnectionManager().shutdown();
-        queue.shutdown();
-        LOG.info("Updater stopped for index {}.", index);
 
+        /**
+         * Puts the changes that were not sent back in the queue, to be saved on shutdown.
+         */
+        private void returnToQueue() {
+            for (DelayedImpl<Change> change : batch) {
+                queue.add(change);
+            }
+            batch.clear();
+            batchReady = false;
+            DelayedImpl<Change> change;
+            while ((change = buffer.poll()) != null) {
+                queue.add(change);
+            }
+        }
+    }
+
+    /**
+     * A retry of an old version must not overtake a newer version of the same document that is sent after it.
+     */
+    private static boolean isSuperseded(final Change change, final Iterable<DelayedImpl<Change>> changes) {
+        for (DelayedImpl<Change> delayed : changes) {
+            final Change other = delayed.thing();
+            if (other.version() > change.version() && other.id().equals(change.id()) && other.type().equals(change.type())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void add(final Change change) {
-        queue.add(DelayedImpl.immediate(change));
-        LOG.trace("Received {}", change);
+        add(change.action(), change.type(), change.id(), change.version());
+    }
+
+    public void add(final Action action, final String type, final String id, final long version) {
+        add(NO_SHARD, action, type, id, version);
     }
 
-    private void perform(final Change change) {
-        if (change.getIndexNameOrAlias() == null) {
-            perform(change, index);
-            for (IndexAlias alias : aliasesService) {
-                perform(change, alias.alias());
+    /**
+     * Called on the indexing threads, so it only puts the change in the ingest ring of the shard and wakes up the
+     * ingester. Only when the ring is full the calling thread moves changes to the queue itself. With the block
+     * overflow policy the indexing thread waits for room first, moving changes to the queue never waits.
+     */
+    public void add(final int shard, final Action action, final String type, final String id, final long version) {
+        queue.awaitRoom();
+        final ShardIngest ingest = ingest(shard);
+        while (!ingest.ring.offer(action, type, id, version)) {
+            ingest.stalls.incrementAndGet();
+            if (ingest.closed) {
+                drain(ingest);
+            } else {
+                drainIngestRings();
+            }
+        }
+        if (ingest.closed) {
+            // the shard was removed while the change was put in its ring
+            drain(ingest);
+            return;
+        }
+        if (!ingestScheduled.get() && ingestScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(ingester);
+            } catch (RejectedExecutionException e) {
+                ingestScheduled.set(false);
+                drainIngestRings();
             }
-        } else {
-            perform(change, change.getIndexNameOrAlias());
         }
     }
 
-	private void perform(final Change change, String indexNameOrAlias) {
-		final HttpRequestBase request = toRequest(change, indexNameOrAlias);
+    private ShardIngest ingest(final int shard) {
+        final ShardIngest ingest = ingests.get(shard);
+        if (ingest != null) {
+            return ingest;
+        }
+        final ShardIngest created = new ShardIngest(shard == NO_SHARD ? index : index + "[" + shard + "]");
+        final ShardIngest existing = ingests.putIfAbsent(shard, created);
+        return existing == null ? created : existing;
+    }
 
-		try {
-			final HttpResponse response = httpClient.execute(request);
+    /**
+     * Moves the changes from the ingest ring to the queue. It does not count as an active task: it does not depend on
+     * sending, and the updater drains the ring itself when it stops.
+     */
+    private final Runnable ingester = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drainIngestRings();
+            } catch (Exception e) {
+                LOG.error("Updater for index {} got exception moving changes to the queue: {}", index, e);
+            } finally {
+                ingestScheduled.set(false);
+            }
+            if (isIngesting() && ingestScheduled.compareAndSet(false, true)) {
+                try {
+                    scheduler.execute(this);
+                } catch (RejectedExecutionException e) {
+                    ingestScheduled.set(false);
+                }
+            }
+        }
+    };
 
-			if (!isSuccessful(response)) {
-				LOG.warn("Request {} {} was not successful. Response status code: {}.", request.getMethod(), request.getURI(), response.getStatusLine().getStatusCode());
-				retry(change, indexNameOrAlias);
-			} else {
-				LOG.debug("Change performed: {} : {}", indexNameOrAlias, change);
-			}
+    private final IngestRing.Consumer toQueue = new IngestRing.Consumer() {
+        @Override
+        public void accept(final Action action, final String type, final String id, final long version, final long enqueuedMillis) {
+            final Change change = Change.create(action, type, id, version, null, 0);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Received {}", change);
+            }
+            // the time in the ring counts as time in the queue
+            queue.add(new DelayedImpl<Change>(change, 0, enqueuedMillis));
+        }
+    };
 
-			EntityUtils.consume(response.getEntity());
-		} catch (IOException e) {
-			LOG.warn("Error executing request {} {}: {}", request.getMethod(), request.getURI(), e.getMessage());
-			retry(change, indexNameOrAlias);
-		}
-	}
+    /**
+     * Merges the rings of the shards into the queue, a batch of each ring in turn until they are empty.
+     */
+    private synchronized void drainIngestRings() {
+        boolean drained;
+        do {
+            drained = false;
+            for (ShardIngest ingest : ingests.values()) {
+                if (ingest.ring.drain(toQueue, INGEST_DRAIN_BATCH) > 0) {
+                    drained = true;
+                }
+            }
+        } while (drained);
+    }
 
-    private HttpRequestBase toRequest(final Change change, String indexNameOrAlias) {
+    /**
+     * @return the number of changes moved from the ring of a shard to the queue
+     */
+    private synchronized int drain(final ShardIngest ingest) {
+        int drained = 0;
+        int batch;
+        while ((batch = ingest.ring.drain(toQueue, INGEST_DRAIN_BATCH)) > 0) {
+            drained += batch;
+        }
+        return drained;
+    }
+
+    private boolean isIngesting() {
+        for (ShardIngest ingest : ingests.values()) {
+            if (!ingest.ring.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A change without index or alias goes to the index and all its aliases, or only to the index with the aliases as
+     * a parameter if the receiver fans out. A retry for a single index or alias only goes there.
+     */
+    private List<BatchItem> toItems(final List<DelayedImpl<Change>> changes) {
+        final List<BatchItem> items = new ArrayList<BatchItem>();
+        for (DelayedImpl<Change> delayed : changes) {
+            final Change change = delayed.thing();
+            if (change.getIndexNameOrAlias() == null) {
+                final List<String> names = aliases();
+                if (aliasFanOut == AliasFanOut.RECEIVER) {
+                    items.add(new BatchItem(change, index, names));
+                } else {
+                    items.add(new BatchItem(change, index));
+                    for (String alias : names) {
+                        items.add(new BatchItem(change, alias));
+                    }
+                }
+            } else {
+                items.add(new BatchItem(change, change.getIndexNameOrAlias()));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Groups the changes by the Degraphmalizer of their document.
+     */
+    private Map<Endpoints.Endpoint, List<DelayedImpl<Change>>> byEndpoint(final List<DelayedImpl<Change>> changes) {
+        final Map<Endpoints.Endpoint, List<DelayedImpl<Change>>> calls = new LinkedHashMap<Endpoints.Endpoint, List<DelayedImpl<Change>>>();
+        for (DelayedImpl<Change> change : changes) {
+            final Endpoints.Endpoint endpoint = endpoints.select(index, change.thing().type(), change.thing().id());
+            List<DelayedImpl<Change>> call = calls.get(endpoint);
+            if (call == null) {
+                call = new ArrayList<DelayedImpl<Change>>();
+                calls.put(endpoint, call);
+            }
+            call.add(change);
+        }
+        return calls;
+    }
+
+    /**
+     * @return false if the Degraphmalizer did not respond, or responded with a server error
+     */
+    private static boolean isHealthy(final List<HttpResponse> responses) {
+        for (HttpResponse response : responses) {
+            if (response == null || response.getStatusLine().getStatusCode() >= 500) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the items are sent in a single batch request
+     */
+    private boolean isBatch(final List<BatchItem> items) {
+        return batchSize > 1 || (aliasFanOut == AliasFanOut.BATCH && items.size() > 1);
+    }
+
+    /**
+     * With batches all changes (for the index and all its aliases) are sent in a single request. The body contains one
+     * line per change, the response is expected to contain the status code for each line in the same order. Without
+     * batches there is a request per change and index or alias.
+     */
+    private List<HttpRequest> toRequests(final List<BatchItem> items) {
+        final List<HttpRequest> requests = new ArrayList<HttpRequest>(items.size());
+        if (isBatch(items)) {
+            final StringBuilder body = new StringBuilder(items.size() * 48);
+            for (BatchItem item : items) {
+                body.append(toMethod(item.change, item.indexNameOrAlias)).append(' ');
+                paths.append(body, item.indexNameOrAlias, item.change.type(), item.change.id(), item.change.version(), item.aliases);
+                body.append('\n');
+            }
+            final HttpPost request = new HttpPost(BATCH_PATH);
+            request.setEntity(new StringEntity(body.toString(), ContentType.create("text/plain", "UTF-8")));
+            requests.add(request);
+        } else {
+            for (BatchItem item : items) {
+                requests.add(toRequest(item));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * @return the items that were not successful, according to the responses to the requests of {@link #toRequests}
+     */
+    private List<BatchItem> failedItems(final List<BatchItem> items, final List<HttpResponse> responses) {
+        final List<BatchItem> failed = new ArrayList<BatchItem>();
+        if (isBatch(items)) {
+            final HttpResponse response = responses.get(0);
+            if (response == null) {
+                metrics.failed(UpdaterMetrics.NO_RESPONSE, items.size());
+                return items;
+            }
+            if (!isSuccessful(response)) {
+                LOG.warn("Batch request of {} changes was not successful. Response status code: {}.", items.size(), response.getStatusLine().getStatusCode());
+                metrics.failed(String.valueOf(response.getStatusLine().getStatusCode()), items.size());
+                return items;
+            }
+
+            final String[] statusCodes;
+            try {
+                statusCodes = EntityUtils.toString(response.getEntity(), "UTF-8").split("\n");
+            } catch (IOException e) {
+                LOG.warn("Error reading the response of batch request of {} changes: {}", items.size(), e.getMessage());
+                metrics.failed(UpdaterMetrics.NO_RESPONSE, items.size());
+                return items;
+            }
+            if (statusCodes.length < items.size()) {
+                LOG.warn("Batch request of {} changes returned only {} results, retrying all changes.", items.size(), statusCodes.length);
+                metrics.failed(UpdaterMetrics.NO_RESPONSE, items.size());
+                return items;
+            }
+
+            for (int i = 0; i < items.size(); i++) {
+                final BatchItem item = items.get(i);
+                if ("200".equals(statusCodes[i].trim())) {
+                    LOG.debug("Change performed: {} : {}", item.indexNameOrAlias, item.change);
+                } else {
+                    LOG.warn("Change {} on {} in batch was not successful. Response status code: {}.", item.change, item.indexNameOrAlias, statusCodes[i].trim());
+                    metrics.failed(statusCodes[i].trim(), 1);
+                    failed.add(item);
+                }
+            }
+        } else {
+            for (int i = 0; i < items.size(); i++) {
+                final BatchItem item = items.get(i);
+                final HttpResponse response = responses.get(i);
+                if (response == null) {
+                    metrics.failed(UpdaterMetrics.NO_RESPONSE, 1);
+                    failed.add(item);
+                } else if (!isSuccessful(response)) {
+                    LOG.warn("Change {} on {} was not successful. Response status code: {}.", item.change, item.indexNameOrAlias, response.getStatusLine().getStatusCode());
+                    metrics.failed(String.valueOf(response.getStatusLine().getStatusCode()), 1);
+                    failed.add(item);
+                } else {
+                    LOG.debug("Change performed: {} : {}", item.indexNameOrAlias, item.change);
+                }
+            }
+        }
+        return failed;
+    }
+
+    private HttpRequestBase toRequest(final BatchItem item) {
         final HttpRequestBase request;
 
-		URI uri = buildURI(change, indexNameOrAlias);
-        final Action action = change.action();
+        final String path = buildPath(item);
+        final Action action = item.change.action();
         switch (action) {
             case UPDATE:
-                request = new HttpGet(uri);
+                request = new HttpGet(path);
                 break;
             case DELETE:
-                request = new HttpDelete(uri);
+                request = new HttpDelete(path);
                 break;
             default:
-                throw new RuntimeException("Unknown action " + action + " for " + change + " on index " + indexNameOrAlias);
+                throw new RuntimeException("Unknown action " + action + " for " + item.change + " on index " + item.indexNameOrAlias);
         }
 
         return request;
     }
 
-    private URI buildURI(final Change change, String indexNameOrAlias) {
-        final String type = change.type();
-        final String id = change.id();
-        final long version = change.version();
-
-        final String path;
-
-
-		try {
-			path = String.format("/%s/%s/%s/%d", URLEncoder.encode(indexNameOrAlias, "UTF-8"), URLEncoder.encode(type, "UTF-8"), URLEncoder.encode(id, "UTF-8"), version);
-		} catch (UnsupportedEncodingException e) {
-			// cannot happen UTF-8 is supported
-			throw new RuntimeException(e);
-		}
-
-		try {
-            return new URI(uriScheme + "://" + uriHost + ":" + uriPort + path);
-		} catch (URISyntaxException e) {
-            throw new RuntimeException("Unexpected error building uri for change " + change + " on index or alias " + indexNameOrAlias, e);
+    private String toMethod(final Change change, String indexNameOrAlias) {
+        final Action action = change.action();
+        switch (action) {
+            case UPDATE:
+                return HttpGet.METHOD_NAME;
+            case DELETE:
+                return HttpDelete.METHOD_NAME;
+            default:
+                throw new RuntimeException("Unknown action " + action + " for " + change + " on index " + indexNameOrAlias);
         }
     }
 
+    private String buildPath(final BatchItem item) {
+        final Change change = item.change;
+        return paths.path(item.indexNameOrAlias, change.type(), change.id(), change.version(), item.aliases);
+    }
+
     private boolean isSuccessful(final HttpResponse response) {
         final int statusCode = response.getStatusLine().getStatusCode();
         return statusCode == 200;
     }
 
     private void retry(Change change, String indexNameOrAlias) {
-        if (change.retries() < maxRetries) {
+        if (retryPolicy.canRetry(change.retries())) {
             change = change.retried(indexNameOrAlias);
-            final DelayedImpl<Change> delayedChange = new DelayedImpl<Change>(change, change.retries() * retryDelayOnFailureInMillis);
-            queue.add(delayedChange);
-            LOG.debug("Retrying change {} on index {} in {} milliseconds", change, index, retryDelayOnFailureInMillis);
+            final long delay = retryPolicy.delayInMillis(change.retries());
+            queue.add(new DelayedImpl<Change>(change, delay));
+            metrics.retried();
+            LOG.debug("Retrying change {} on index {} in {} milliseconds", change, index, delay);
         } else {
+            metrics.gaveUp();
             logError(change);
         }
     }
 
     public void logError(Change change) {
-        try {
-            LOG.warn("Writing failed change {} to error log {}", change, errorFile.getCanonicalPath());
-            final PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(errorFile, true), "UTF-8")));
-            writer.println(change.toValue());
-            writer.flush();
-            writer.close();
-        } catch (IOException e) {
-            LOG.error("I/O error: " + e.getMessage());
+        LOG.warn("Writing failed change {} to the error log of index {}", change, index);
+        deadLetters.append(change);
+    }
+
+    /**
+     * Queues the changes in the error log again, as fresh changes.
+     *
+     * @return the number of changes queued
+     */
+    public int replayErrors() {
+        return deadLetters.replay(new DeadLetterLog.Consumer() {
+            @Override
+            public void accept(final Change change) {
+                queue.add(DelayedImpl.immediate(change));
+            }
+        });
+    }
+
+    /**
+     * The ingest ring of a shard.
+     */
+    private static final class ShardIngest {
+        private final String name;
+        private final IngestRing ring = new IngestRing(INGEST_RING_SIZE);
+        private final AtomicLong stalls = new AtomicLong();
+        private volatile boolean closed;
+
+        private ShardIngest(final String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class BatchItem {
+        private final Change change;
+        private final String indexNameOrAlias;
+        // The aliases the receiver fans out to, or null if the item is for a single index or alias
+        private final List<String> aliases;
+
+        private BatchItem(final Change change, final String indexNameOrAlias) {
+            this(change, indexNameOrAlias, null);
+        }
+
+        private BatchItem(final Change change, final String indexNameOrAlias, final List<String> aliases) {
+            this.change = change;
+            this.indexNameOrAlias = indexNameOrAlias;
+            this.aliases = aliases;
+        }
+
+        /**
+         * @return the index or alias to retry the change on, or null for the index and all its aliases
+         */
+        private String retryTarget() {
+            return aliases == null ? indexNameOrAlias : null;
         }
     }
 }
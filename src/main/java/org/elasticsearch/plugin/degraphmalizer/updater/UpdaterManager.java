@@ -4,20 +4,37 @@
  */
 package org.elasticsearch.plugin.degraphmalizer.updater;
 
+import org.apache.http.HttpHost;
 import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.netty.util.HashedWheelTimer;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.index.aliases.IndexAliasesService;
+import org.elasticsearch.index.shard.service.IndexShard;
 import org.elasticsearch.plugin.degraphmalizer.DegraphmalizerPlugin;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: rico
@@ -25,38 +42,152 @@ import java.util.Map;
  */
 public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> implements UpdaterManagerMBean {
     private static final ESLogger LOG = Loggers.getLogger(UpdaterManager.class);
+    private static final int STOP_TIMEOUT_SECONDS = 30;
+    private static final long RETRY_TIMER_TICK_MILLIS = 100;
+    private static final String DEGRAPHMALIZER_PORT_ATTRIBUTE = "degraphmalizer_port";
 
-    private final Map<String, Updater> updaters = new HashMap<String, Updater>();
+    // Read without locking by the indexing threads, changed by the synchronized methods
+    private final Map<String, Updater> updaters = new ConcurrentHashMap<String, Updater>();
 
     private final String uriScheme;
-    private final String uriHost;
     private final int uriPort;
-    private final long retryDelayOnFailureInMillis;
+    private final Endpoints endpoints;
+    private final boolean discoverEndpoints;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreakerPolicy breakerPolicy;
+    private final double latencyTolerance;
 
     private int queueLimit;
     private String logPath;
-    private int maxRetries;
+    private int batchSize;
+    private long batchTimeoutInMillis;
+    private int workerPoolSize;
+    private int concurrency;
+    private String transport;
+    private int maxOutstandingRequests;
+    private int maxConnections;
+    private int maxConnectionsPerRoute;
+    private int connectTimeoutInMillis;
+    private int socketTimeoutInMillis;
+    private long keepAliveInMillis;
+    private long idleConnectionTimeoutInMillis;
+    private int validateAfterInactivityInMillis;
+    private String queueBackend;
+    private int logSegmentSizeInBytes;
+    private long fsyncIntervalInMillis;
+    private long errorLogMaxBytes;
+    private long errorLogFlushIntervalInMillis;
+    private int replayRatePerSecond;
+    private int liveLaneWeight;
+    private int retryLaneWeight;
+    private int backlogLaneWeight;
+    private final OverflowBudget overflowBudget;
+    private final Updater.AliasFanOut aliasFanOut;
+    private final Settings pluginSettings;
     private boolean sending = false;
 
+    private ScheduledExecutorService scheduler;
+    private HashedWheelTimer retryTimer;
+    private HttpClientPool httpClientPool;
+
     @Inject
     public UpdaterManager(final Settings settings) {
         super(settings);
 
-        final Settings pluginSettings = settings.getComponentSettings(DegraphmalizerPlugin.class);
+        this.pluginSettings = settings.getComponentSettings(DegraphmalizerPlugin.class);
 
         // Please keep this in sync with the documentation in README.md
         this.uriScheme = pluginSettings.get("DegraphmalizerPlugin.degraphmalizerScheme", "http");
-        this.uriHost   = pluginSettings.get("DegraphmalizerPlugin.degraphmalizerHost", "localhost");
+        final String uriHost = pluginSettings.get("DegraphmalizerPlugin.degraphmalizerHost", "localhost");
         this.uriPort   = pluginSettings.getAsInt("DegraphmalizerPlugin.degraphmalizerPort", 9821);
-        this.retryDelayOnFailureInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.retryDelayOnFailureInMillis", 5000l);
+        List<HttpHost> hosts = Endpoints.parse(uriScheme, pluginSettings.get("DegraphmalizerPlugin.degraphmalizerHosts", ""), uriPort);
+        if (hosts.isEmpty()) {
+            hosts = Collections.singletonList(new HttpHost(uriHost, uriPort, uriScheme));
+        }
+        this.endpoints = new Endpoints(hosts,
+                pluginSettings.getAsInt("DegraphmalizerPlugin.endpointVirtualNodes", 100),
+                pluginSettings.getAsInt("DegraphmalizerPlugin.endpointMaxFailures", 3),
+                pluginSettings.getAsLong("DegraphmalizerPlugin.endpointEjectionInMillis", 30000l));
+        this.discoverEndpoints = pluginSettings.getAsBoolean("DegraphmalizerPlugin.discoverEndpoints", false);
+        final long retryDelayOnFailureInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.retryDelayOnFailureInMillis", 5000l);
+        final long maxRetryDelayInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.maxRetryDelayInMillis", 60000l);
+        final double retryJitter = pluginSettings.getAsDouble("DegraphmalizerPlugin.retryJitter", 0.2);
+        final int maxRetries = pluginSettings.getAsInt("DegraphmalizerPlugin.maxRetries", 5);
+        this.retryPolicy = new RetryPolicy(retryDelayOnFailureInMillis, maxRetryDelayInMillis, retryJitter, maxRetries);
+        this.breakerPolicy = new CircuitBreakerPolicy(
+                pluginSettings.getAsDouble("DegraphmalizerPlugin.breakerFailureRate", 0.5),
+                pluginSettings.getAsInt("DegraphmalizerPlugin.breakerWindowSize", 20),
+                pluginSettings.getAsInt("DegraphmalizerPlugin.breakerMinCalls", 10),
+                pluginSettings.getAsLong("DegraphmalizerPlugin.breakerOpenInMillis", 5000l),
+                pluginSettings.getAsLong("DegraphmalizerPlugin.slowCallInMillis", 0l));
+        this.latencyTolerance = pluginSettings.getAsBoolean("DegraphmalizerPlugin.adaptiveConcurrency", false)
+                ? pluginSettings.getAsDouble("DegraphmalizerPlugin.latencyTolerance", 2.0) : 0;
 
         this.queueLimit = pluginSettings.getAsInt("DegraphmalizerPlugin.queueLimit", 100000);
         this.logPath = pluginSettings.get("DegraphmalizerPlugin.logPath", "/export/elasticsearch/degraphmalizer");
-        this.maxRetries = pluginSettings.getAsInt("DegraphmalizerPlugin.maxRetries", 5);
+        this.batchSize = pluginSettings.getAsInt("DegraphmalizerPlugin.batchSize", 1);
+        this.batchTimeoutInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.batchTimeoutInMillis", 100l);
+        this.workerPoolSize = pluginSettings.getAsInt("DegraphmalizerPlugin.workerPoolSize", 4);
+        this.concurrency = pluginSettings.getAsInt("DegraphmalizerPlugin.concurrency", 1);
+        this.transport = pluginSettings.get("DegraphmalizerPlugin.transport", "sync");
+        this.maxOutstandingRequests = pluginSettings.getAsInt("DegraphmalizerPlugin.maxOutstandingRequests", 16);
+        this.maxConnections = pluginSettings.getAsInt("DegraphmalizerPlugin.maxConnections", 64);
+        this.maxConnectionsPerRoute = pluginSettings.getAsInt("DegraphmalizerPlugin.maxConnectionsPerRoute", 64);
+        this.connectTimeoutInMillis = pluginSettings.getAsInt("DegraphmalizerPlugin.connectTimeoutInMillis", 50000);
+        this.socketTimeoutInMillis = pluginSettings.getAsInt("DegraphmalizerPlugin.socketTimeoutInMillis", 50000);
+        this.keepAliveInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.keepAliveInMillis", 60000l);
+        this.idleConnectionTimeoutInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.idleConnectionTimeoutInMillis", 30000l);
+        this.validateAfterInactivityInMillis = pluginSettings.getAsInt("DegraphmalizerPlugin.validateAfterInactivityInMillis", 2000);
+        this.queueBackend = pluginSettings.get("DegraphmalizerPlugin.queueBackend", "memory");
+        this.logSegmentSizeInBytes = pluginSettings.getAsInt("DegraphmalizerPlugin.logSegmentSizeInBytes", 64 * 1024 * 1024);
+        this.fsyncIntervalInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.fsyncIntervalInMillis", 1000l);
+        this.errorLogMaxBytes = pluginSettings.getAsLong("DegraphmalizerPlugin.errorLogMaxBytes", 16 * 1024 * 1024l);
+        this.errorLogFlushIntervalInMillis = pluginSettings.getAsLong("DegraphmalizerPlugin.errorLogFlushIntervalInMillis", 200l);
+        this.replayRatePerSecond = pluginSettings.getAsInt("DegraphmalizerPlugin.replayRatePerSecond", 1000);
+        this.liveLaneWeight = pluginSettings.getAsInt("DegraphmalizerPlugin.liveLaneWeight", WeightedLanes.DEFAULT_LIVE_WEIGHT);
+        this.retryLaneWeight = pluginSettings.getAsInt("DegraphmalizerPlugin.retryLaneWeight", WeightedLanes.DEFAULT_RETRY_WEIGHT);
+        this.backlogLaneWeight = pluginSettings.getAsInt("DegraphmalizerPlugin.backlogLaneWeight", WeightedLanes.DEFAULT_BACKLOG_WEIGHT);
+        this.overflowBudget = new OverflowBudget(
+                pluginSettings.getAsLong("DegraphmalizerPlugin.maxOverflowBytes", 0l),
+                pluginSettings.getAsLong("DegraphmalizerPlugin.maxOverflowRecords", 0l),
+                pluginSettings.getAsLong("DegraphmalizerPlugin.maxNodeOverflowBytes", 0l),
+                overflowPolicy(pluginSettings.get("DegraphmalizerPlugin.overflowPolicy", "dirty")),
+                pluginSettings.getAsLong("DegraphmalizerPlugin.overflowBlockTimeoutInMillis", 1000l));
+        this.aliasFanOut = aliasFanOut(pluginSettings.get("DegraphmalizerPlugin.aliasFanOut", "client"));
+    }
+
+    private static Updater.AliasFanOut aliasFanOut(final String name) {
+        try {
+            return Updater.AliasFanOut.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown alias fan out {}, using client", name);
+            return Updater.AliasFanOut.CLIENT;
+        }
+    }
+
+    private static OverflowBudget.Policy overflowPolicy(final String name) {
+        try {
+            return OverflowBudget.Policy.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown overflow policy {}, using dirty", name);
+            return OverflowBudget.Policy.DIRTY;
+        }
     }
 
     @Override
     protected void doStart() throws ElasticSearchException {
+        scheduler = Executors.newScheduledThreadPool(workerPoolSize, EsExecutors.daemonThreadFactory(settings, "degraphmalizer"));
+        retryTimer = new HashedWheelTimer(EsExecutors.daemonThreadFactory(settings, "degraphmalizer_retry"), RETRY_TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        httpClientPool = new HttpClientPool(maxConnections, maxConnectionsPerRoute, connectTimeoutInMillis, socketTimeoutInMillis, keepAliveInMillis, idleConnectionTimeoutInMillis, validateAfterInactivityInMillis);
+        final long evictionInterval = Math.max(idleConnectionTimeoutInMillis / 2, 1000);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                httpClientPool.evictIdleConnections();
+            }
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        LOG.info("Started {} workers for the updaters", workerPoolSize);
+        LOG.info("Updaters share a pool of http connections: {}", httpClientPool);
         registerMBean();
     }
 
@@ -66,12 +197,51 @@ public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> i
             LOG.info("Shutting down updater for index " + entry.getKey());
             entry.getValue().shutdown();
         }
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn("Updaters did not stop within {} seconds", STOP_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for the updaters to stop");
+            Thread.currentThread().interrupt();
+        }
+        retryTimer.stop();
+        httpClientPool.close();
     }
 
     @Override
     protected void doClose() throws ElasticSearchException {
     }
 
+    /**
+     * Called when Degraphmalizer nodes join or leave the cluster. Sending stops while there are none. With discovery
+     * the changes are spread over these nodes, on their address and the port in their degraphmalizer_port attribute.
+     * A node with a port that is not a number is left out.
+     */
+    public synchronized void degraphmalizerNodesChanged(final List<DiscoveryNode> nodes) {
+        if (discoverEndpoints) {
+            final List<HttpHost> hosts = new ArrayList<HttpHost>(nodes.size());
+            for (DiscoveryNode node : nodes) {
+                if (node.address() instanceof InetSocketTransportAddress) {
+                    final String host = ((InetSocketTransportAddress) node.address()).address().getAddress().getHostAddress();
+                    final String port = node.attributes().get(DEGRAPHMALIZER_PORT_ATTRIBUTE);
+                    try {
+                        hosts.add(new HttpHost(host, port == null ? uriPort : Integer.parseInt(port), uriScheme));
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Invalid {} attribute {} of node {}, not sending to it", DEGRAPHMALIZER_PORT_ATTRIBUTE, port, node);
+                    }
+                }
+            }
+            endpoints.setHosts(hosts);
+        }
+        if (nodes.isEmpty() && sending) {
+            stopSending();
+        } else if (!nodes.isEmpty() && !sending) {
+            startSending();
+        }
+    }
+
     public synchronized void startSending() {
         LOG.info("Starting to send updates to Degraphmalizer");
         sending = true;
@@ -93,15 +263,71 @@ public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> i
 			LOG.warn("Updater for index {} already exists", index);
 			return;
         }
-        final Updater updater = new Updater(index, aliasesService, uriScheme, uriHost, uriPort, retryDelayOnFailureInMillis, logPath, queueLimit, maxRetries);
+        final int weight = pluginSettings.getAsInt("DegraphmalizerPlugin.indexWeights." + index, pluginSettings.getAsInt("DegraphmalizerPlugin.indexWeight", 1));
+        final String backend = pluginSettings.get("DegraphmalizerPlugin.queueBackends." + index, queueBackend);
+        final Updater updater = Updater.builder(index)
+                .aliases(aliasesService)
+                .transport(createTransport())
+                .endpoints(endpoints)
+                .retryPolicy(retryPolicy)
+                .breakerPolicy(breakerPolicy)
+                .logPath(logPath)
+                .log(openLog(index, backend))
+                .deadLetters(openErrorLog(index))
+                .dirtyDocuments("dirty".equals(backend))
+                .budget(overflowBudget)
+                .lanes(new WeightedLanes(liveLaneWeight, retryLaneWeight, backlogLaneWeight))
+                .aliasFanOut(aliasFanOut)
+                .queueLimit(queueLimit)
+                .batchSize(batchSize)
+                .batchTimeoutInMillis(batchTimeoutInMillis)
+                .scheduler(scheduler)
+                .retryTimer(retryTimer)
+                .weight(weight)
+                .concurrency(concurrency)
+                .concurrencyLimit(new ConcurrencyLimit(concurrency, latencyTolerance))
+                .build();
         updaters.put(index, updater);
-        new Thread(updater, "updater-" + index).start();
         if (sending) {
 			updater.startSending();
 		}
         LOG.info("Updater started for index {}", index);
     }
 
+    private UpdaterTransport createTransport() {
+        if ("async".equals(transport)) {
+            return new AsyncUpdaterTransport(httpClientPool, maxOutstandingRequests);
+        }
+        if (!"sync".equals(transport)) {
+            LOG.warn("Unknown transport {}, using sync", transport);
+        }
+        return new SyncUpdaterTransport(httpClientPool);
+    }
+
+    /**
+     * @return the log for the queue of the index, or null if the queue is kept in memory
+     */
+    private SegmentLog openLog(final String index, final String backend) {
+        if ("memory".equals(backend) || "dirty".equals(backend)) {
+            return null;
+        }
+        if (!"log".equals(backend)) {
+            LOG.warn("Unknown queue backend {}, using memory", backend);
+            return null;
+        }
+        final File directory = new File(logPath, index + "-log");
+        try {
+            return new SegmentLog(directory, logSegmentSizeInBytes, fsyncIntervalInMillis);
+        } catch (IOException e) {
+            LOG.error("Can not open log {}, the queue for index {} is kept in memory: {}", directory, index, e.getMessage());
+            return null;
+        }
+    }
+
+    private DeadLetterLog openErrorLog(final String index) {
+        return new DeadLetterLog(new File(logPath, index + "-error.log"), errorLogMaxBytes, errorLogFlushIntervalInMillis, scheduler);
+    }
+
     public synchronized void stopUpdater(final String index) {
         final Updater updater = updaters.get(index);
         if (updater != null) {
@@ -113,12 +339,55 @@ public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> i
         }
     }
 
+    /**
+     * Called when the aliases of an index changed in the cluster state.
+     */
+    public void aliasesChanged(final String index, final Collection<String> aliases) {
+        final Updater updater = updaters.get(index);
+        if (updater != null) {
+            updater.setAliases(aliases);
+        }
+    }
+
+    /**
+     * Called when a shard of an index is started on this node, it can be replayed from then on.
+     */
+    public void shardStarted(final String index, final IndexShard shard) {
+        final Updater updater = updaters.get(index);
+        if (updater != null) {
+            updater.addShard(shard);
+        }
+    }
+
+    public void shardClosed(final String index, final int shardId) {
+        final Updater updater = updaters.get(index);
+        if (updater != null) {
+            updater.removeShard(shardId);
+        }
+    }
+
     public void add(final String index, final Change change) {
+        add(index, change.action(), change.type(), change.id(), change.version());
+    }
+
+    public void add(final String index, final Action action, final String type, final String id, final long version) {
+        final Updater updater = updaters.get(index);
+        if (updater != null) {
+            updater.add(action, type, id, version);
+        } else {
+            LOG.error("There is no updater for index {}, dropping {} of {}/{}/{} version {}", index, action, index, type, id, version);
+        }
+    }
+
+    /**
+     * Called on the indexing threads of a shard for every operation, it does not lock or allocate.
+     */
+    public void add(final String index, final int shard, final Action action, final String type, final String id, final long version) {
         final Updater updater = updaters.get(index);
         if (updater != null) {
-            updater.add(change);
+            updater.add(shard, action, type, id, version);
         } else {
-            LOG.error("There is no updater for index {}, dropping change {}", index, change);
+            LOG.error("There is no updater for index {}, dropping {} of {}/{}/{} version {}", index, action, index, type, id, version);
         }
     }
 
@@ -131,6 +400,304 @@ public class UpdaterManager extends AbstractLifecycleComponent<UpdaterManager> i
         return indexQueueSizes;
     }
 
+    @Override
+    public Map<String, Long> getCoalescedCounts() {
+        final Map<String, Long> indexCoalescedCounts = new HashMap<String, Long>(updaters.size());
+        for (Map.Entry<String, Updater> entry : updaters.entrySet()) {
+            indexCoalescedCounts.put(entry.getKey(), entry.getValue().getCoalescedCount());
+        }
+        return indexCoalescedCounts;
+    }
+
+    @Override
+    public Map<String, Double> getSendsPerSecond() {
+        final Map<String, Double> rates = new HashMap<String, Double>(updaters.size());
+        for (Map.Entry<String, Updater> entry : updaters.entrySet()) {
+            rates.put(entry.getKey(), entry.getValue().getMetrics().sendsPerSecond());
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Double> getQueueLatencyP99Millis() {
+        final Map<String, Double> latencies = new HashMap<String, Double>(updaters.size());
+        for (Map.Entry<String, Updater> entry : updaters.entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().getMetrics().queueLatency().percentileMillis(0.99));
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getLaneAgeMillis() {
+        final Map<String, Long> ages = new TreeMap<String, Long>();
+        for (Map.Entry<String, Updater> entry : updaters.entrySet()) {
+            for (Map.Entry<String, Long> lane : entry.getValue().getLaneAgeMillis().entrySet()) {
+                ages.put(entry.getKey() + "/" + lane.getKey(), lane.getValue());
+            }
+        }
+        return ages;
+    }
+
+    @Override
+    public Map<String, Long> getShardChangeCounts() {
+        final Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Updater updater : updaters.values()) {
+            counts.putAll(updater.getShardChangeCounts());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Integer> getShardIngestSizes() {
+        final Map<String, Integer> sizes = new TreeMap<String, Integer>();
+        for (Updater updater : updaters.values()) {
+            sizes.putAll(updater.getShardIngestSizes());
+        }
+        return sizes;
+    }
+
+    @Override
+    public Map<String, Long> getShardIngestStalls() {
+        final Map<String, Long> stalls = new TreeMap<String, Long>();
+        for (Updater updater : updaters.values()) {
+            stalls.putAll(updater.getShardIngestStalls());
+        }
+        return stalls;
+    }
+
+    @Override
+    public double getTotalSendsPerSecond() {
+        double rate = 0;
+        for (UpdaterMetrics metrics : allMetrics()) {
+            rate += metrics.sendsPerSecond();
+        }
+        return rate;
+    }
+
+    @Override
+    public double getTotalQueueLatencyP50Millis() {
+        return totalQueueLatency().percentileMillis(0.5);
+    }
+
+    @Override
+    public double getTotalQueueLatencyP99Millis() {
+        return totalQueueLatency().percentileMillis(0.99);
+    }
+
+    @Override
+    public double getTotalQueueLatencyMaxMillis() {
+        return totalQueueLatency().maxMillis();
+    }
+
+    @Override
+    public double getTotalRequestLatencyP50Millis() {
+        return totalRequestLatency().percentileMillis(0.5);
+    }
+
+    @Override
+    public double getTotalRequestLatencyP99Millis() {
+        return totalRequestLatency().percentileMillis(0.99);
+    }
+
+    @Override
+    public double getTotalRequestLatencyMaxMillis() {
+        return totalRequestLatency().maxMillis();
+    }
+
+    @Override
+    public Map<String, Long> getTotalFailuresByStatus() {
+        final Map<String, Long> total = new HashMap<String, Long>();
+        for (UpdaterMetrics metrics : allMetrics()) {
+            for (Map.Entry<String, Long> entry : metrics.failuresByStatus().entrySet()) {
+                final Long count = total.get(entry.getKey());
+                total.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalRetryCount() {
+        long total = 0;
+        for (UpdaterMetrics metrics : allMetrics()) {
+            total += metrics.retryCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalErrorCount() {
+        long total = 0;
+        for (UpdaterMetrics metrics : allMetrics()) {
+            total += metrics.errorCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalSpilledChanges() {
+        long total = 0;
+        for (UpdaterMetrics metrics : allMetrics()) {
+            total += metrics.spilledChanges();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalSpilledBytes() {
+        long total = 0;
+        for (UpdaterMetrics metrics : allMetrics()) {
+            total += metrics.spilledBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalReloadedChanges() {
+        long total = 0;
+        for (UpdaterMetrics metrics : allMetrics()) {
+            total += metrics.reloadedChanges();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalReloadedBytes() {
+        long total = 0;
+        for (UpdaterMetrics metrics : allMetrics()) {
+            total += metrics.reloadedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalOverflowBytes() {
+        return overflowBudget.getNodeBytes();
+    }
+
+    @Override
+    public long getMaxNodeOverflowBytes() {
+        return overflowBudget.getMaxNodeBytes();
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return overflowBudget.toString();
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        return httpClientPool.getLeasedConnections();
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        return httpClientPool.getAvailableConnections();
+    }
+
+    @Override
+    public int getPendingConnections() {
+        return httpClientPool.getPendingConnections();
+    }
+
+    @Override
+    public double getConnectionPoolSaturation() {
+        return httpClientPool.getSaturation();
+    }
+
+    @Override
+    public long getCreatedConnections() {
+        return httpClientPool.getCreatedConnections();
+    }
+
+    @Override
+    public double getConnectionReuseRate() {
+        return httpClientPool.getReuseRate();
+    }
+
+    @Override
+    public Map<String, String> getEndpoints() {
+        return endpoints.getStatus();
+    }
+
+    @Override
+    public int replayErrors(final String index) {
+        final Updater updater = updaters.get(index);
+        if (updater == null) {
+            LOG.warn("No updater found for index {}", index);
+            return 0;
+        }
+        return updater.replayErrors();
+    }
+
+    @Override
+    public boolean startReplay(final String index) {
+        final Updater updater = updaters.get(index);
+        if (updater == null) {
+            LOG.warn("No updater found for index {}", index);
+            return false;
+        }
+        return updater.startReplay(replayRatePerSecond);
+    }
+
+    @Override
+    public void stopReplay(final String index) {
+        final Updater updater = updaters.get(index);
+        if (updater != null) {
+            updater.stopReplay();
+        }
+    }
+
+    @Override
+    public void cancelReplay(final String index) {
+        final Updater updater = updaters.get(index);
+        if (updater != null) {
+            updater.cancelReplay();
+        }
+    }
+
+    @Override
+    public Map<String, String> getReplays() {
+        final Map<String, String> replays = new TreeMap<String, String>();
+        for (Updater updater : updaters.values()) {
+            replays.putAll(updater.getReplayStatus());
+        }
+        return replays;
+    }
+
+    @Override
+    public Map<String, String> getCircuitBreakers() {
+        final Map<String, String> states = new HashMap<String, String>();
+        for (Updater updater : updaters.values()) {
+            states.putAll(updater.getCircuitBreakers());
+        }
+        return states;
+    }
+
+    private List<UpdaterMetrics> allMetrics() {
+        final List<UpdaterMetrics> metrics = new ArrayList<UpdaterMetrics>(updaters.size());
+        for (Updater updater : updaters.values()) {
+            metrics.add(updater.getMetrics());
+        }
+        return metrics;
+    }
+
+    private LatencyHistogram.Snapshot totalQueueLatency() {
+        final LatencyHistogram.Snapshot total = new LatencyHistogram.Snapshot();
+        for (UpdaterMetrics metrics : allMetrics()) {
+            total.add(metrics.queueLatency());
+        }
+        return total;
+    }
+
+    private LatencyHistogram.Snapshot totalRequestLatency() {
+        final LatencyHistogram.Snapshot total = new LatencyHistogram.Snapshot();
+        for (UpdaterMetrics metrics : allMetrics()) {
+            total.add(metrics.requestLatency());
+        }
+        return total;
+    }
+
     public boolean flushQueue(final String indexName) {
         final Updater updater = updaters.get(indexName);
         if (updater != null) {
@@ -7,4 +7,57 @@ import java.util.Map;
  */
 public interface UpdaterManagerMBean {
     Map<String, Integer> getQueueSizes();
+    Map<String, Long> getCoalescedCounts();
+    Map<String, Double> getSendsPerSecond();
+    Map<String, Double> getQueueLatencyP99Millis();
+    // Time the oldest change in each lane has been due, by index and lane, e.g. index/live
+    Map<String, Long> getLaneAgeMillis();
+    // Per index and shard, e.g. index[0]: the changes received, the changes that did not reach the queue yet, and the
+    // number of times an indexing thread found the ingest ring full
+    Map<String, Long> getShardChangeCounts();
+    Map<String, Integer> getShardIngestSizes();
+    Map<String, Long> getShardIngestStalls();
+
+    // Aggregates over the updaters of all indices on this node
+    double getTotalSendsPerSecond();
+    double getTotalQueueLatencyP50Millis();
+    double getTotalQueueLatencyP99Millis();
+    double getTotalQueueLatencyMaxMillis();
+    double getTotalRequestLatencyP50Millis();
+    double getTotalRequestLatencyP99Millis();
+    double getTotalRequestLatencyMaxMillis();
+    Map<String, Long> getTotalFailuresByStatus();
+    long getTotalRetryCount();
+    long getTotalErrorCount();
+    long getTotalSpilledChanges();
+    long getTotalSpilledBytes();
+    long getTotalReloadedChanges();
+    long getTotalReloadedBytes();
+    long getTotalOverflowBytes();
+    long getMaxNodeOverflowBytes();
+    String getOverflowPolicy();
+
+    // The http connections shared by the updaters
+    int getLeasedConnections();
+    int getAvailableConnections();
+    int getPendingConnections();
+    double getConnectionPoolSaturation();
+    long getCreatedConnections();
+    double getConnectionReuseRate();
+
+    // The Degraphmalizers with their share of the documents and their health
+    Map<String, String> getEndpoints();
+    // The state of the circuit breaker of each index and Degraphmalizer
+    Map<String, String> getCircuitBreakers();
+
+    // Queues the changes in the error log of the index again, once the cause of the failures has been fixed
+    int replayErrors(String index);
+
+    // Sends an update for every document in the primary shards of the index on this node, at replayRatePerSecond;
+    // a stopped replay goes on where it stopped, a cancelled one starts from the first document
+    boolean startReplay(String index);
+    void stopReplay(String index);
+    void cancelReplay(String index);
+    // The progress of the replays per index and shard
+    Map<String, String> getReplays();
 }
@@ -0,0 +1,207 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeterMetric;
+
+/**
+ * Metrics of the updater of a single index. All recorders are lock-free, so they can be updated on every change.
+ */
+final class UpdaterMetrics {
+    // Status of a request that got no response at all
+    static final String NO_RESPONSE = "none";
+
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final MeterMetric sends;
+    private final ConcurrentMap<String, CounterMetric> failures = new ConcurrentHashMap<String, CounterMetric>();
+    private final CounterMetric retries = new CounterMetric();
+    private final CounterMetric errors = new CounterMetric();
+    private final CounterMetric spills = new CounterMetric();
+    private final CounterMetric spilledBytes = new CounterMetric();
+    private final CounterMetric reloads = new CounterMetric();
+    private final CounterMetric reloadedBytes = new CounterMetric();
+    private final long startedMillis = System.currentTimeMillis();
+    private volatile int recovered;
+    private final AtomicLong timeToFirstSend = new AtomicLong(-1);
+    private final CounterMetric held = new CounterMetric();
+    private final CounterMetric breakerOpenings = new CounterMetric();
+    private volatile int concurrencyLimit;
+
+    /**
+     * @param executor updates the send rate every few seconds
+     */
+    UpdaterMetrics(final ScheduledExecutorService executor) {
+        sends = new MeterMetric(executor, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Changes are sent.
+     */
+    void sent(final int changes) {
+        sends.mark(changes);
+    }
+
+    /**
+     * A change succeeded, the given number of milliseconds after it was added to the updater.
+     */
+    void delivered(final long waitedMillis) {
+        queueLatency.record(waitedMillis * 1000);
+    }
+
+    void responded(final long roundTripMicros) {
+        requestLatency.record(roundTripMicros);
+    }
+
+    /**
+     * @param status the status code of the failed changes, or {@link #NO_RESPONSE}
+     */
+    void failed(final String status, final int changes) {
+        CounterMetric counter = failures.get(status);
+        if (counter == null) {
+            final CounterMetric created = new CounterMetric();
+            counter = failures.putIfAbsent(status, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.inc(changes);
+    }
+
+    void retried() {
+        retries.inc();
+    }
+
+    /**
+     * A change is written to the error log, it will not be retried anymore.
+     */
+    void gaveUp() {
+        errors.inc();
+    }
+
+    void spilled(final int changes, final long bytes) {
+        spills.inc(changes);
+        spilledBytes.inc(bytes);
+    }
+
+    /**
+     * The number of changes left on disk by an earlier run.
+     */
+    void recovered(final int changes) {
+        recovered = changes;
+    }
+
+    /**
+     * Records the time from the start until the first change is sent.
+     *
+     * @return true for the first change that is sent
+     */
+    boolean firstSent() {
+        return timeToFirstSend.get() < 0 && timeToFirstSend.compareAndSet(-1, System.currentTimeMillis() - startedMillis);
+    }
+
+    /**
+     * Changes went back in the queue because the circuit breaker of their Degraphmalizer is open.
+     */
+    void held(final int changes) {
+        held.inc(changes);
+    }
+
+    void breakerOpened() {
+        breakerOpenings.inc();
+    }
+
+    void concurrencyLimit(final int limit) {
+        concurrencyLimit = limit;
+    }
+
+    void reloaded(final int changes, final long bytes) {
+        reloads.inc(changes);
+        reloadedBytes.inc(bytes);
+    }
+
+    LatencyHistogram.Snapshot queueLatency() {
+        return queueLatency.snapshot();
+    }
+
+    LatencyHistogram.Snapshot requestLatency() {
+        return requestLatency.snapshot();
+    }
+
+    long sendCount() {
+        return sends.count();
+    }
+
+    double sendsPerSecond() {
+        return sends.oneMinuteRate();
+    }
+
+    Map<String, Long> failuresByStatus() {
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, CounterMetric> entry : failures.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().count());
+        }
+        return counts;
+    }
+
+    long retryCount() {
+        return retries.count();
+    }
+
+    long errorCount() {
+        return errors.count();
+    }
+
+    long spilledChanges() {
+        return spills.count();
+    }
+
+    long spilledBytes() {
+        return spilledBytes.count();
+    }
+
+    long reloadedChanges() {
+        return reloads.count();
+    }
+
+    long reloadedBytes() {
+        return reloadedBytes.count();
+    }
+
+    int recoveredChanges() {
+        return recovered;
+    }
+
+    /**
+     * @return the milliseconds from the start until the first change was sent, or -1 if nothing was sent yet
+     */
+    long timeToFirstSendMillis() {
+        return timeToFirstSend.get();
+    }
+
+    long heldChanges() {
+        return held.count();
+    }
+
+    long breakerOpenings() {
+        return breakerOpenings.count();
+    }
+
+    /**
+     * @return the adapted number of requests in flight, or 0 if no request completed yet
+     */
+    int concurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    void close() {
+        sends.stop();
+    }
+}
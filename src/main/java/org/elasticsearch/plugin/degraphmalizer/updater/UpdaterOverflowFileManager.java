@@ -4,149 +4,447 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 
 import java.io.*;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.concurrent.BlockingQueue;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
+/**
+ * Keeps the overflow files of an index, in the binary format of {@link OverflowFileFormat}. The number of records is
+ * tracked in memory, so asking for the size does not touch the disk.
+ * <p/>
+ * The files are read by a single cursor, a window at a time, so only the changes that are about to be sent are on
+ * the heap however large the backlog is. Every record that is read gets a sequence number, and is acknowledged when
+ * it is done with, in any order. A file is deleted when all of its records are acknowledged. The number of
+ * acknowledged records at the start of the first file is kept in a position file, so after a restart reading resumes
+ * there instead of at the start of the file.
+ */
 public class UpdaterOverflowFileManager {
 
     private static final ESLogger LOG = Loggers.getLogger(UpdaterOverflowFileManager.class);
 
     private static final File[] NO_FILES = {};
+    private static final String SUFFIX = ".bin";
+    // Files that can not be read are renamed with this suffix, so they are not read again
+    private static final String CORRUPT_SUFFIX = ".corrupt";
 
     private final String logPath;
     private final String filenamePrefix;
-    private final int limit;
+    private final Pattern filenamePattern;
+    private final File positionFile;
 
-    public UpdaterOverflowFileManager(final String logPath, final String index, final int limit) {
+    // Overflow files in the order they have to be read, guarded by this
+    private final LinkedList<OverflowFile> files = new LinkedList<OverflowFile>();
+    // Number of records that are not read yet
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+
+    // The cursor, guarded by this
+    private OverflowFile readFile;
+    private OverflowFileFormat.Reader reader;
+    private long nextSequence;
+    private long bytesRead;
+
+    // All records before the committed sequence are acknowledged, the acknowledged records after it are in acked
+    private long committed;
+    private final TreeSet<Long> acked = new TreeSet<Long>();
+    private String savedPosition;
+
+    public UpdaterOverflowFileManager(final String logPath, final String index) {
         this.logPath = logPath;
         this.filenamePrefix = index + "-overflow-";
-        this.limit = limit;
+        this.filenamePattern = Pattern.compile(Pattern.quote(filenamePrefix) + "\\d+(\\" + SUFFIX + ")?");
+        this.positionFile = new File(logPath, filenamePrefix + "position");
+        savedPosition = readPosition();
+        for (File file : getOverflowFiles()) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                file = migrate(file);
+            }
+            if (file != null) {
+                try {
+                    add(file, OverflowFileFormat.readCount(file));
+                } catch (IOException e) {
+                    LOG.error("Error reading overflow file {}, leaving it for inspection: {}", file, e.getMessage());
+                    quarantine(file);
+                }
+            }
+        }
+        if (savedPosition != null && !files.isEmpty()) {
+            final OverflowFile first = files.getFirst();
+            final int separator = savedPosition.lastIndexOf(' ');
+            if (separator > 0 && savedPosition.substring(0, separator).equals(first.file.getName())) {
+                first.skip = Math.min(Integer.parseInt(savedPosition.substring(separator + 1)), first.count);
+                size.addAndGet(-first.skip);
+                LOG.info("Resuming overflow file {} after {} acknowledged changes", first.file, first.skip);
+            }
+        }
     }
 
     private final FilenameFilter filenameFilter = new FilenameFilter() {
         @Override
         public boolean accept(File dir, String name) {
-            return name.matches(filenamePrefix + "\\d+");
+            return filenamePattern.matcher(name).matches();
         }
     };
 
+    /**
+     * Orders by the time in the name, at which the file was created.
+     */
     private final Comparator<File> fileComparator = new Comparator<File>() {
         @Override
         public int compare(File file1, File file2) {
-            return Long.valueOf(file1.lastModified()).compareTo(file2.lastModified());
+            return Long.valueOf(createdMillis(file1)).compareTo(createdMillis(file2));
         }
     };
 
+    private long createdMillis(final File file) {
+        final String name = file.getName();
+        final int end = name.endsWith(SUFFIX) ? name.length() - SUFFIX.length() : name.length();
+        return Long.parseLong(name.substring(filenamePrefix.length(), end));
+    }
+
     /**
-     * Number of records in overflow files.
+     * Number of records in overflow files that are not read yet.
      */
     public int size() {
-        int count = 0;
-        for (File file : getOverflowFiles()) {
-            count += countLines(file);
-        }
-        return count;
+        return size.get();
     }
 
-    public int countLines(File file) {
-        LineNumberReader lnr = null;
-        int count=0;
-        try {
-            lnr = new LineNumberReader(new FileReader(file));
-            while(lnr.skip(Long.MAX_VALUE)>0);
-            count = lnr.getLineNumber();
-            lnr.close();
-        } catch (IOException e) {
-            LOG.error("Can't read from file {} " + file.getPath());
-        } finally {
-            closeQuietly(lnr);
-        }
-        return count;
+    /**
+     * Number of bytes in overflow files, including the records that are read but not acknowledged yet.
+     */
+    public long sizeInBytes() {
+        return sizeInBytes.get();
     }
 
+    /**
+     * @return true if all records have been read.
+     */
     public boolean isEmpty() {
-        return getOverflowFiles().length == 0;
+        return size.get() == 0;
     }
 
+    /**
+     * Deletes all overflow files, the records that are read are acknowledged.
+     */
     public void clear() {
-        for (File file : getOverflowFiles()) {
-            if (!file.delete()) {
-                try {
-                    LOG.error("Error deleting file {}", file.getCanonicalPath());
-                } catch (IOException e) {
-                    LOG.error("Error deleting file {}", file.getName());
-                }
-            }
+        final List<OverflowFile> cleared;
+        synchronized (this) {
+            closeReader();
+            cleared = new ArrayList<OverflowFile>(files);
+            files.clear();
+            size.set(0);
+            sizeInBytes.set(0);
+            committed = nextSequence;
+            acked.clear();
         }
+        for (OverflowFile file : cleared) {
+            delete(file.file);
+        }
+        savePosition(null);
     }
 
     /**
-     * Saves the contents of the input queue to disk.
+     * Saves the given changes to a new overflow file.
+     *
+     * @return the file, or null if it could not be saved.
      */
-    public void save(final BlockingQueue<DelayedImpl<Change>> queue) {
+    public File save(final Collection<DelayedImpl<Change>> changes) {
         File file;
+        long millis = System.currentTimeMillis();
         do {
-            file = new File(logPath, filenamePrefix + System.currentTimeMillis());
+            file = new File(logPath, filenamePrefix + millis + SUFFIX);
+            millis++;
         } while (file.exists());
 
         try {
-            final PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
-            int count = 0;
-            while (!queue.isEmpty() && count < limit) {
-                try {
-                    final DelayedImpl<Change> delayed = queue.take();
-                    writer.println(delayed.toValue());
-                    count++;
-                } catch (InterruptedException e) {
-                    LOG.warn("Take from input queue interrupted: " + e.getMessage());
+            OverflowFileFormat.write(file, changes);
+            add(file, changes.size());
+            return file;
+        } catch (IOException e) {
+            LOG.error("Error saving overflow file {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads records at the cursor into the given collection, and sets their sequence numbers. A file that can not be
+     * read is left for inspection, reading goes on with the next one.
+     *
+     * @return the number of changes read.
+     */
+    public synchronized int read(final Collection<DelayedImpl<Change>> changes, final int max) {
+        int read = 0;
+        while (read < max && size.get() > 0) {
+            if (reader == null && !open()) {
+                continue;
+            }
+            final long before = reader.bytesRead();
+            try {
+                final DelayedImpl<Change> delayed = reader.next();
+                bytesRead += reader.bytesRead() - before;
+                if (delayed == null) {
+                    closeReader();
+                    continue;
+                }
+                delayed.sequence(readFile.firstSequence + reader.position() - 1);
+                size.decrementAndGet();
+                changes.add(delayed);
+                read++;
+            } catch (Exception e) {
+                LOG.error("Error reading overflow file {} after {} changes, leaving it for inspection: {}", readFile.file, reader.position(), e.getMessage());
+                abandon(readFile, reader.position());
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Marks a record as done with. Records that are not acknowledged are read again after a restart.
+     */
+    public synchronized void acknowledge(final long sequence) {
+        if (sequence < committed) {
+            return;
+        }
+        if (sequence == committed) {
+            committed++;
+            while (!acked.isEmpty() && acked.first() == committed) {
+                acked.pollFirst();
+                committed++;
+            }
+        } else {
+            acked.add(sequence);
+        }
+    }
+
+    /**
+     * Deletes the files of which all records are acknowledged, and saves the position in the first file.
+     *
+     * @return true if files were deleted.
+     */
+    public boolean sync() {
+        final List<File> done = new ArrayList<File>();
+        final String position;
+        synchronized (this) {
+            while (!files.isEmpty() && isDone(files.getFirst())) {
+                final OverflowFile file = files.removeFirst();
+                if (file == readFile) {
+                    closeReader();
                 }
+                sizeInBytes.addAndGet(-file.length);
+                done.add(file.file);
+            }
+            position = files.isEmpty() ? null : files.getFirst().file.getName() + " " + acknowledged(files.getFirst());
+        }
+        for (File file : done) {
+            delete(file);
+        }
+        savePosition(position);
+        return !done.isEmpty();
+    }
+
+    /**
+     * @return the number of bytes read by this instance.
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public void close() {
+        synchronized (this) {
+            closeReader();
+        }
+        sync();
+    }
+
+    private synchronized void add(final File file, final int count) {
+        final OverflowFile overflowFile = new OverflowFile(file, count, file.length());
+        sizeInBytes.addAndGet(overflowFile.length);
+        size.addAndGet(count);
+        files.add(overflowFile);
+    }
+
+    /**
+     * Opens the first file that was not read yet at the cursor, its records get the next sequence numbers. The
+     * records that were acknowledged in an earlier run are skipped.
+     *
+     * @return false if the file could not be opened.
+     */
+    private boolean open() {
+        OverflowFile file = null;
+        for (OverflowFile candidate : files) {
+            if (candidate.firstSequence < 0) {
+                file = candidate;
+                break;
             }
-            writer.flush();
-            writer.close();
+        }
+        if (file == null) {
+            LOG.error("Overflow files have {} changes left to read, but no file to read them from", size.get());
+            size.set(0);
+            return false;
+        }
+        file.firstSequence = nextSequence;
+        nextSequence += file.count;
+        for (int i = 0; i < file.skip; i++) {
+            acknowledge(file.firstSequence + i);
+        }
+        try {
+            reader = new OverflowFileFormat.Reader(file.file);
+            reader.skip(file.skip);
+            readFile = file;
+            return true;
         } catch (IOException e) {
-            LOG.error("Error saving overflow file {}: {}", file, e.getMessage());
+            LOG.error("Error reading overflow file {}, leaving it for inspection: {}", file.file, e.getMessage());
+            abandon(file, file.skip);
+            return false;
+        }
+    }
+
+    /**
+     * Stops reading a file, it stays on disk under a name that is not read again. The records after the given position
+     * are not read, so they count as acknowledged.
+     */
+    private void abandon(final OverflowFile file, final int position) {
+        if (file == readFile) {
+            closeReader();
+        }
+        quarantine(file.file);
+        files.remove(file);
+        size.addAndGet(-(file.count - position));
+        sizeInBytes.addAndGet(-file.length);
+        for (int i = position; i < file.count; i++) {
+            acknowledge(file.firstSequence + i);
+        }
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+            readFile = null;
+        }
+    }
+
+    private boolean isDone(final OverflowFile file) {
+        return acknowledged(file) == file.count;
+    }
+
+    /**
+     * @return the number of records at the start of the file that are acknowledged.
+     */
+    private int acknowledged(final OverflowFile file) {
+        if (file.firstSequence < 0) {
+            return file.skip;
+        }
+        return (int) Math.min(Math.max(committed - file.firstSequence, 0), file.count);
+    }
+
+    /**
+     * Renames a file that can not be read, so it is kept for inspection but not read again after a restart.
+     */
+    private void quarantine(final File file) {
+        final File corrupt = new File(file.getPath() + CORRUPT_SUFFIX);
+        if (!file.renameTo(corrupt)) {
+            LOG.error("Can not rename overflow file {} to {}", file, corrupt);
+        }
+    }
+
+    private void delete(final File file) {
+        if (!file.delete()) {
+            LOG.error("Can not remove file {}", file.getPath());
+        }
+    }
+
+    /**
+     * @return the name of the first file and the number of acknowledged records in it, or null if there is none.
+     */
+    private String readPosition() {
+        if (!positionFile.exists()) {
+            return null;
+        }
+        BufferedReader input = null;
+        try {
+            input = new BufferedReader(new InputStreamReader(new FileInputStream(positionFile), "UTF-8"));
+            return input.readLine();
+        } catch (IOException e) {
+            LOG.error("Error reading overflow position {}, reading from the start: {}", positionFile, e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Writes the position to a new file that replaces the old one, so a crash can not leave half a position.
+     */
+    private synchronized void savePosition(final String position) {
+        if (position == null ? savedPosition == null : position.equals(savedPosition)) {
+            return;
+        }
+        if (position == null) {
+            if (positionFile.exists() && !positionFile.delete()) {
+                LOG.error("Can not remove overflow position {}", positionFile);
+            }
+            savedPosition = null;
+            return;
+        }
+        final File written = new File(logPath, positionFile.getName() + ".new");
+        Writer output = null;
+        try {
+            output = new OutputStreamWriter(new FileOutputStream(written), "UTF-8");
+            output.write(position);
+            output.close();
+            output = null;
+            if (!written.renameTo(positionFile)) {
+                throw new IOException("can not rename " + written);
+            }
+            savedPosition = position;
+        } catch (IOException e) {
+            LOG.error("Error saving overflow position {}: {}", positionFile, e.getMessage());
+        } finally {
+            closeQuietly(output);
         }
     }
 
     /**
-     * Load the contents of the 'first in line' overflow file into the output queue.
+     * Rewrites an overflow file of the old text format, one line per change, in the binary format.
+     *
+     * @return the new file, or null if the file could not be migrated.
      */
-    public void load(final BlockingQueue<DelayedImpl<Change>> queue) {
-        final File[] files = getOverflowFiles();
+    private File migrate(final File file) {
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
         final DelayedImpl<Change> delayedFactory = new DelayedImpl<Change>(new Change(), 0);
         BufferedReader reader = null;
-
-        if (files.length > 0) {
-            final File file = files[0];
-            try {
-                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
-                String line = reader.readLine();
-                do {
-                    try {
-                        final DelayedImpl<Change> delayed = delayedFactory.fromValue(line);
-                        queue.put(delayed);
-                    } catch (InterruptedException e) {
-                        LOG.warn("Put into queue was interrupted: {}", e.getMessage());
-                    } catch (Exception e) {
-                        LOG.error("Unparsable overflow line " + line);
-                    }
-                    line = reader.readLine();
-                } while (line != null);
-                reader.close();
-                if (!file.delete()) {
-                    LOG.error("Can not remove file {}", file.getCanonicalPath());
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line = reader.readLine();
+            while (line != null) {
+                try {
+                    changes.add(delayedFactory.fromValue(line));
+                } catch (Exception e) {
+                    LOG.error("Unparsable overflow line " + line);
                 }
-            } catch (IOException e) {
-                LOG.error("Error loading overflow file {}: {}", file, e.getMessage());
-            } finally {
-                closeQuietly(reader);
+                line = reader.readLine();
+            }
+            reader.close();
+
+            final File migrated = new File(file.getPath() + SUFFIX);
+            OverflowFileFormat.write(migrated, changes);
+            if (!file.delete()) {
+                LOG.error("Can not remove migrated file {}", file.getPath());
             }
+            LOG.info("Migrated overflow file {} with {} changes", file, changes.size());
+            return migrated;
+        } catch (IOException e) {
+            LOG.error("Error migrating overflow file {}, leaving it for inspection: {}", file, e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(reader);
         }
     }
 
     /**
-     * Array of overflow files sorted by last modified date.
+     * Array of overflow files sorted by creation time.
      */
     private File[] getOverflowFiles() {
         final File[] files = new File(logPath).listFiles(filenameFilter);
@@ -158,7 +456,7 @@ public class UpdaterOverflowFileManager {
         return files;
     }
 
-    private void closeQuietly(Reader input) {
+    private void closeQuietly(Closeable input) {
         if (input == null) {
             return;
         }
@@ -167,4 +465,22 @@ public class UpdaterOverflowFileManager {
         } catch (IOException ioe) {
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * An overflow file with the sequence number of its first record, once the cursor has reached it.
+     */
+    private static final class OverflowFile {
+        private final File file;
+        private final int count;
+        private final long length;
+        private long firstSequence = -1;
+        // Records acknowledged in an earlier run
+        private int skip;
+
+        private OverflowFile(final File file, final int count, final long length) {
+            this.file = file;
+            this.count = count;
+            this.length = length;
+        }
+    }
+}
@@ -1,105 +1,888 @@
 package org.elasticsearch.plugin.degraphmalizer.updater;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.netty.util.Timeout;
+import org.elasticsearch.common.netty.util.Timer;
+import org.elasticsearch.common.netty.util.TimerTask;
 
-public class UpdaterQueue implements Runnable, UpdaterQueueMBean
+/**
+ * Queue of changes for a single index. Changes are coalesced: as long as a change has not been taken from the queue
+ * a newer change for the same type and id replaces it, so only the latest version is sent.
+ * <p/>
+ * Without a {@link SegmentLog} the changes are kept in memory, and spill to overflow files when there are too many.
+ * With a log every change is appended to the log before it is accepted, and only a window of the log is kept in
+ * memory. Changes taken from the queue must be acknowledged when they are done with, the changes that are not
+ * acknowledged are read again from the log, or from their overflow file, after a restart.
+ * <p/>
+ * The output queue has {@link WeightedLanes} of changes that are due: live changes, retries, and the backlog of changes
+ * reloaded from disk, the dirty set or a replay of the whole index. The lanes get their share of the changes taken by
+ * weight, so neither retries nor a backlog hold up live changes. Retries that are not due yet wait on a timing wheel,
+ * which puts them in their lane when they are, so nothing has to be kept sorted by due time.
+ * <p/>
+ * Without a log, a live change goes ahead of the backlog when its document is not in the backlog, see
+ * {@link BacklogKeys}, so it can not overtake an older version of the document. With a log the changes are read in the
+ * order of the log while it is behind.
+ * <p/>
+ * When the changes on disk exceed the {@link OverflowBudget}, new changes are kept in a {@link DirtySet}, wait for room,
+ * or are dropped and the index is marked as needing a full resync, depending on the policy.
+ * <p/>
+ * For indices with a lot of churn the queue can track dirty documents instead: new changes that can not go straight
+ * to the output queue only mark their document as dirty, and the latest version of each dirty document is queued when
+ * there is room. Memory and the overflow files at shutdown are then bounded by the number of distinct documents rather
+ * than by the number of changes.
+ * <p/>
+ * Changes left on disk by an earlier run are recovered in the background as soon as the queue is created: a window of
+ * the first overflow file is read, or the segment of the log at the cursor is prefetched. The overflow files are read
+ * a window at a time when the output queue is half empty, so sending does not wait for the disk and the heap does not
+ * grow with the backlog. An overflow file is deleted once all of its changes are acknowledged.
+ */
+public class UpdaterQueue implements UpdaterQueueMBean
 {
 
     private static final ESLogger LOG = Loggers.getLogger(UpdaterQueue.class);
+    // How often the acknowledged overflow files are deleted and the position in the first one is saved
+    private static final long OVERFLOW_SYNC_INTERVAL_MILLIS = 1000;
 
-    private final BlockingQueue<DelayedImpl<Change>> inputQueue = new LinkedBlockingQueue<DelayedImpl<Change>>();
-    private final BlockingQueue<DelayedImpl<Change>> outputQueue = new DelayQueue<DelayedImpl<Change>>();
+    // Number of documents told apart by the backlog keys
+    private static final int BACKLOG_KEY_BUCKETS = 1 << 16;
+
+    // Changes in the input queue are coalesced when they move to the output queue
+    private final CompactChangeQueue inputQueue = new CompactChangeQueue();
+    // The output queue
+    private final WeightedLanes lanes;
+    // The documents in the input queue and the overflow files. Guarded by itself while changes go in or out of the
+    // input queue, so they are counted when they are in it, and the keys are not cleared while a change goes in.
+    private final BacklogKeys backlogKeys = new BacklogKeys(BACKLOG_KEY_BUCKETS);
+    // Number of changes of a replay that have not been acknowledged, also those that were replaced
+    private final AtomicInteger replaySize = new AtomicInteger();
+
+    // The changes in the in-memory queues by key, guarded by itself
+    private final Map<ChangeKey, DelayedImpl<Change>> pending = new HashMap<ChangeKey, DelayedImpl<Change>>();
+    // Retries on the timer that are not due yet, guarded by pending
+    private final Map<DelayedImpl<Change>, Timeout> waiting = new IdentityHashMap<DelayedImpl<Change>, Timeout>();
+    // Replayed changes in the backlog lane that have not been replaced by a newer change, guarded by pending
+    private final Set<DelayedImpl<Change>> replays = Collections.newSetFromMap(new IdentityHashMap<DelayedImpl<Change>, Boolean>());
+    // Replayed changes in the backlog lane that were replaced, they are skipped, guarded by pending
+    private final Set<DelayedImpl<Change>> replacedReplays = Collections.newSetFromMap(new IdentityHashMap<DelayedImpl<Change>, Boolean>());
+    // The changes that carry a replayed change until they are acknowledged, guarded by pending
+    private final Set<DelayedImpl<Change>> unacknowledgedReplays = Collections.newSetFromMap(new IdentityHashMap<DelayedImpl<Change>, Boolean>());
+    private final Timer retryTimer;
+    private final AtomicLong coalesced = new AtomicLong();
+    private final UpdaterMetrics metrics;
 
     private final UpdaterOverflowFileManager overflowFileManager;
+    private final ScheduledFuture<?> overflowSync;
+    private final OverflowBudget budget;
+    private final DirtySet dirty = new DirtySet();
+    // Fresh changes go to the dirty set instead of the input queue
+    private final boolean dirtyDocuments;
+    // Bytes on disk last reported to the budget
+    private final AtomicLong reportedBytes = new AtomicLong();
+    // Notified when changes on disk are removed, for producers waiting for room
+    private final Object room = new Object();
+    private final AtomicLong blockedMillis = new AtomicLong();
+    // A producer waited for room until the timeout, later changes do not wait until the changes are within budget
+    private volatile boolean blockTimedOut;
+    private final AtomicLong dropped = new AtomicLong();
+    private final File resyncMarker;
+    private volatile boolean resyncNeeded;
+    private final SegmentLog log;
+    private ScheduledFuture<?> logSync;
 
     private int limit;
+    private int fileLimit;
 
     private String index;
 
-    private boolean shuttingDown = false;
+    private final ScheduledExecutorService executor;
+    private final Runnable onAvailable;
+
+    // Serializes the spilling and reloading done by maintenance and shutdown
+    private final Lock lock = new ReentrantLock();
+    private final AtomicBoolean maintenanceScheduled = new AtomicBoolean();
+
+    private volatile boolean shuttingDown = false;
+    private volatile boolean spilling = false;
+
+    /**
+     * @param executor runs the moving, spilling and reloading of changes
+     * @param retryTimer holds the retries until they are due
+     * @param onAvailable is run whenever changes are added to the output queue
+     */
+    public UpdaterQueue(final String logPath, final String index, final int limit, final ScheduledExecutorService executor, final Timer retryTimer, final Runnable onAvailable) {
+        this(logPath, index, limit, null, false, executor, retryTimer, OverflowBudget.unlimited(), new WeightedLanes(), onAvailable);
+    }
 
-    public UpdaterQueue(final String logPath, final String index, final int limit) {
+    /**
+     * @param log the log that keeps the changes, or null to keep them in memory
+     * @param dirtyDocuments true to track dirty documents instead of changes, only without a log
+     * @param budget limits the changes on disk
+     * @param lanes the lanes of the output queue, with their weights
+     */
+    public UpdaterQueue(final String logPath, final String index, final int limit, final SegmentLog log, final boolean dirtyDocuments, final ScheduledExecutorService executor, final Timer retryTimer, final OverflowBudget budget, final WeightedLanes lanes, final Runnable onAvailable) {
         this.limit = limit / 2;
+        this.lanes = lanes;
+        this.fileLimit = limit;
         this.index = index;
-        this.overflowFileManager = new UpdaterOverflowFileManager(logPath, index, limit);
+        this.executor = executor;
+        this.retryTimer = retryTimer;
+        this.onAvailable = onAvailable;
+        this.metrics = new UpdaterMetrics(executor);
+        this.overflowFileManager = new UpdaterOverflowFileManager(logPath, index);
+        this.log = log;
+        this.dirtyDocuments = dirtyDocuments && log == null;
+        if (dirtyDocuments && log != null) {
+            LOG.warn("Queue for index {} uses a log, it can not track dirty documents", index);
+        }
+        this.budget = budget;
+        this.resyncMarker = new File(logPath, index + "-resync-needed");
+        this.resyncNeeded = resyncMarker.exists();
+        if (resyncNeeded) {
+            LOG.warn("Index {} needs a full resync, changes were dropped when the overflow budget was exceeded", index);
+        }
+        reportDiskUsage();
+        if (!overflowFileManager.isEmpty()) {
+            backlogKeys.markUnknown();
+        }
+        metrics.recovered(overflowFileManager.size() + (log == null ? 0 : log.unread()));
+        if (log != null) {
+            if (!overflowFileManager.isEmpty()) {
+                LOG.warn("Queue for index {} uses a log, {} changes in overflow files are loaded first", index, overflowFileManager.size());
+            }
+            if (log.unread() > 0) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        log.prefetch();
+                    }
+                });
+            }
+            final long interval = log.getFsyncIntervalInMillis() > 0 ? log.getFsyncIntervalInMillis() : 1000;
+            logSync = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    log.sync();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        overflowSync = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (overflowFileManager.sync()) {
+                    reportDiskUsage();
+                    synchronized (room) {
+                        room.notifyAll();
+                    }
+                }
+            }
+        }, OVERFLOW_SYNC_INTERVAL_MILLIS, OVERFLOW_SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
         registerMBean();
+        signalWork();
     }
 
-    @Override
-    public void run()  {
-        // TODO should be using wait/notify
-        while (!shuttingDown) {
-            if (outputQueue.size() < limit) {
-                if (overflowFileManager.isEmpty()) {
-                    copyInputToOutput();
-                } else {
-                    if (outputQueue.isEmpty()) {
-                        overflowFileManager.load(outputQueue);
-                    }
-                    if (inputQueue.size() >= limit) {
-                        overflowFileManager.save(inputQueue);
-                    }
-                    nap();
+    /**
+     * Moves changes from the input queue to the output queue, and spills to and reloads from the overflow files. It
+     * is only scheduled when add, take or poll signal that there is work to do, and does one step at a time so the
+     * queues of other indices get their turn.
+     */
+    private final Runnable maintenance = new Runnable() {
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                if (!shuttingDown && needsWork()) {
+                    maintain();
                 }
+            } catch (Exception e) {
+                LOG.error("Maintenance of queue for index {} failed: {}", index, e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+            maintenanceScheduled.set(false);
+            signalWork();
+        }
+    };
+
+    private void maintain() {
+        if (canLoadDirty()) {
+            loadDirty();
+        } else if (log != null && overflowFileManager.isEmpty()) {
+            if (inputQueue.isEmpty()) {
+                loadFromLog();
             } else {
-                if (inputQueue.size() >= limit) {
-                    overflowFileManager.save(inputQueue);
-                }
-                nap();
+                copyInputToOutput();
+            }
+        } else if (overflowFileManager.isEmpty() && lanes.backlog.size() < limit) {
+            copyInputToOutput();
+        } else if (canLoad()) {
+            load();
+            if (inputQueue.size() >= limit) {
+                saveInput();
+            }
+        } else if (inputQueue.size() >= limit) {
+            saveInput();
+        }
+        synchronized (backlogKeys) {
+            if (inputQueue.isEmpty() && overflowFileManager.isEmpty()) {
+                backlogKeys.clear();
+            }
+        }
+        reportDiskUsage();
+    }
+
+    private boolean needsWork() {
+        if (canLoadDirty()) {
+            return true;
+        }
+        if (log != null && overflowFileManager.isEmpty()) {
+            return lanes.backlog.size() < limit && (!inputQueue.isEmpty() || log.unread() > 0);
+        }
+        if (inputQueue.size() >= limit) {
+            return true;
+        }
+        if (overflowFileManager.isEmpty()) {
+            return !inputQueue.isEmpty() && lanes.backlog.size() < limit;
+        }
+        return canLoad();
+    }
+
+    /**
+     * The next window of the overflow files is read when the backlog lane is half empty, so it does not run dry.
+     */
+    private boolean canLoad() {
+        return !overflowFileManager.isEmpty() && lanes.backlog.size() <= limit / 2;
+    }
+
+    private void signalWork() {
+        if (!shuttingDown && needsWork() && maintenanceScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(maintenance);
+            } catch (RejectedExecutionException e) {
+                maintenanceScheduled.set(false);
+                LOG.debug("Maintenance of queue for index {} rejected, executor is shut down", index);
             }
         }
-        flushInMemoryQueuesToDisk();
     }
 
     private void copyInputToOutput() {
-        try {
-            final DelayedImpl<Change> delayedChange = inputQueue.poll(1, TimeUnit.SECONDS); // Use poll() instead of take() to not miss the shutdown flag getting flipped to true.
-            if (delayedChange != null)  {
-                outputQueue.add(delayedChange);
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        synchronized (backlogKeys) {
+            inputQueue.drainTo(changes, limit - lanes.backlog.size());
+            for (DelayedImpl<Change> delayed : changes) {
+                backlogKeys.remove(delayed.thing());
             }
-        } catch (InterruptedException e) {
-            LOG.warn("Getting change from input queue interrupted: " + e.getMessage());
+        }
+        if (!changes.isEmpty()) {
+            for (DelayedImpl<Change> delayed : changes) {
+                if (coalesce(delayed)) {
+                    enqueue(delayed, lanes.backlog);
+                }
+            }
+            onAvailable.run();
+        }
+    }
+
+    /**
+     * Adds a change. If its document is not in the input queue, on disk or in the dirty set, a fresh change goes
+     * straight to the live lane without scheduling maintenance. A retry goes straight to the timer if nothing is
+     * waiting at all, unless there are too many retries waiting already. When tracking dirty documents, other fresh
+     * changes only mark their document as dirty; retries keep their retry state in the input queue.
+     */
+    public void add(final DelayedImpl<Change> change)
+    {
+        final boolean retry = change.getDelay(TimeUnit.MILLISECONDS) > 0;
+        if (log != null && overflowFileManager.isEmpty()) {
+            if ((log.unread() == 0 && dirty.isEmpty()) || admit(change)) {
+                addToLog(change, lanes.live);
+            }
+            return;
+        }
+        final boolean direct = retry
+                ? backlogKeys.isEmpty() && dirty.isEmpty() && waitingSize() < limit
+                : lanes.live.size() < limit && !isBehind(change.thing());
+        if (!spilling && direct) {
+            if (coalesce(change)) {
+                enqueue(change, lanes.live);
+                onAvailable.run();
+            }
+        } else if (dirtyDocuments && !retry) {
+            if (dirty.add(change.thing())) {
+                coalesced.incrementAndGet();
+            }
+            signalWork();
+        } else if (admit(change)) {
+            synchronized (backlogKeys) {
+                inputQueue.add(change);
+                backlogKeys.add(change.thing());
+            }
+            signalWork();
         }
     }
 
-    private void nap() {
+    /**
+     * @return true if a change for the document may be waiting in the input queue, on disk or in the dirty set
+     */
+    private boolean isBehind(final Change change) {
+        if (backlogKeys.mayContain(change)) {
+            return true;
+        }
+        return !dirty.isEmpty() && dirty.contains(change);
+    }
+
+    /**
+     * Adds a change of a replay to the backlog lane, unless a change for the document is pending already. A change for
+     * the document that comes in later takes the place of the replayed one in its own lane. Replayed changes are kept
+     * in memory only, the replay keeps track of how far it got, and it adds a chunk only when the last one was
+     * acknowledged.
+     */
+    public void addReplay(final Change change) {
+        final DelayedImpl<Change> delayed = DelayedImpl.immediate(change);
+        synchronized (pending) {
+            final ChangeKey key = new ChangeKey(change);
+            if (pending.containsKey(key)) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            pending.put(key, delayed);
+            replays.add(delayed);
+            unacknowledgedReplays.add(delayed);
+        }
+        replaySize.incrementAndGet();
+        lanes.backlog.add(delayed);
+        onAvailable.run();
+    }
+
+    /**
+     * @return the number of changes of a replay that have not been acknowledged
+     */
+    public int getReplaySize() {
+        return replaySize.get();
+    }
+
+    /**
+     * Applies the policy of the budget if the changes on disk exceed it. A document that is in the dirty set stays
+     * there, so an older version from the set can not follow a newer one.
+     * <p/>
+     * Adding a change never waits, also not with the block policy: the changes come from the ingester, retries and
+     * the workers, which other indices depend on. The producer waits in {@link #awaitRoom()} before it hands over the
+     * change, and the changes that still find the queue over budget are kept in the dirty set.
+     *
+     * @return true if the change may be queued
+     */
+    private boolean admit(final DelayedImpl<Change> change) {
+        if (!dirty.isEmpty() && dirty.contains(change.thing())) {
+            dirty.add(change.thing());
+            coalesced.incrementAndGet();
+            acknowledge(change);
+            return false;
+        }
+        if (!isOverBudget()) {
+            return true;
+        }
+        switch (budget.getPolicy()) {
+            case BLOCK:
+            case DIRTY:
+                dirty.add(change.thing());
+                acknowledge(change);
+                return false;
+            default:
+                drop(change);
+                return false;
+        }
+    }
+
+    /**
+     * With the block policy, makes the producer of a change wait until the changes on disk are within budget, before
+     * the change is added. It waits once per overload: after a timeout the changes are kept in the dirty set until the
+     * changes on disk are within budget again.
+     */
+    public void awaitRoom() {
+        if (budget.getPolicy() != OverflowBudget.Policy.BLOCK) {
+            return;
+        }
+        if (!isOverBudget()) {
+            blockTimedOut = false;
+            return;
+        }
+        if (!blockTimedOut && !waitForRoom()) {
+            blockTimedOut = true;
+            LOG.warn("Overflow budget of index {} exceeded for {} milliseconds, keeping the latest version of changed documents until it is within budget", index, budget.getBlockTimeoutInMillis());
+        }
+    }
+
+    /**
+     * Waits until the changes on disk are within budget again, or the block timeout passes.
+     *
+     * @return true if there is room
+     */
+    private boolean waitForRoom() {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + budget.getBlockTimeoutInMillis();
         try {
-            Thread.sleep(250);
+            synchronized (room) {
+                long remaining;
+                while (isOverBudget() && !shuttingDown && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    // other indices do not notify, so check the node budget now and then
+                    room.wait(Math.min(remaining, 100));
+                }
+            }
         } catch (InterruptedException e) {
-            // ignored
+            Thread.currentThread().interrupt();
+        } finally {
+            blockedMillis.addAndGet(System.currentTimeMillis() - start);
+        }
+        return !isOverBudget();
+    }
 
+    private void drop(final DelayedImpl<Change> change) {
+        acknowledge(change);
+        dropped.incrementAndGet();
+        if (!resyncNeeded) {
+            resyncNeeded = true;
+            LOG.error("Overflow budget of index {} exceeded, dropping changes, the index needs a full resync", index);
+            try {
+                if (!resyncMarker.createNewFile() && !resyncMarker.exists()) {
+                    LOG.error("Can not create resync marker {}", resyncMarker);
+                }
+            } catch (IOException e) {
+                LOG.error("Can not create resync marker {}: {}", resyncMarker, e.getMessage());
+            }
         }
+        LOG.debug("Dropped change {} for index {}", change.thing(), index);
     }
 
-    public void add(final DelayedImpl<Change> change)
-    {
-        inputQueue.add(change);
+    @Override
+    public boolean isOverBudget() {
+        final long records = overflowFileManager.size() + (log == null ? 0 : log.unread());
+        return budget.isExceeded(reportDiskUsage(), records);
+    }
+
+    /**
+     * Reports the change in the bytes on disk of this queue to the node budget.
+     *
+     * @return the bytes on disk
+     */
+    private long reportDiskUsage() {
+        final long bytes = overflowFileManager.sizeInBytes() + (log == null || log.unread() == 0 ? 0 : log.getSizeInBytes());
+        budget.addNodeBytes(bytes - reportedBytes.getAndSet(bytes));
+        return bytes;
+    }
+
+    /**
+     * The dirty documents are queued again when the backlog is gone.
+     */
+    private boolean canLoadDirty() {
+        return !dirty.isEmpty() && lanes.backlog.size() < limit && inputQueue.isEmpty() && overflowFileManager.isEmpty() && (log == null || log.unread() == 0);
+    }
+
+    private void loadDirty() {
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        dirty.drainTo(changes, limit - lanes.backlog.size());
+        for (DelayedImpl<Change> delayed : changes) {
+            if (log != null) {
+                addToLog(delayed, lanes.backlog);
+            } else if (coalesce(delayed)) {
+                enqueue(delayed, lanes.backlog);
+            }
+        }
+        onAvailable.run();
+    }
+
+    /**
+     * The change goes straight to the output queue if all earlier changes in the log have been read. A change that is
+     * in the log already, because it was taken and put back, is not appended again.
+     */
+    private void addToLog(final DelayedImpl<Change> change, final WeightedLanes.Lane lane) {
+        if (change.sequence() < 0) {
+            try {
+                if (!log.append(change, lane.size() < limit)) {
+                    signalWork();
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.error("Error appending {} to the log of index {}, keeping it in memory only: {}", change.thing(), index, e.getMessage());
+            }
+        }
+        if (coalesce(change)) {
+            enqueue(change, lane);
+            onAvailable.run();
+        }
+    }
+
+    /**
+     * Puts a change that is not pending yet in the given lane, a retry in the retry lane, or on the timer if it is not
+     * due yet.
+     */
+    private void enqueue(final DelayedImpl<Change> delayed, final WeightedLanes.Lane lane) {
+        final long delay = delayed.getDelay(TimeUnit.MILLISECONDS);
+        if (delay > 0) {
+            synchronized (pending) {
+                try {
+                    waiting.put(delayed, retryTimer.newTimeout(new RetryTask(delayed), delay, TimeUnit.MILLISECONDS));
+                    return;
+                } catch (IllegalStateException e) {
+                    LOG.debug("Retry timer is stopped, change {} for index {} is due now", delayed.thing(), index);
+                }
+            }
+        }
+        if (delayed.delayInMillis() > 0) {
+            lanes.retry.add(delayed);
+        } else {
+            lane.add(delayed);
+        }
+    }
+
+    /**
+     * Moves a retry that is due from the timer to its lane, unless it was replaced or saved in the meantime.
+     */
+    private final class RetryTask implements TimerTask {
+        private final DelayedImpl<Change> delayed;
+
+        private RetryTask(final DelayedImpl<Change> delayed) {
+            this.delayed = delayed;
+        }
+
+        @Override
+        public void run(final Timeout timeout) {
+            synchronized (pending) {
+                if (waiting.remove(delayed) == null) {
+                    return;
+                }
+            }
+            lanes.retry.add(delayed);
+            onAvailable.run();
+        }
+    }
+
+    /**
+     * Puts all retries that wait on the timer in the retry lane, with their delays, so they can be saved.
+     */
+    private void stopWaiting() {
+        final List<DelayedImpl<Change>> changes;
+        synchronized (pending) {
+            for (Timeout timeout : waiting.values()) {
+                timeout.cancel();
+            }
+            changes = new ArrayList<DelayedImpl<Change>>(waiting.keySet());
+            waiting.clear();
+        }
+        lanes.retry.addAll(changes);
+    }
+
+    private int waitingSize() {
+        synchronized (pending) {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * Marks a change that was taken from the queue as done with, so its record in the log or overflow file can go.
+     */
+    public void acknowledge(final DelayedImpl<Change> change) {
+        if (replaySize.get() > 0) {
+            synchronized (pending) {
+                if (unacknowledgedReplays.remove(change)) {
+                    replaySize.decrementAndGet();
+                }
+            }
+        }
+        if (change.sequence() < 0) {
+            return;
+        }
+        if (log != null) {
+            log.acknowledge(change.sequence());
+        } else {
+            overflowFileManager.acknowledge(change.sequence());
+        }
     }
 
-    public DelayedImpl<Change> take() throws InterruptedException
+    /**
+     * @return the next change that is due, or null if there is none. The lanes get their turns by weight.
+     */
+    public DelayedImpl<Change> poll()
     {
-        return outputQueue.take();
+        WeightedLanes.Lane lane;
+        while ((lane = lanes.next()) != null) {
+            final DelayedImpl<Change> delayed = poll(lane);
+            if (delayed != null) {
+                lane.taken();
+                return refill(taken(delayed));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the oldest change in the lane, or null if there is none. Replayed changes that were replaced are skipped.
+     */
+    private DelayedImpl<Change> poll(final WeightedLanes.Lane lane) {
+        DelayedImpl<Change> delayed;
+        while ((delayed = lane.poll()) != null) {
+            if (lane != lanes.backlog) {
+                return delayed;
+            }
+            synchronized (pending) {
+                if (replays.remove(delayed) || !replacedReplays.remove(delayed)) {
+                    return delayed;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the oldest change of the first lane that is not empty, for saving the lanes
+     */
+    private DelayedImpl<Change> pollAny() {
+        DelayedImpl<Change> delayed = poll(lanes.live);
+        if (delayed == null) {
+            delayed = poll(lanes.retry);
+        }
+        if (delayed == null) {
+            delayed = poll(lanes.backlog);
+        }
+        return delayed;
+    }
+
+    /**
+     * Merges the change with a pending change for the same key, if there is one.
+     *
+     * @return true if the change is new and still needs to be queued
+     */
+    private boolean coalesce(final DelayedImpl<Change> delayed) {
+        final Change change = delayed.thing();
+        final ChangeKey key = new ChangeKey(change);
+        synchronized (pending) {
+            final DelayedImpl<Change> existing = pending.get(key);
+            if (existing == null) {
+                pending.put(key, delayed);
+                return true;
+            }
+            if (replays.remove(existing)) {
+                // the change takes the place of the replayed change, so it does not wait in the backlog lane
+                replacedReplays.add(existing);
+                unacknowledgedReplays.remove(existing);
+                unacknowledgedReplays.add(delayed);
+                delayed.replace(merge(existing.thing(), change));
+                pending.put(key, delayed);
+                coalesced.incrementAndGet();
+                return true;
+            }
+            final Change merged = merge(existing.thing(), change);
+            if (merged == change && waiting.containsKey(existing) && delayed.dueMillis() < existing.dueMillis()) {
+                // the newer version does not have to wait for the retry it replaces
+                LOG.trace("Change {} replaces waiting retry {}", merged, existing.thing());
+                waiting.remove(existing).cancel();
+                acknowledge(existing);
+                pending.put(key, delayed);
+                coalesced.incrementAndGet();
+                return true;
+            } else if (merged == change) {
+                LOG.trace("Change {} replaces pending {}", merged, existing.thing());
+                existing.replace(merged);
+                acknowledge(existing);
+                existing.sequence(delayed.sequence());
+            } else if (merged != existing.thing()) {
+                LOG.trace("Change {} replaces pending {}", merged, existing.thing());
+                existing.replace(merged);
+                if (log != null && existing.sequence() >= 0) {
+                    // the merged change is in neither record, the log needs a record of its own
+                    try {
+                        acknowledge(existing);
+                        log.append(existing, false);
+                        log.acknowledge(delayed.sequence());
+                    } catch (IOException e) {
+                        LOG.error("Error appending {} to the log of index {}: {}", merged, index, e.getMessage());
+                    }
+                } else {
+                    // the merged change is only in memory, like the other changes without a record
+                    acknowledge(delayed);
+                }
+            } else {
+                LOG.trace("Change {} is superseded by pending {}", change, existing.thing());
+                acknowledge(delayed);
+            }
+        }
+        coalesced.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * A newer version replaces an older one, also when the older one is a retry for a single index or alias: the
+     * newer version is sent to all of them. For the same version a delete wins, since an update can not follow it.
+     * Retries of the same change for different targets become a retry for the index and all its aliases.
+     *
+     * @return the change that stays in the queue
+     */
+    static Change merge(final Change existing, final Change change) {
+        if (change.version() != existing.version()) {
+            return change.version() > existing.version() ? change : existing;
+        }
+        if (change.action() != existing.action()) {
+            return change.action() == Action.DELETE ? change : existing;
+        }
+        final String existingTarget = existing.getIndexNameOrAlias();
+        final String target = change.getIndexNameOrAlias();
+        if (existingTarget == null) {
+            return existing;
+        }
+        if (target == null) {
+            return change;
+        }
+        if (existingTarget.equals(target)) {
+            return existing.retries() >= change.retries() ? existing : change;
+        }
+        return new RetryChange(existing, null, Math.max(existing.retries(), change.retries()));
+    }
+
+    /**
+     * Removes a change that is leaving the in-memory queues from the pending changes. The change is read after the
+     * removal, so a concurrent coalesce can not get lost.
+     */
+    private DelayedImpl<Change> taken(final DelayedImpl<Change> delayed) {
+        synchronized (pending) {
+            final ChangeKey key = new ChangeKey(delayed.thing());
+            if (pending.get(key) == delayed) {
+                pending.remove(key);
+            }
+        }
+        return delayed;
+    }
+
+    /**
+     * Schedules maintenance if the output queue can be refilled.
+     */
+    private DelayedImpl<Change> refill(final DelayedImpl<Change> delayed) {
+        if (!(inputQueue.isEmpty() && overflowFileManager.isEmpty() && (log == null || log.unread() == 0) && dirty.isEmpty())) {
+            signalWork();
+        }
+        return delayed;
+    }
+
+    /**
+     * @return true if a change is due
+     */
+    public boolean hasReady() {
+        return lanes.size() > 0;
+    }
+
+    /**
+     * While spilling, add keeps new changes out of the output queue: a newer version of a change that is being
+     * written to disk must not overtake it.
+     */
+    private void saveOutput() {
+        spilling = true;
+        try {
+            final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+            DelayedImpl<Change> delayed;
+            while (changes.size() < fileLimit && (delayed = pollAny()) != null) {
+                changes.add(taken(delayed));
+            }
+            if (!changes.isEmpty()) {
+                save(changes);
+            }
+        } finally {
+            spilling = false;
+        }
+    }
+
+    /**
+     * The changes stay counted in the backlog keys while they are written, so add keeps newer versions behind them.
+     */
+    private void saveInput() {
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        inputQueue.drainTo(changes, fileLimit);
+        save(changes);
+    }
+
+    /**
+     * Saves the changes to a new overflow file. Once they are saved, the records they were read from are done with.
+     */
+    private void save(final List<DelayedImpl<Change>> changes) {
+        final File file = overflowFileManager.save(changes);
+        if (file != null) {
+            metrics.spilled(changes.size(), file.length());
+            for (DelayedImpl<Change> delayed : changes) {
+                acknowledge(delayed);
+                delayed.sequence(-1);
+            }
+        }
+    }
+
+    /**
+     * Reads the next window of the overflow files, as many changes as fit in the output queue. With a log the changes
+     * are acknowledged right away and kept in memory, they are appended to the log on shutdown.
+     */
+    private void load() {
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        final long bytesRead = overflowFileManager.getBytesRead();
+        overflowFileManager.read(changes, limit - lanes.backlog.size());
+        metrics.reloaded(changes.size(), overflowFileManager.getBytesRead() - bytesRead);
+        for (DelayedImpl<Change> delayed : changes) {
+            backlogKeys.remove(delayed.thing());
+            if (log != null) {
+                overflowFileManager.acknowledge(delayed.sequence());
+                delayed.sequence(-1);
+            }
+            if (coalesce(delayed)) {
+                enqueue(delayed, lanes.backlog);
+            }
+        }
+        synchronized (room) {
+            room.notifyAll();
+        }
+        onAvailable.run();
+    }
+
+    /**
+     * Reads changes from the log until the output queue is full.
+     */
+    private void loadFromLog() {
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        final long bytesRead = log.getBytesRead();
+        log.read(changes, limit - lanes.backlog.size());
+        metrics.reloaded(changes.size(), log.getBytesRead() - bytesRead);
+        for (DelayedImpl<Change> delayed : changes) {
+            if (coalesce(delayed)) {
+                enqueue(delayed, lanes.backlog);
+            }
+        }
+        onAvailable.run();
     }
 
     public boolean isEmpty()
     {
-        return inputQueue.isEmpty() && outputQueue.isEmpty() && overflowFileManager.isEmpty();
+        return inputQueue.isEmpty() && lanes.size() == 0 && waitingSize() == 0 && overflowFileManager.isEmpty() && (log == null || log.unread() == 0) && dirty.isEmpty();
     }
 
     @Override
     public int size()
     {
-        return inputQueue.size() + outputQueue.size() + overflowFileManager.size();
+        return inputQueue.size() + lanes.size() + waitingSize() + overflowFileManager.size() + (log == null ? 0 : log.unread()) + dirty.size();
     }
 
     @Override
@@ -110,12 +893,76 @@ public class UpdaterQueue implements Runnable, UpdaterQueueMBean
 
     @Override
     public int getOutputQueueSize() {
-        return outputQueue.size();
+        return lanes.size() + waitingSize();
+    }
+
+    @Override
+    public Map<String, Integer> getLaneSizes() {
+        return lanes.sizes();
+    }
+
+    @Override
+    public Map<String, Long> getLaneAgeMillis() {
+        return lanes.oldestAgeMillis();
+    }
+
+    @Override
+    public Map<String, Long> getLaneTakenCounts() {
+        return lanes.takenCounts();
+    }
+
+    @Override
+    public int getWaitingRetryCount() {
+        return waitingSize();
     }
 
     @Override
     public int getOverflowSize()  {
-        return overflowFileManager.size();
+        return overflowFileManager.size() + (log == null ? 0 : log.unread());
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return budget.toString();
+    }
+
+    @Override
+    public long getOverflowBytes() {
+        return reportDiskUsage();
+    }
+
+    @Override
+    public int getDirtySize() {
+        return dirty.size();
+    }
+
+    @Override
+    public long getBlockedMillis() {
+        return blockedMillis.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public boolean isResyncNeeded() {
+        return resyncNeeded;
+    }
+
+    @Override
+    public void clearResyncNeeded() {
+        resyncNeeded = false;
+        if (resyncMarker.exists() && !resyncMarker.delete()) {
+            LOG.error("Can not remove resync marker {}", resyncMarker);
+        }
+        LOG.info("Index {} is marked as resynced", index);
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.get();
     }
 
     @Override
@@ -123,24 +970,202 @@ public class UpdaterQueue implements Runnable, UpdaterQueueMBean
         return index;
     }
 
+    UpdaterMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public double getQueueLatencyP50Millis() {
+        return metrics.queueLatency().percentileMillis(0.5);
+    }
+
+    @Override
+    public double getQueueLatencyP99Millis() {
+        return metrics.queueLatency().percentileMillis(0.99);
+    }
+
+    @Override
+    public double getQueueLatencyMaxMillis() {
+        return metrics.queueLatency().maxMillis();
+    }
+
+    @Override
+    public double getRequestLatencyP50Millis() {
+        return metrics.requestLatency().percentileMillis(0.5);
+    }
+
+    @Override
+    public double getRequestLatencyP99Millis() {
+        return metrics.requestLatency().percentileMillis(0.99);
+    }
+
+    @Override
+    public double getRequestLatencyMaxMillis() {
+        return metrics.requestLatency().maxMillis();
+    }
+
+    @Override
+    public long getSendCount() {
+        return metrics.sendCount();
+    }
+
+    @Override
+    public double getSendsPerSecond() {
+        return metrics.sendsPerSecond();
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByStatus() {
+        return metrics.failuresByStatus();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return metrics.retryCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return metrics.errorCount();
+    }
+
+    @Override
+    public long getSpilledChanges() {
+        return metrics.spilledChanges();
+    }
+
+    @Override
+    public long getSpilledBytes() {
+        return metrics.spilledBytes();
+    }
+
+    @Override
+    public long getReloadedChanges() {
+        return metrics.reloadedChanges();
+    }
+
+    @Override
+    public long getReloadedBytes() {
+        return metrics.reloadedBytes();
+    }
+
+    @Override
+    public int getRecoveredChanges() {
+        return metrics.recoveredChanges();
+    }
+
+    @Override
+    public long getTimeToFirstSendMillis() {
+        return metrics.timeToFirstSendMillis();
+    }
+
+    @Override
+    public long getHeldChanges() {
+        return metrics.heldChanges();
+    }
+
+    @Override
+    public long getCircuitBreakerOpenings() {
+        return metrics.breakerOpenings();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return metrics.concurrencyLimit();
+    }
+
+    /**
+     * Stops maintenance and saves the in-memory queues to disk. With a log the changes are on disk already, they are
+     * read again from the log after a restart.
+     */
     public void shutdown() {
-        shuttingDown = true; // Flag for thread to shut down
+        shuttingDown = true;
+        metrics.close();
+        synchronized (room) {
+            room.notifyAll();
+        }
+        lock.lock();
+        try {
+            overflowSync.cancel(false);
+            if (log != null) {
+                logSync.cancel(false);
+                appendUnloggedChanges();
+                log.close();
+            } else {
+                flushInMemoryQueuesToDisk();
+            }
+            overflowFileManager.close();
+        } finally {
+            lock.unlock();
+        }
+        budget.addNodeBytes(-reportedBytes.getAndSet(0));
     }
 
     @Override
     public void clear() {
-        inputQueue.clear();
-        outputQueue.clear();
+        synchronized (pending) {
+            inputQueue.clear();
+            lanes.clear();
+            replaySize.set(0);
+            replays.clear();
+            replacedReplays.clear();
+            unacknowledgedReplays.clear();
+            for (Timeout timeout : waiting.values()) {
+                timeout.cancel();
+            }
+            waiting.clear();
+            pending.clear();
+        }
+        dirty.clear();
         overflowFileManager.clear();
+        backlogKeys.clear();
+        if (log != null) {
+            log.clear();
+        }
+        reportDiskUsage();
+        synchronized (room) {
+            room.notifyAll();
+        }
+    }
+
+    /**
+     * Changes that were queued before the overflow files of an earlier run were loaded, or that could not be appended,
+     * are only in memory.
+     */
+    private void appendUnloggedChanges() {
+        stopWaiting();
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        DelayedImpl<Change> delayed;
+        while ((delayed = pollAny()) != null) {
+            changes.add(delayed);
+        }
+        inputQueue.drainTo(changes, Integer.MAX_VALUE);
+        dirty.drainTo(changes, Integer.MAX_VALUE);
+        for (DelayedImpl<Change> change : changes) {
+            if (change.sequence() < 0) {
+                try {
+                    log.append(change, false);
+                } catch (IOException e) {
+                    LOG.error("Error appending {} to the log of index {}, it is lost: {}", change.thing(), index, e.getMessage());
+                }
+            }
+        }
     }
 
     private void flushInMemoryQueuesToDisk(){
-        while (!outputQueue.isEmpty()) {
-            overflowFileManager.save(outputQueue);
+        stopWaiting();
+        while (lanes.size() > 0) {
+            saveOutput();
         }
 
         while (!inputQueue.isEmpty()) {
-            overflowFileManager.save(inputQueue);
+            saveInput();
+        }
+
+        while (!dirty.isEmpty()) {
+            final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+            dirty.drainTo(changes, fileLimit);
+            save(changes);
         }
     }
 
@@ -158,4 +1183,38 @@ public class UpdaterQueue implements Runnable, UpdaterQueueMBean
             LOG.error("Failed to register MBean", e);
         }
     }
+
+    /**
+     * Identifies the document a change is about. Retries for an alias have the same key as changes for the index, so
+     * a newer version of a document never overtakes a retry of an older one.
+     */
+    static final class ChangeKey {
+        private final String type;
+        private final String id;
+
+        ChangeKey(final Change change) {
+            this.type = change.type();
+            this.id = change.id();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ChangeKey key = (ChangeKey) o;
+
+            if (!id.equals(key.id)) return false;
+            if (!type.equals(key.type)) return false;
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = type.hashCode();
+            result = 31 * result + id.hashCode();
+            return result;
+        }
+    }
 }
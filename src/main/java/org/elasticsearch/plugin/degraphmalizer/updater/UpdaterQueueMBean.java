@@ -4,6 +4,8 @@
  */
 package org.elasticsearch.plugin.degraphmalizer.updater;
 
+import java.util.Map;
+
 /**
  * MBean interface for JMX monitoring.
  */
@@ -12,6 +14,49 @@ public interface UpdaterQueueMBean {
     int getInputQueueSize();
     int getOutputQueueSize();
     int getOverflowSize();
+    int getWaitingRetryCount();
+    // Number of changes, time the oldest change has been due, and number of changes taken, per lane of the output queue
+    Map<String, Integer> getLaneSizes();
+    Map<String, Long> getLaneAgeMillis();
+    Map<String, Long> getLaneTakenCounts();
+    long getCoalescedCount();
     String getIndex();
+
+    // Time from a change being added until the Degraphmalizer confirms it, over the last minutes
+    double getQueueLatencyP50Millis();
+    double getQueueLatencyP99Millis();
+    double getQueueLatencyMaxMillis();
+    // Round trip time of the requests, over the last minutes
+    double getRequestLatencyP50Millis();
+    double getRequestLatencyP99Millis();
+    double getRequestLatencyMaxMillis();
+    long getSendCount();
+    double getSendsPerSecond();
+    Map<String, Long> getFailuresByStatus();
+    long getRetryCount();
+    long getErrorCount();
+    long getSpilledChanges();
+    long getSpilledBytes();
+    long getReloadedChanges();
+    long getReloadedBytes();
+
+    // Recovery of the changes left on disk by an earlier run
+    int getRecoveredChanges();
+    long getTimeToFirstSendMillis();
+
+    // Circuit breakers and the adaptive number of requests in flight
+    long getHeldChanges();
+    long getCircuitBreakerOpenings();
+    int getConcurrencyLimit();
+
+    // Overflow budget and what happens to changes when it is exceeded
+    String getOverflowPolicy();
+    long getOverflowBytes();
+    boolean isOverBudget();
+    int getDirtySize();
+    long getBlockedMillis();
+    long getDroppedCount();
+    boolean isResyncNeeded();
+    void clearResyncNeeded();
     void clear();
 }
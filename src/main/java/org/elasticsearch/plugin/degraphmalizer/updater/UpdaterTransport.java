@@ -0,0 +1,27 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.List;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+/**
+ * Sends the requests of an Updater to a Degraphmalizer. The requests have a path only, the Updater picks the
+ * Degraphmalizer for each call.
+ */
+public interface UpdaterTransport {
+    /**
+     * Sends the requests in the given order. When all requests are done the callback gets the responses in the same
+     * order, with null for every request that could not be executed. The entities of the responses are fully read.
+     * <p/>
+     * The callback may be called on the calling thread, before this method returns.
+     */
+    void execute(HttpHost target, List<HttpRequest> requests, Callback callback);
+
+    void close();
+
+    interface Callback {
+        void completed(List<HttpResponse> responses);
+    }
+}
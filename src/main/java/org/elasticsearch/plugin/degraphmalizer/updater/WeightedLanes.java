@@ -0,0 +1,182 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lanes of an {@link UpdaterQueue} with the changes that are due: live changes, retries, and the backlog of changes
+ * reloaded from disk or replayed. The next change comes from the lane picked by a smooth weighted round robin over the
+ * lanes that are not empty. While all lanes have changes each lane gets its weight's share of the changes taken, a
+ * lane that runs empty leaves its share to the others and does not save it up. So live changes always get at least
+ * their share, however large the backlog. A lane with weight 0 is only taken from when the others are empty.
+ */
+final class WeightedLanes {
+    static final int DEFAULT_LIVE_WEIGHT = 6;
+    static final int DEFAULT_RETRY_WEIGHT = 2;
+    static final int DEFAULT_BACKLOG_WEIGHT = 2;
+
+    final Lane live;
+    final Lane retry;
+    final Lane backlog;
+    private final Lane[] lanes;
+
+    WeightedLanes() {
+        this(DEFAULT_LIVE_WEIGHT, DEFAULT_RETRY_WEIGHT, DEFAULT_BACKLOG_WEIGHT);
+    }
+
+    WeightedLanes(final int liveWeight, final int retryWeight, final int backlogWeight) {
+        live = new Lane("live", liveWeight);
+        retry = new Lane("retry", retryWeight);
+        backlog = new Lane("backlog", backlogWeight);
+        lanes = new Lane[]{live, retry, backlog};
+    }
+
+    /**
+     * @return the lane to take the next change from, or null if all lanes are empty
+     */
+    synchronized Lane next() {
+        Lane next = null;
+        int total = 0;
+        for (Lane lane : lanes) {
+            if (lane.isEmpty()) {
+                continue;
+            }
+            lane.current += lane.weight;
+            total += lane.weight;
+            if (next == null || lane.current > next.current) {
+                next = lane;
+            }
+        }
+        if (next != null) {
+            next.current -= total;
+        }
+        return next;
+    }
+
+    /**
+     * @return the number of changes in all lanes
+     */
+    int size() {
+        return live.size() + retry.size() + backlog.size();
+    }
+
+    void clear() {
+        for (Lane lane : lanes) {
+            lane.clear();
+        }
+    }
+
+    Map<String, Integer> sizes() {
+        final Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+        for (Lane lane : lanes) {
+            sizes.put(lane.name, lane.size());
+        }
+        return sizes;
+    }
+
+    Map<String, Long> oldestAgeMillis() {
+        final Map<String, Long> ages = new LinkedHashMap<String, Long>();
+        for (Lane lane : lanes) {
+            ages.put(lane.name, lane.oldestAgeMillis());
+        }
+        return ages;
+    }
+
+    Map<String, Long> takenCounts() {
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Lane lane : lanes) {
+            counts.put(lane.name, lane.taken.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "lane weights live " + live.weight + ", retry " + retry.weight + ", backlog " + backlog.weight;
+    }
+
+    /**
+     * A lane of changes in the order they became due.
+     */
+    static final class Lane {
+        private final String name;
+        private final int weight;
+        private final Queue<DelayedImpl<Change>> changes = new ConcurrentLinkedQueue<DelayedImpl<Change>>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong taken = new AtomicLong();
+        // Guarded by the lanes
+        private int current;
+
+        private Lane(final String name, final int weight) {
+            this.name = name;
+            this.weight = Math.max(weight, 0);
+        }
+
+        void add(final DelayedImpl<Change> delayed) {
+            size.incrementAndGet();
+            changes.add(delayed);
+        }
+
+        void addAll(final Collection<DelayedImpl<Change>> delayed) {
+            size.addAndGet(delayed.size());
+            changes.addAll(delayed);
+        }
+
+        /**
+         * @return the oldest change, or null if the lane is empty
+         */
+        DelayedImpl<Change> poll() {
+            final DelayedImpl<Change> delayed = changes.poll();
+            if (delayed != null) {
+                size.decrementAndGet();
+            }
+            return delayed;
+        }
+
+        /**
+         * Counts a change of the lane that was sent.
+         */
+        void taken() {
+            taken.incrementAndGet();
+        }
+
+        /**
+         * @return a copy of the changes in the lane
+         */
+        List<DelayedImpl<Change>> changes() {
+            return new ArrayList<DelayedImpl<Change>>(changes);
+        }
+
+        int size() {
+            return size.get();
+        }
+
+        boolean isEmpty() {
+            return size.get() <= 0;
+        }
+
+        /**
+         * @return the time the oldest change in the lane has been due, 0 if the lane is empty
+         */
+        long oldestAgeMillis() {
+            final DelayedImpl<Change> oldest = changes.peek();
+            return oldest == null ? 0 : Math.max(System.currentTimeMillis() - oldest.dueMillis(), 0);
+        }
+
+        private void clear() {
+            changes.clear();
+            size.set(0);
+        }
+
+        String name() {
+            return name;
+        }
+    }
+}
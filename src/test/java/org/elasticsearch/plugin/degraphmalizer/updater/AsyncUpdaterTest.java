@@ -0,0 +1,144 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Runs the Updater tests with the asynchronous transport, and tests the transport itself.
+ */
+@Test
+public class AsyncUpdaterTest extends UpdaterTest {
+    @Override
+    protected UpdaterTransport createTransport(final int concurrency) {
+        return new AsyncUpdaterTransport(concurrency, 16);
+    }
+
+    @Override
+    protected UpdaterTransport createTransport(final HttpClientPool pool) {
+        return new AsyncUpdaterTransport(pool, 16);
+    }
+
+    @Test
+    public void testSlowResponsesDoNotBlockWorkers() throws Exception {
+        final ScheduledExecutorService single = Executors.newScheduledThreadPool(1);
+        try {
+            final Updater slow = start(updater("first").scheduler(single));
+            final Updater fast = start(updater("second").scheduler(single));
+            slow.add(Change.update("person", "slow", 1));
+            for (int i = 0; i < 10; i++) {
+                fast.add(Change.update("person", "id-" + i, 1));
+            }
+
+            waitFor(11);
+
+            assertThat(received.contains("GET /second/person/id-9/1"), is(true));
+            assertThat(answered.contains("GET /first/person/slow/1"), is(false));
+            slow.shutdown();
+            fast.shutdown();
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void testOutstandingCallsAreBounded() throws Exception {
+        final AsyncUpdaterTransport transport = new AsyncUpdaterTransport(4, 2);
+        final Collector collector = new Collector(4);
+        for (int i = 0; i < 4; i++) {
+            transport.execute(target(), requests("/test/person/slow-" + i + "/1"), collector);
+        }
+        assertThat(transport.getOutstanding(), equalTo(2));
+
+        assertThat(collector.await(), is(true));
+        assertThat(maxConcurrent.get(), equalTo(2));
+        assertThat(collector.bodies.size(), equalTo(4));
+        transport.close();
+    }
+
+    @Test
+    public void testResponsesKeepTheOrderOfTheRequests() throws Exception {
+        final AsyncUpdaterTransport transport = new AsyncUpdaterTransport(1, 1);
+        final Collector collector = new Collector(1);
+        transport.execute(target(), requests("/test/person/a/1", "/alias/person/a/1", "/test/person/fail/1"), collector);
+
+        assertThat(collector.await(), is(true));
+        assertThat(collector.bodies.get(0), equalTo("GET /test/person/a/1"));
+        assertThat(collector.bodies.get(1), equalTo("GET /alias/person/a/1"));
+        assertThat(collector.bodies.get(2), equalTo("500"));
+        transport.close();
+    }
+
+    @Test
+    public void testUnreachableDegraphmalizer() throws Exception {
+        final HttpHost target = target();
+        server.stop(0);
+        final AsyncUpdaterTransport transport = new AsyncUpdaterTransport(1, 1);
+        final Collector collector = new Collector(1);
+        transport.execute(target, requests("/test/person/a/1", "/test/person/b/1"), collector);
+
+        assertThat(collector.await(), is(true));
+        assertThat(collector.bodies.size(), equalTo(2));
+        assertThat(collector.bodies.get(0), nullValue());
+        assertThat(collector.bodies.get(1), nullValue());
+        assertThat(transport.getOutstanding(), equalTo(0));
+        transport.close();
+    }
+
+    private static List<HttpRequest> requests(final String... paths) {
+        final List<HttpRequest> requests = new ArrayList<HttpRequest>();
+        for (String path : paths) {
+            requests.add(new HttpGet(path));
+        }
+        return requests;
+    }
+
+    /**
+     * Keeps the response bodies, or the status code for unsuccessful responses.
+     */
+    private static class Collector implements UpdaterTransport.Callback {
+        private final List<String> bodies = new ArrayList<String>();
+        private final CountDownLatch calls;
+
+        private Collector(final int calls) {
+            this.calls = new CountDownLatch(calls);
+        }
+
+        @Override
+        public void completed(final List<HttpResponse> responses) {
+            synchronized (bodies) {
+                for (HttpResponse response : responses) {
+                    if (response == null) {
+                        bodies.add(null);
+                    } else if (response.getStatusLine().getStatusCode() != 200) {
+                        bodies.add(String.valueOf(response.getStatusLine().getStatusCode()));
+                    } else {
+                        try {
+                            bodies.add(EntityUtils.toString(response.getEntity(), "UTF-8"));
+                        } catch (Exception e) {
+                            bodies.add(e.toString());
+                        }
+                    }
+                }
+            }
+            calls.countDown();
+        }
+
+        private boolean await() throws InterruptedException {
+            return calls.await(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class BacklogKeysTest {
+    @Test
+    public void testDocumentIsCountedUntilItsChangesAreRemoved() {
+        final BacklogKeys keys = new BacklogKeys(1024);
+        final Change change = Change.update("person", "1", 1);
+        assertThat(keys.isEmpty(), is(true));
+
+        keys.add(change);
+        keys.add(Change.update("person", "1", 2));
+        assertThat(keys.isEmpty(), is(false));
+        assertThat(keys.mayContain(change), is(true));
+
+        keys.remove(change);
+        assertThat(keys.mayContain(change), is(true));
+        keys.remove(change);
+        assertThat(keys.mayContain(change), is(false));
+    }
+
+    @Test
+    public void testCountDoesNotGoBelowZero() {
+        final BacklogKeys keys = new BacklogKeys(1024);
+        final Change change = Change.update("person", "1", 1);
+
+        // a change of an earlier run was not counted when it is loaded
+        keys.remove(change);
+
+        keys.add(change);
+        assertThat(keys.mayContain(change), is(true));
+    }
+}
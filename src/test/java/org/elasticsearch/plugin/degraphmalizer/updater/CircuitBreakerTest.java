@@ -0,0 +1,53 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class CircuitBreakerTest {
+    @Test
+    public void testOpensOnFailureRate() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", new CircuitBreakerPolicy(0.5, 10, 4, 1000, 0));
+        assertThat(breaker.record(true, 0), is(false));
+        assertThat(breaker.record(false, 0), is(false));
+        assertThat(breaker.record(false, 0), is(false));
+        // 2 of 4 calls failed
+        assertThat(breaker.record(true, 0), is(true));
+
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.OPEN));
+        assertThat(breaker.allowCall(500), is(false));
+        assertThat(breaker.millisUntilCall(500), equalTo(500l));
+    }
+
+    @Test
+    public void testOldFailuresLeaveTheWindow() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", new CircuitBreakerPolicy(0.5, 4, 4, 1000, 0));
+        breaker.record(true, 0);
+        for (int i = 0; i < 10; i++) {
+            assertThat(breaker.record(false, 0), is(false));
+        }
+        assertThat(breaker.record(true, 0), is(false));
+        assertThat(breaker.record(true, 0), is(true));
+    }
+
+    @Test
+    public void testProbeClosesOrReopens() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", new CircuitBreakerPolicy(0.5, 2, 2, 1000, 0));
+        breaker.record(true, 0);
+        breaker.record(true, 0);
+
+        assertThat(breaker.allowCall(1000), is(true));
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.HALF_OPEN));
+        // only one probe at a time
+        assertThat(breaker.allowCall(1000), is(false));
+        assertThat(breaker.record(true, 1000), is(true));
+        assertThat(breaker.allowCall(1500), is(false));
+
+        assertThat(breaker.allowCall(2000), is(true));
+        assertThat(breaker.record(false, 2000), is(false));
+        assertThat(breaker.state(), equalTo(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.record(true, 2000), is(false));
+    }
+}
@@ -0,0 +1,61 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class CompactChangeQueueTest {
+    @Test
+    public void testChangesLeaveInOrder() {
+        final CompactChangeQueue queue = new CompactChangeQueue();
+        // wrap around the ring buffer before it grows
+        for (int i = 0; i < 200; i++) {
+            queue.add(DelayedImpl.immediate(Change.update("person", "id-" + i, i)));
+        }
+        for (int i = 0; i < 150; i++) {
+            assertThat(queue.poll().thing(), equalTo(Change.update("person", "id-" + i, i)));
+        }
+        for (int i = 200; i < 1000; i++) {
+            queue.add(DelayedImpl.immediate(Change.update("person", "id-" + i, i)));
+        }
+        assertThat(queue.size(), equalTo(850));
+
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        assertThat(queue.drainTo(changes, 1000), equalTo(850));
+        for (int i = 0; i < 850; i++) {
+            assertThat(changes.get(i).thing(), equalTo(Change.update("person", "id-" + (i + 150), i + 150)));
+        }
+        assertThat(queue.isEmpty(), is(true));
+        assertThat(queue.poll(), nullValue());
+    }
+
+    @Test
+    public void testChangesAreRebuiltCompletely() {
+        final CompactChangeQueue queue = new CompactChangeQueue();
+        final DelayedImpl<Change> retry = new DelayedImpl<Change>(new RetryChange(Change.delete("person", "\u00e9", 3), "alias", 2), 500, 1000);
+        retry.sequence(42);
+        queue.add(retry);
+        queue.add(new DelayedImpl<Change>(new RetryChange(Change.update("person", "2", 1), null, 1), 10, 2000));
+        queue.add(DelayedImpl.immediate(Change.update("article", "3", 1)));
+
+        final DelayedImpl<Change> first = queue.poll();
+        assertThat(first, equalTo(retry));
+        assertThat(first.sequence(), equalTo(42l));
+        assertThat(first.thing().getIndexNameOrAlias(), equalTo("alias"));
+        assertThat(first.thing().retries(), equalTo(2));
+
+        final DelayedImpl<Change> second = queue.poll();
+        assertThat(second.thing().getIndexNameOrAlias(), nullValue());
+        assertThat(second.thing().retries(), equalTo(1));
+        assertThat(second.sequence(), equalTo(-1l));
+
+        final DelayedImpl<Change> third = queue.poll();
+        assertThat(third.thing().getClass().equals(Change.class), is(true));
+        assertThat(third.thing().type(), equalTo("article"));
+    }
+}
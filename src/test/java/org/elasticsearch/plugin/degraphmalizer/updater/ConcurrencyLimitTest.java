@@ -0,0 +1,41 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class ConcurrencyLimitTest {
+    @Test
+    public void testLimitAdaptsToLatency() {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(8, 2.0);
+        for (int i = 0; i < 8; i++) {
+            assertThat(limit.tryAcquire(), is(true));
+        }
+        assertThat(limit.tryAcquire(), is(false));
+
+        limit.record(false, 100000);
+        assertThat(limit.limit(), equalTo(8));
+        // slower than twice the lowest latency
+        limit.record(false, 300000);
+        assertThat(limit.limit(), equalTo(4));
+        // the same burst does not halve it again
+        limit.record(false, 300000);
+        assertThat(limit.limit(), equalTo(4));
+
+        for (int i = 0; i < 20; i++) {
+            limit.record(false, 100000);
+        }
+        assertThat(limit.limit(), greaterThan(4));
+        assertThat(limit.limit(), lessThanOrEqualTo(8));
+    }
+
+    @Test
+    public void testFailureHalvesTheLimit() {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(8, 2.0);
+        limit.record(true, 1000);
+        assertThat(limit.limit(), equalTo(4));
+        assertThat(limit.inFlight(), equalTo(0));
+    }
+}
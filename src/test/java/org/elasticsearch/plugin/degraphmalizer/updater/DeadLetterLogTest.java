@@ -0,0 +1,69 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class DeadLetterLogTest {
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() {
+        directory = new File("target/deadletter-test-" + System.nanoTime());
+        assertThat(directory.mkdirs(), is(true));
+    }
+
+    @AfterClass
+    public void shutdownScheduler() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testChangesAreWrittenTogether() throws InterruptedException {
+        final DeadLetterLog log = new DeadLetterLog(new File(directory, "test-error.log"), 0, 100, scheduler);
+        for (int i = 0; i < 10; i++) {
+            log.append(Change.update("person", "id-" + i, i));
+        }
+        assertThat(new File(directory, "test-error.log").exists(), is(false));
+
+        log.flush();
+        assertThat(log.files().size(), equalTo(1));
+        assertThat(log.files().get(0).length(), greaterThan(0l));
+        log.close();
+    }
+
+    @Test
+    public void testRotatedFilesAreReplayedInOrder() {
+        final DeadLetterLog log = new DeadLetterLog(new File(directory, "test-error.log"), 100, 0, scheduler);
+        for (int i = 0; i < 20; i++) {
+            log.append(Change.update("person", "id,with,commas-" + i, i));
+            log.flush();
+        }
+        assertThat(log.files().size(), greaterThan(1));
+
+        final List<Change> replayed = new ArrayList<Change>();
+        final int count = log.replay(new DeadLetterLog.Consumer() {
+            @Override
+            public void accept(final Change change) {
+                replayed.add(change);
+            }
+        });
+        assertThat(count, equalTo(20));
+        for (int i = 0; i < 20; i++) {
+            assertThat(replayed.get(i), equalTo(Change.update("person", "id,with,commas-" + i, i)));
+        }
+        assertThat(log.files().size(), equalTo(0));
+        log.close();
+    }
+}
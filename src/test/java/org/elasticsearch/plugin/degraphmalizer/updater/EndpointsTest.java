@@ -0,0 +1,84 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.apache.http.HttpHost;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class EndpointsTest {
+    private static final HttpHost A = new HttpHost("a", 9821, "http");
+    private static final HttpHost B = new HttpHost("b", 9821, "http");
+    private static final HttpHost C = new HttpHost("c", 9821, "http");
+
+    @Test
+    public void testDocumentsAreSpreadEvenly() {
+        final Endpoints endpoints = new Endpoints(Arrays.asList(A, B, C), 100, 3, 30000);
+        final Map<HttpHost, Integer> counts = new HashMap<HttpHost, Integer>();
+        for (int i = 0; i < 3000; i++) {
+            final HttpHost host = endpoints.select("test", "person", "id-" + i).host();
+            assertThat(endpoints.select("test", "person", "id-" + i).host(), equalTo(host));
+            counts.put(host, counts.containsKey(host) ? counts.get(host) + 1 : 1);
+        }
+
+        for (HttpHost host : Arrays.asList(A, B, C)) {
+            assertThat(counts.get(host), greaterThan(700));
+        }
+    }
+
+    @Test
+    public void testOnlyTheDocumentsOfARemovedEndpointMove() {
+        final Endpoints endpoints = new Endpoints(Arrays.asList(A, B, C), 100, 3, 30000);
+        final HttpHost[] before = new HttpHost[1000];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = endpoints.select("test", "person", "id-" + i).host();
+        }
+
+        endpoints.setHosts(Arrays.asList(A, C));
+
+        for (int i = 0; i < before.length; i++) {
+            final HttpHost after = endpoints.select("test", "person", "id-" + i).host();
+            if (!before[i].equals(B)) {
+                assertThat(after, equalTo(before[i]));
+            } else {
+                assertThat(after, not(equalTo(B)));
+            }
+        }
+    }
+
+    @Test
+    public void testFailingEndpointIsEjected() throws Exception {
+        final Endpoints endpoints = new Endpoints(Arrays.asList(A, B), 100, 2, 100);
+        String id = null;
+        for (int i = 0; id == null; i++) {
+            if (endpoints.select("test", "person", "id-" + i).host().equals(A)) {
+                id = "id-" + i;
+            }
+        }
+        final List<Endpoints.Endpoint> all = endpoints.endpoints();
+        final Endpoints.Endpoint a = all.get(0);
+
+        a.failed();
+        assertThat(endpoints.select("test", "person", id).host(), equalTo(A));
+        a.failed();
+        assertThat(endpoints.select("test", "person", id).host(), equalTo(B));
+        assertThat(endpoints.getStatus().get("http://a:9821"), containsString("ejected"));
+
+        Thread.sleep(150);
+        assertThat(endpoints.select("test", "person", id).host(), equalTo(A));
+        // still failing, ejected again right away
+        a.failed();
+        assertThat(endpoints.select("test", "person", id).host(), equalTo(B));
+
+        Thread.sleep(150);
+        a.succeeded();
+        a.failed();
+        assertThat(endpoints.select("test", "person", id).host(), equalTo(A));
+    }
+}
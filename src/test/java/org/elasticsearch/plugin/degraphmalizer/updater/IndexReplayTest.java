@@ -0,0 +1,58 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.common.lucene.uid.UidField;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class IndexReplayTest {
+    @Test
+    public void testScanReadsTheLiveDocumentsInChunks() throws Exception {
+        final RAMDirectory directory = new RAMDirectory();
+        final IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_36, new KeywordAnalyzer()));
+        for (int i = 1; i <= 5; i++) {
+            final Document document = new Document();
+            document.add(new UidField("_uid", "person#" + i, 10 + i));
+            writer.addDocument(document);
+        }
+        writer.deleteDocuments(new Term("_uid", "person#3"));
+        writer.close();
+
+        final IndexReader reader = IndexReader.open(directory);
+        try {
+            final List<Change> changes = new ArrayList<Change>();
+            String last = IndexReplay.scan(reader, null, 2, changes);
+            assertThat(last, equalTo("person#2"));
+            assertThat(changes.size(), equalTo(2));
+            assertThat(changes.get(0), equalTo(Change.update("person", "1", 11)));
+            assertThat(changes.get(1), equalTo(Change.update("person", "2", 12)));
+
+            // the deleted document is skipped
+            changes.clear();
+            last = IndexReplay.scan(reader, last, 2, changes);
+            assertThat(last, equalTo("person#5"));
+            assertThat(changes.size(), equalTo(2));
+            assertThat(changes.get(0), equalTo(Change.update("person", "4", 14)));
+            assertThat(changes.get(1), equalTo(Change.update("person", "5", 15)));
+
+            changes.clear();
+            assertThat(IndexReplay.scan(reader, last, 2, changes), nullValue());
+            assertThat(changes.size(), equalTo(0));
+        } finally {
+            reader.close();
+        }
+    }
+}
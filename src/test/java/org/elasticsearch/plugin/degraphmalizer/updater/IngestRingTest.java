@@ -0,0 +1,100 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class IngestRingTest {
+    @Test
+    public void testRingIsBounded() {
+        final IngestRing ring = new IngestRing(3);
+        for (int i = 0; i < 4; i++) {
+            assertThat(ring.offer(Action.UPDATE, "person", "id-" + i, i), is(true));
+        }
+        assertThat(ring.offer(Action.UPDATE, "person", "id-4", 4), is(false));
+        assertThat(ring.size(), equalTo(4));
+
+        final List<String> ids = new ArrayList<String>();
+        assertThat(ring.drain(new Collector(ids), 2), equalTo(2));
+        assertThat(ids.get(0), equalTo("id-0"));
+        assertThat(ring.offer(Action.DELETE, "person", "id-4", 4), is(true));
+        assertThat(ring.drain(new Collector(ids), 10), equalTo(3));
+        assertThat(ids.get(4), equalTo("id-4"));
+        assertThat(ring.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testChangesKeepTheTimeTheyWereOffered() throws InterruptedException {
+        final IngestRing ring = new IngestRing(4);
+        final long before = System.currentTimeMillis();
+        ring.offer(Action.UPDATE, "person", "1", 1);
+        Thread.sleep(50);
+
+        final long[] enqueued = new long[1];
+        ring.drain(new IngestRing.Consumer() {
+            @Override
+            public void accept(final Action action, final String type, final String id, final long version, final long enqueuedMillis) {
+                enqueued[0] = enqueuedMillis;
+            }
+        }, 1);
+        assertThat(enqueued[0], greaterThanOrEqualTo(before));
+        assertThat(System.currentTimeMillis() - enqueued[0], greaterThanOrEqualTo(50l));
+    }
+
+    @Test
+    public void testChangesOfEachProducerStayInOrder() throws InterruptedException {
+        final IngestRing ring = new IngestRing(1024);
+        final int producers = 4;
+        final int changes = 10000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final String type = "type-" + p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int version = 0; version < changes; version++) {
+                        while (!ring.offer(Action.UPDATE, type, "id", version)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        final long[] next = new long[producers];
+        final IngestRing.Consumer consumer = new IngestRing.Consumer() {
+            @Override
+            public void accept(final Action action, final String type, final String id, final long version, final long enqueuedMillis) {
+                final int producer = Integer.parseInt(type.substring(5));
+                assertThat(version, equalTo(next[producer]));
+                next[producer]++;
+            }
+        };
+        while (done.getCount() > 0 || !ring.isEmpty()) {
+            ring.drain(consumer, 16);
+        }
+        for (int p = 0; p < producers; p++) {
+            assertThat(next[p], equalTo((long) changes));
+        }
+    }
+
+    private static final class Collector implements IngestRing.Consumer {
+        private final List<String> ids;
+
+        private Collector(final List<String> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public void accept(final Action action, final String type, final String id, final long version, final long enqueuedMillis) {
+            ids.add(id);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class LatencyHistogramTest {
+    @Test
+    public void testBucketsCoverAllValues() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            final int bucket = LatencyHistogram.bucket(value);
+            assertThat(LatencyHistogram.upperBound(bucket), greaterThanOrEqualTo(value));
+            if (bucket > 0) {
+                assertThat(LatencyHistogram.upperBound(bucket - 1), lessThan(value));
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.count(), equalTo(1000l));
+        assertThat(snapshot.percentileMillis(0.5), greaterThanOrEqualTo(500.0));
+        assertThat(snapshot.percentileMillis(0.5), lessThanOrEqualTo(500 * 1.125));
+        assertThat(snapshot.percentileMillis(0.99), greaterThanOrEqualTo(990.0));
+        assertThat(snapshot.percentileMillis(0.99), lessThanOrEqualTo(1000.0));
+        assertThat(snapshot.maxMillis(), equalTo(1000.0));
+    }
+
+    @Test
+    public void testSnapshotsAddUp() {
+        final LatencyHistogram fast = new LatencyHistogram();
+        final LatencyHistogram slow = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            fast.record(1000);
+            slow.record(100000);
+        }
+
+        final LatencyHistogram.Snapshot total = new LatencyHistogram.Snapshot();
+        total.add(fast.snapshot());
+        total.add(slow.snapshot());
+        assertThat(total.count(), equalTo(200l));
+        assertThat(total.percentileMillis(0.25), lessThanOrEqualTo(1.125));
+        assertThat(total.maxMillis(), equalTo(100.0));
+    }
+
+    @Test
+    public void testOldWindowsAreDroppedWithoutRecording() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final long now = System.currentTimeMillis();
+        histogram.record(1000, now);
+
+        assertThat(histogram.snapshot(now + 30000).count(), equalTo(1l));
+        // the window is the previous one for another minute
+        assertThat(histogram.snapshot(now + 90000).count(), equalTo(1l));
+        assertThat(histogram.snapshot(now + 150000).count(), equalTo(0l));
+    }
+
+    @Test
+    public void testIdleWindowIsNotKeptAsThePreviousOne() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final long now = System.currentTimeMillis();
+        histogram.record(1000, now);
+
+        assertThat(histogram.snapshot(now + 150000).count(), equalTo(0l));
+        histogram.record(2000, now + 150000);
+        assertThat(histogram.snapshot(now + 150000).maxMillis(), equalTo(2.0));
+    }
+}
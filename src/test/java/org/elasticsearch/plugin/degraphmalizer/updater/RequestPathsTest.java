@@ -0,0 +1,30 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import java.net.URLEncoder;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class RequestPathsTest {
+    private final RequestPaths paths = new RequestPaths();
+
+    @Test
+    public void testPathsAreEncodedLikeURLEncoder() throws Exception {
+        final String[] ids = {"id-1", "a b", "a/b", "a+b", "caf\u00e9", "\u4e2d\u6587", "x*y_z.", "100%", ""};
+        for (String id : ids) {
+            final String expected = String.format("/%s/%s/%s/%d", URLEncoder.encode("my index", "UTF-8"), URLEncoder.encode("person", "UTF-8"), URLEncoder.encode(id, "UTF-8"), 3);
+            assertThat(paths.path("my index", "person", id, 3, null), equalTo(expected));
+            // the second time the names come from the cache
+            assertThat(paths.path("my index", "person", id, 3, null), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testAliasesAreAddedAsParameter() {
+        assertThat(paths.path("index", "person", "1", 2, Arrays.asList("a", "b c")), equalTo("/index/person/1/2?aliases=a,b+c"));
+    }
+}
@@ -0,0 +1,31 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class RetryPolicyTest {
+    @Test
+    public void testDelayDoublesUpToTheMaximum() {
+        final RetryPolicy policy = new RetryPolicy(100, 1000, 0, 10);
+        assertThat(policy.delayInMillis(0), equalTo(100l));
+        assertThat(policy.delayInMillis(1), equalTo(200l));
+        assertThat(policy.delayInMillis(3), equalTo(800l));
+        assertThat(policy.delayInMillis(4), equalTo(1000l));
+        assertThat(policy.delayInMillis(100), equalTo(1000l));
+        assertThat(policy.canRetry(9), is(true));
+        assertThat(policy.canRetry(10), is(false));
+    }
+
+    @Test
+    public void testJitterShortensTheDelay() {
+        final RetryPolicy policy = new RetryPolicy(1000, 1000, 0.5, 10);
+        for (int i = 0; i < 100; i++) {
+            final long delay = policy.delayInMillis(0);
+            assertThat(delay, greaterThanOrEqualTo(500l));
+            assertThat(delay, lessThanOrEqualTo(1000l));
+        }
+    }
+}
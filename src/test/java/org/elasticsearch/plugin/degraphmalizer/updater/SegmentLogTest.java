@@ -0,0 +1,124 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class SegmentLogTest {
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() {
+        directory = new File("target/segmentlog-test-" + System.nanoTime());
+    }
+
+    @Test
+    public void testChangesAreReadInOrderAcrossSegments() throws IOException {
+        final SegmentLog log = new SegmentLog(directory, 1024, 1000);
+        for (int i = 0; i < 100; i++) {
+            log.append(DelayedImpl.immediate(Change.update("person", "id-" + i, i)), false);
+        }
+        assertThat(segments(), greaterThan(1));
+        assertThat(log.unread(), equalTo(100));
+
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        assertThat(log.read(changes, 60), equalTo(60));
+        assertThat(log.read(changes, 60), equalTo(40));
+        for (int i = 0; i < 100; i++) {
+            assertThat(changes.get(i).thing(), equalTo(Change.update("person", "id-" + i, i)));
+            assertThat(changes.get(i).sequence(), equalTo((long) i));
+        }
+        assertThat(log.unread(), equalTo(0));
+        log.close();
+    }
+
+    @Test
+    public void testAppendedChangeIsReadRightAwayWhenCaughtUp() throws IOException {
+        final SegmentLog log = new SegmentLog(directory, 1024, 1000);
+        assertThat(log.append(DelayedImpl.immediate(Change.update("person", "1", 1)), true), is(true));
+        assertThat(log.append(DelayedImpl.immediate(Change.update("person", "2", 1)), false), is(false));
+        assertThat(log.append(DelayedImpl.immediate(Change.update("person", "3", 1)), true), is(false));
+        assertThat(log.unread(), equalTo(2));
+        log.close();
+    }
+
+    @Test
+    public void testReadingResumesAtFirstUnacknowledgedChange() throws IOException {
+        SegmentLog log = new SegmentLog(directory, 1024, 0);
+        for (int i = 0; i < 100; i++) {
+            log.append(DelayedImpl.immediate(Change.update("person", "id-" + i, i)), false);
+        }
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        log.read(changes, 100);
+        for (int i = 0; i < 100; i++) {
+            if (i != 70) {
+                log.acknowledge(i);
+            }
+        }
+        final int segments = segments();
+        log.close();
+        assertThat(segments(), lessThan(segments));
+
+        log = new SegmentLog(directory, 1024, 0);
+        assertThat(log.unread(), equalTo(30));
+        changes.clear();
+        log.read(changes, 100);
+        assertThat(changes.get(0).thing(), equalTo(Change.update("person", "id-70", 70)));
+        assertThat(changes.get(0).sequence(), equalTo(70l));
+
+        log.append(DelayedImpl.immediate(Change.update("person", "new", 1)), false);
+        changes.clear();
+        log.read(changes, 100);
+        assertThat(changes.get(0).sequence(), equalTo(100l));
+        log.close();
+    }
+
+    @Test
+    public void testAllSegmentsAreReadAfterReopening() throws IOException {
+        SegmentLog log = new SegmentLog(directory, 1024, 0);
+        for (int i = 0; i < 100; i++) {
+            log.append(DelayedImpl.immediate(Change.update("person", "id-" + i, i)), false);
+        }
+        log.close();
+        assertThat(segments(), greaterThan(2));
+
+        // only the last segment is scanned when the log is opened, the others when they are read
+        log = new SegmentLog(directory, 1024, 0);
+        log.prefetch();
+        assertThat(log.unread(), equalTo(100));
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        assertThat(log.read(changes, 200), equalTo(100));
+        for (int i = 0; i < 100; i++) {
+            assertThat(changes.get(i).thing(), equalTo(Change.update("person", "id-" + i, i)));
+        }
+        log.append(DelayedImpl.immediate(Change.update("person", "new", 1)), false);
+        changes.clear();
+        log.read(changes, 100);
+        assertThat(changes.get(0).sequence(), equalTo(100l));
+        log.close();
+    }
+
+    @Test
+    public void testRetryStateIsKept() throws IOException {
+        final SegmentLog log = new SegmentLog(directory, 1024, 1000);
+        log.append(new DelayedImpl<Change>(new RetryChange(Change.delete("person", "1", 2), "alias", 3), 500, 1000), false);
+        final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+        log.read(changes, 1);
+        assertThat(changes.get(0), equalTo(new DelayedImpl<Change>(new RetryChange(Change.delete("person", "1", 2), "alias", 3), 500, 1000)));
+        assertThat(changes.get(0).thing().getIndexNameOrAlias(), equalTo("alias"));
+        assertThat(changes.get(0).thing().retries(), equalTo(3));
+        log.close();
+    }
+
+    private int segments() {
+        return directory.list().length - 1;
+    }
+}
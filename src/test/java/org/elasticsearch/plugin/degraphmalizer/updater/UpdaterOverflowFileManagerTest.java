@@ -0,0 +1,164 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class UpdaterOverflowFileManagerTest {
+    private File logPath;
+
+    @BeforeMethod
+    public void createLogPath() {
+        logPath = new File("target/overflow-test-" + System.nanoTime());
+        assertThat(logPath.mkdirs(), is(true));
+    }
+
+    @Test
+    public void testChangesSurviveRestart() {
+        final UpdaterOverflowFileManager manager = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        final List<DelayedImpl<Change>> saved = new ArrayList<DelayedImpl<Change>>();
+        saved.add(new DelayedImpl<Change>(Change.update("person", "1", 1), 0, 1000));
+        saved.add(new DelayedImpl<Change>(new RetryChange(Change.delete("person", "\u00e9\u00e8", 2), "alias", 3), 500, 2000));
+        saved.add(new DelayedImpl<Change>(new RetryChange(Change.update("person", "3", 3), null, 1), 10, 3000));
+        manager.save(saved);
+        assertThat(manager.size(), equalTo(3));
+
+        final UpdaterOverflowFileManager restarted = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        assertThat(restarted.size(), equalTo(3));
+
+        final List<DelayedImpl<Change>> loaded = new ArrayList<DelayedImpl<Change>>();
+        assertThat(restarted.read(loaded, 10), equalTo(3));
+        assertThat(loaded, equalTo(saved));
+        assertThat(loaded.get(1).thing().getIndexNameOrAlias(), equalTo("alias"));
+        assertThat(loaded.get(1).thing().retries(), equalTo(3));
+        assertThat(loaded.get(2).thing().getIndexNameOrAlias(), nullValue());
+        assertThat(loaded.get(2).thing().retries(), equalTo(1));
+
+        assertThat(restarted.size(), equalTo(0));
+        assertThat(restarted.isEmpty(), is(true));
+        for (DelayedImpl<Change> delayed : loaded) {
+            restarted.acknowledge(delayed.sequence());
+        }
+        assertThat(restarted.sync(), is(true));
+        assertThat(restarted.sizeInBytes(), equalTo(0l));
+    }
+
+    @Test
+    public void testFilesAreLoadedInOrder() {
+        final UpdaterOverflowFileManager manager = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        for (int i = 0; i < 3; i++) {
+            final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+            changes.add(DelayedImpl.immediate(Change.update("person", "id", i)));
+            manager.save(changes);
+        }
+
+        final UpdaterOverflowFileManager restarted = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        for (int i = 0; i < 3; i++) {
+            final List<DelayedImpl<Change>> changes = new ArrayList<DelayedImpl<Change>>();
+            restarted.read(changes, 1);
+            assertThat(changes.get(0).thing().version(), equalTo((long) i));
+        }
+        assertThat(restarted.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testReadingResumesAfterTheAcknowledgedChanges() {
+        final UpdaterOverflowFileManager manager = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        final List<DelayedImpl<Change>> saved = new ArrayList<DelayedImpl<Change>>();
+        for (int i = 0; i < 10; i++) {
+            saved.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+        }
+        manager.save(saved);
+
+        final List<DelayedImpl<Change>> read = new ArrayList<DelayedImpl<Change>>();
+        manager.read(read, 5);
+        assertThat(manager.size(), equalTo(5));
+        // the fourth change is still in flight when the node goes down
+        for (DelayedImpl<Change> delayed : read) {
+            if (!delayed.thing().id().equals("3")) {
+                manager.acknowledge(delayed.sequence());
+            }
+        }
+        manager.close();
+
+        final UpdaterOverflowFileManager restarted = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        assertThat(restarted.size(), equalTo(7));
+        final List<DelayedImpl<Change>> resumed = new ArrayList<DelayedImpl<Change>>();
+        assertThat(restarted.read(resumed, 10), equalTo(7));
+        assertThat(resumed.get(0).thing().id(), equalTo("3"));
+
+        // the file is deleted once all of its changes are acknowledged
+        for (DelayedImpl<Change> delayed : resumed.subList(1, resumed.size())) {
+            restarted.acknowledge(delayed.sequence());
+        }
+        assertThat(restarted.sync(), is(false));
+        restarted.acknowledge(resumed.get(0).sequence());
+        assertThat(restarted.sync(), is(true));
+        assertThat(logPath.list().length, equalTo(0));
+    }
+
+    @Test
+    public void testUnreadableFilesAreSetAside() throws IOException {
+        final File garbage = new File(logPath, "test-overflow-1000.bin");
+        final FileOutputStream output = new FileOutputStream(garbage);
+        output.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+        output.close();
+
+        final UpdaterOverflowFileManager manager = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        final List<DelayedImpl<Change>> saved = new ArrayList<DelayedImpl<Change>>();
+        for (int i = 0; i < 3; i++) {
+            saved.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+        }
+        manager.save(saved);
+        assertThat(garbage.exists(), is(false));
+        assertThat(new File(logPath, "test-overflow-1000.bin.corrupt").exists(), is(true));
+        assertThat(manager.size(), equalTo(3));
+
+        // the last record is cut off
+        final File[] files = logPath.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".bin");
+            }
+        });
+        assertThat(files.length, equalTo(1));
+        final RandomAccessFile truncated = new RandomAccessFile(files[0], "rw");
+        truncated.setLength(truncated.length() - 2);
+        truncated.close();
+
+        final UpdaterOverflowFileManager restarted = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        final List<DelayedImpl<Change>> loaded = new ArrayList<DelayedImpl<Change>>();
+        assertThat(restarted.read(loaded, 10), equalTo(2));
+        assertThat(restarted.isEmpty(), is(true));
+        assertThat(files[0].exists(), is(false));
+        assertThat(new File(files[0].getPath() + ".corrupt").exists(), is(true));
+
+        // the files that were set aside are not read again
+        assertThat(new UpdaterOverflowFileManager(logPath.getPath(), "test").isEmpty(), is(true));
+    }
+
+    @Test
+    public void testTextFilesAreMigrated() throws IOException {
+        final File text = new File(logPath, "test-overflow-1000");
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(text), "UTF-8"));
+        writer.println("0,1000,UPDATE,person,1,a");
+        writer.println("5000,2000,DELETE,person,2,c");
+        writer.close();
+
+        final UpdaterOverflowFileManager manager = new UpdaterOverflowFileManager(logPath.getPath(), "test");
+        assertThat(text.exists(), is(false));
+        assertThat(manager.size(), equalTo(2));
+
+        final List<DelayedImpl<Change>> loaded = new ArrayList<DelayedImpl<Change>>();
+        manager.read(loaded, 10);
+        assertThat(loaded.get(0), equalTo(new DelayedImpl<Change>(Change.update("person", "a", 1), 0, 1000)));
+        assertThat(loaded.get(1), equalTo(new DelayedImpl<Change>(Change.delete("person", "c", 2), 5000, 2000)));
+    }
+}
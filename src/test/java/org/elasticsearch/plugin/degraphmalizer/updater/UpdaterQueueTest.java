@@ -0,0 +1,415 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.elasticsearch.common.netty.util.HashedWheelTimer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class UpdaterQueueTest {
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+    private final HashedWheelTimer retryTimer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+    // Counts the signals of the queue that changes are available
+    private final AtomicLong available = new AtomicLong();
+    private UpdaterQueue queue;
+    private File logPath;
+
+    @BeforeMethod
+    public void createQueue() {
+        logPath = new File("target/updaterqueue-test-" + System.nanoTime());
+        assertThat(logPath.mkdirs(), is(true));
+        queue = createQueue(1000);
+    }
+
+    @AfterMethod
+    public void shutdownQueue() {
+        queue.shutdown();
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdown();
+        retryTimer.stop();
+    }
+
+    @Test
+    public void testNewerVersionReplacesPendingChange() throws InterruptedException {
+        queue.add(DelayedImpl.immediate(Change.update("person", "1", 1)));
+        queue.add(DelayedImpl.immediate(Change.update("person", "2", 1)));
+        queue.add(DelayedImpl.immediate(Change.update("person", "1", 2)));
+        queue.add(DelayedImpl.immediate(Change.update("person", "1", 3)));
+
+        assertThat(poll(), equalTo(Change.update("person", "1", 3)));
+        assertThat(poll(), equalTo(Change.update("person", "2", 1)));
+        assertThat(poll(), nullValue());
+        assertThat(queue.getCoalescedCount(), equalTo(2l));
+    }
+
+    @Test
+    public void testDeleteSupersedesPendingUpdate() throws InterruptedException {
+        queue.add(DelayedImpl.immediate(Change.update("person", "1", 1)));
+        queue.add(DelayedImpl.immediate(Change.delete("person", "1", 2)));
+        queue.add(DelayedImpl.immediate(Change.update("person", "1", 1)));
+
+        assertThat(poll(), equalTo(Change.delete("person", "1", 2)));
+        assertThat(poll(), nullValue());
+        assertThat(queue.getCoalescedCount(), equalTo(2l));
+    }
+
+    @Test
+    public void testNewerVersionReplacesPendingRetry() throws InterruptedException {
+        queue.add(new DelayedImpl<Change>(Change.update("person", "1", 1).retried("alias"), 100));
+        queue.add(DelayedImpl.immediate(Change.update("person", "1", 2)));
+
+        final Change change = poll(1000).thing();
+        assertThat(change, equalTo(Change.update("person", "1", 2)));
+        assertThat(change.getIndexNameOrAlias(), nullValue());
+    }
+
+    @Test
+    public void testRetriesDoNotHoldUpFreshChanges() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            queue.add(new DelayedImpl<Change>(Change.update("person", "retry-" + i, 1).retried("alias"), 200));
+        }
+        queue.add(DelayedImpl.immediate(Change.update("person", "fresh", 1)));
+
+        assertThat(queue.poll().thing().id(), equalTo("fresh"));
+        assertThat(queue.poll(), nullValue());
+        assertThat(queue.getWaitingRetryCount(), equalTo(100));
+
+        int retries = 0;
+        while (poll() != null) {
+            retries++;
+        }
+        assertThat(retries, equalTo(100));
+        assertThat(queue.size(), equalTo(0));
+    }
+
+    @Test
+    public void testLiveChangeTakesThePlaceOfAReplayedChange() throws InterruptedException {
+        queue.addReplay(Change.update("person", "1", 1));
+        queue.addReplay(Change.update("person", "2", 1));
+        queue.add(DelayedImpl.immediate(Change.update("person", "3", 1)));
+        queue.add(DelayedImpl.immediate(Change.update("person", "2", 2)));
+        assertThat(queue.getReplaySize(), equalTo(2));
+
+        final DelayedImpl<Change> live = poll(500);
+        assertThat(live.thing(), equalTo(Change.update("person", "3", 1)));
+        // the newer version took the place of the replayed change
+        final DelayedImpl<Change> replaced = poll(500);
+        assertThat(replaced.thing(), equalTo(Change.update("person", "2", 2)));
+        final DelayedImpl<Change> replayed = poll(500);
+        assertThat(replayed.thing(), equalTo(Change.update("person", "1", 1)));
+        assertThat(poll(), nullValue());
+        assertThat(queue.size(), equalTo(0));
+
+        // the replayed changes count until they are acknowledged
+        queue.acknowledge(live);
+        queue.acknowledge(replayed);
+        assertThat(queue.getReplaySize(), equalTo(1));
+        queue.acknowledge(replaced);
+        assertThat(queue.getReplaySize(), equalTo(0));
+    }
+
+    @Test
+    public void testWaitingRetriesAreSavedOnShutdown() throws InterruptedException {
+        queue.add(new DelayedImpl<Change>(Change.update("person", "1", 1).retried("alias"), 60000));
+        queue.shutdown();
+
+        queue = createQueue(1000);
+        assertThat(queue.size(), equalTo(1));
+        assertThat(poll(100), nullValue());
+    }
+
+    @Test
+    public void testRetriesForDifferentAliasesAreMerged() {
+        final Change first = UpdaterQueue.merge(Change.update("person", "1", 1).retried("a"), Change.update("person", "1", 1).retried("b"));
+        assertThat(first.getIndexNameOrAlias(), nullValue());
+
+        final Change second = UpdaterQueue.merge(Change.update("person", "1", 1), Change.update("person", "1", 1).retried("a"));
+        assertThat(second.getIndexNameOrAlias(), nullValue());
+    }
+
+    @Test
+    public void testTakenChangeIsNotReplaced() throws InterruptedException {
+        queue.add(DelayedImpl.immediate(Change.update("person", "1", 1)));
+        assertThat(poll(), equalTo(Change.update("person", "1", 1)));
+
+        queue.add(DelayedImpl.immediate(Change.update("person", "1", 2)));
+        assertThat(poll(), equalTo(Change.update("person", "1", 2)));
+        assertThat(queue.getCoalescedCount(), equalTo(0l));
+    }
+
+    @Test
+    public void testOverflowIsSpilledAndReloaded() throws InterruptedException {
+        queue.shutdown();
+        queue = createQueue(10);
+
+        for (int i = 0; i < 50; i++) {
+            queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+        }
+        for (int i = 0; i < 100 && queue.getOverflowSize() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(queue.getOverflowSize(), greaterThan(0));
+
+        final Set<String> ids = new HashSet<String>();
+        Change change;
+        while ((change = poll()) != null) {
+            ids.add(change.id());
+        }
+        assertThat(ids.size(), equalTo(50));
+        assertThat(queue.size(), equalTo(0));
+    }
+
+    @Test
+    public void testLiveChangesGoAheadOfTheBacklog() throws InterruptedException {
+        queue.shutdown();
+        queue = createQueue(10);
+        for (int i = 0; i < 50; i++) {
+            queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+        }
+        for (int i = 0; i < 100 && queue.getOverflowSize() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(queue.getOverflowSize(), greaterThan(0));
+        while (queue.getLaneSizes().get("live") > 0) {
+            assertThat(poll(), notNullValue());
+        }
+
+        queue.add(DelayedImpl.immediate(Change.update("person", "live", 1)));
+        // the older version of this document is in the backlog, the newer one can not overtake it
+        queue.add(DelayedImpl.immediate(Change.update("person", "49", 2)));
+
+        int position = -1;
+        long version = 0;
+        Change change;
+        for (int i = 0; (change = poll()) != null; i++) {
+            if (change.id().equals("live")) {
+                position = i;
+            } else if (change.id().equals("49")) {
+                assertThat(change.version(), greaterThan(version));
+                version = change.version();
+            }
+        }
+        assertThat(position, lessThan(5));
+        assertThat(version, equalTo(2l));
+        assertThat(queue.size(), equalTo(0));
+    }
+
+    @Test
+    public void testOverflowIsRecoveredAfterRestart() throws InterruptedException {
+        queue.shutdown();
+        queue = createQueue(10);
+        for (int i = 0; i < 50; i++) {
+            queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+        }
+        queue.shutdown();
+
+        // the overflow files are read a window at a time
+        queue = createQueue(10);
+        assertThat(queue.getRecoveredChanges(), equalTo(50));
+        final Set<String> ids = new HashSet<String>();
+        Change change;
+        while ((change = poll()) != null) {
+            ids.add(change.id());
+        }
+        assertThat(ids.size(), equalTo(50));
+        assertThat(queue.size(), equalTo(0));
+        assertThat(queue.getReloadedChanges(), equalTo(50l));
+    }
+
+    @Test
+    public void testUnacknowledgedChangesComeBackFromTheLog() throws Exception {
+        queue.shutdown();
+        final File directory = new File(logPath, "test-log");
+        queue = createQueue(10, new SegmentLog(directory, 4096, 0));
+
+        for (int i = 0; i < 50; i++) {
+            queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+        }
+        assertThat(queue.size(), equalTo(50));
+
+        DelayedImpl<Change> delayed;
+        int taken = 0;
+        while ((delayed = poll(500)) != null) {
+            final int id = Integer.parseInt(delayed.thing().id());
+            if (id < 20 || id >= 30) {
+                queue.acknowledge(delayed);
+            }
+            taken++;
+        }
+        assertThat(taken, equalTo(50));
+        queue.shutdown();
+
+        // reading resumes at the first change that was not acknowledged
+        queue = createQueue(10, new SegmentLog(directory, 4096, 0));
+        assertThat(queue.size(), equalTo(30));
+        final Set<String> ids = new HashSet<String>();
+        while ((delayed = poll(500)) != null) {
+            ids.add(delayed.thing().id());
+            queue.acknowledge(delayed);
+        }
+        assertThat(ids.size(), equalTo(30));
+        assertThat(ids.contains("19"), is(false));
+        assertThat(ids.contains("20"), is(true));
+        assertThat(ids.contains("29"), is(true));
+    }
+
+    @Test
+    public void testChangesOverBudgetAreKeptAsDirtyDocuments() throws InterruptedException {
+        queue.shutdown();
+        queue = createQueue(10, null, new OverflowBudget(0, 10, 0, OverflowBudget.Policy.DIRTY, 0));
+
+        for (int version = 1; version <= 5; version++) {
+            for (int i = 0; i < 50; i++) {
+                queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), version)));
+            }
+            Thread.sleep(50);
+        }
+        assertThat(queue.isOverBudget(), is(true));
+        assertThat(queue.getDirtySize(), greaterThan(0));
+
+        // every document comes out at its latest version in the end
+        final Set<String> latest = new HashSet<String>();
+        Change change;
+        while ((change = poll()) != null) {
+            if (change.version() == 5) {
+                latest.add(change.id());
+            }
+        }
+        assertThat(latest.size(), equalTo(50));
+        assertThat(queue.getDirtySize(), equalTo(0));
+        assertThat(queue.isOverBudget(), is(false));
+    }
+
+    @Test
+    public void testProducerWaitsOncePerOverloadWithBlockPolicy() throws InterruptedException {
+        queue.shutdown();
+        queue = createQueue(10, null, new OverflowBudget(0, 10, 0, OverflowBudget.Policy.BLOCK, 200));
+
+        for (int i = 0; i < 100 && !queue.isOverBudget(); i++) {
+            queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+            Thread.sleep(5);
+        }
+        assertThat(queue.isOverBudget(), is(true));
+        assertThat(queue.getBlockedMillis(), equalTo(0l));
+
+        // adding a change never waits, also not a retry
+        queue.add(DelayedImpl.immediate(Change.update("person", "added", 1)));
+        queue.add(new DelayedImpl<Change>(Change.update("person", "retried", 1).retried("alias"), 100));
+        assertThat(queue.getBlockedMillis(), equalTo(0l));
+
+        // the producer waits until the timeout once, later changes are kept as dirty documents right away
+        for (int i = 0; i < 20; i++) {
+            queue.awaitRoom();
+            queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 2)));
+        }
+        assertThat(queue.getBlockedMillis(), greaterThanOrEqualTo(200l));
+        assertThat(queue.getBlockedMillis(), lessThan(400l));
+        assertThat(queue.getDirtySize(), greaterThan(0));
+    }
+
+    @Test
+    public void testChangesOverBudgetAreDroppedWithResyncPolicy() throws InterruptedException {
+        queue.shutdown();
+        queue = createQueue(10, null, new OverflowBudget(0, 10, 0, OverflowBudget.Policy.RESYNC, 0));
+
+        for (int i = 0; i < 100; i++) {
+            queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+            Thread.sleep(1);
+        }
+        assertThat(queue.getDroppedCount(), greaterThan(0l));
+        assertThat(queue.isResyncNeeded(), is(true));
+        assertThat(new File(logPath, "test-resync-needed").exists(), is(true));
+
+        queue.clearResyncNeeded();
+        assertThat(new File(logPath, "test-resync-needed").exists(), is(false));
+    }
+
+    @Test
+    public void testDirtyDocumentsAreBoundedByTheNumberOfDocuments() throws InterruptedException {
+        queue.shutdown();
+        queue = createQueue(10, null, true, OverflowBudget.unlimited());
+
+        for (int version = 1; version <= 100; version++) {
+            for (int i = 0; i < 50; i++) {
+                queue.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), version)));
+            }
+        }
+        // a document can be in the output queue and dirty again
+        assertThat(queue.size(), lessThanOrEqualTo(50 + 10));
+        assertThat(queue.getOverflowSize(), equalTo(0));
+
+        final Set<String> latest = new HashSet<String>();
+        Change change;
+        while ((change = poll()) != null) {
+            if (change.version() == 100) {
+                latest.add(change.id());
+            }
+        }
+        assertThat(latest.size(), equalTo(50));
+        assertThat(queue.getSpilledChanges(), equalTo(0l));
+    }
+
+    private UpdaterQueue createQueue(final int limit) {
+        return createQueue(limit, null);
+    }
+
+    private UpdaterQueue createQueue(final int limit, final SegmentLog log) {
+        return createQueue(limit, log, OverflowBudget.unlimited());
+    }
+
+    private UpdaterQueue createQueue(final int limit, final SegmentLog log, final OverflowBudget budget) {
+        return createQueue(limit, log, false, budget);
+    }
+
+    private UpdaterQueue createQueue(final int limit, final SegmentLog log, final boolean dirtyDocuments, final OverflowBudget budget) {
+        return new UpdaterQueue(logPath.getPath(), "test", limit, log, dirtyDocuments, executor, retryTimer, budget, new WeightedLanes(), new Runnable() {
+            @Override
+            public void run() {
+                available.incrementAndGet();
+                synchronized (available) {
+                    available.notifyAll();
+                }
+            }
+        });
+    }
+
+    private Change poll() throws InterruptedException {
+        final DelayedImpl<Change> delayed = poll(500);
+        return delayed == null ? null : delayed.thing();
+    }
+
+    /**
+     * Waits at most the timeout for a change, woken up when the queue signals that changes are available.
+     */
+    private DelayedImpl<Change> poll(final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            final long signals = available.get();
+            final DelayedImpl<Change> delayed = queue.poll();
+            final long remaining = deadline - System.currentTimeMillis();
+            if (delayed != null || remaining <= 0) {
+                return delayed;
+            }
+            synchronized (available) {
+                if (available.get() == signals) {
+                    available.wait(remaining);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.common.netty.util.HashedWheelTimer;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.aliases.IndexAliasesService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.Builder.EMPTY_SETTINGS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests the Updater against a stub Degraphmalizer running on a local HTTP server.
+ */
+@Test
+public class UpdaterTest {
+    private static final long SLOW_RESPONSE_MILLIS = 1000;
+
+    protected final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    protected final HashedWheelTimer retryTimer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    protected HttpServer server;
+    private File logPath;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    protected final List<String> received = new CopyOnWriteArrayList<String>();
+    protected final List<String> answered = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    protected final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    @BeforeMethod
+    public void startServer() throws IOException {
+        requests.set(0);
+        received.clear();
+        answered.clear();
+        maxConcurrent.set(0);
+
+        logPath = new File("target/updater-test-" + System.nanoTime());
+        assertThat(logPath.mkdirs(), is(true));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new StubDegraphmalizer());
+        server.setExecutor(serverThreads);
+        server.start();
+    }
+
+    /**
+     * Starts another stub Degraphmalizer, that counts the requests it gets.
+     */
+    private HttpServer startServer(final AtomicInteger count) throws IOException {
+        final HttpServer other = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        final StubDegraphmalizer stub = new StubDegraphmalizer();
+        other.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                count.incrementAndGet();
+                stub.handle(exchange);
+            }
+        });
+        other.setExecutor(serverThreads);
+        other.start();
+        return other;
+    }
+
+    @AfterMethod
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @AfterClass
+    public void stopScheduler() {
+        scheduler.shutdown();
+        serverThreads.shutdown();
+        retryTimer.stop();
+    }
+
+    @Test
+    public void testBatchedDelivery() throws Exception {
+        final Updater updater = start(updater("test").batchSize(10));
+        for (int i = 0; i < 25; i++) {
+            updater.add(Change.update("person", "id-" + i, 1));
+        }
+
+        waitFor(25);
+
+        assertThat(received.size(), equalTo(25));
+        assertThat(received.contains("GET /test/person/id-0/1"), is(true));
+        assertThat(requests.get(), lessThanOrEqualTo(5));
+        assertThat(updater.getMetrics().timeToFirstSendMillis(), greaterThanOrEqualTo(0l));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testOnlyFailedItemsAreRetried() throws Exception {
+        final Updater updater = start(updater("test").batchSize(10));
+        updater.add(Change.update("person", "ok", 1));
+        updater.add(Change.delete("person", "fail", 2));
+
+        final File errorLog = new File(logPath, "test-error.log");
+        for (int i = 0; i < 100 && !errorLog.exists(); i++) {
+            Thread.sleep(50);
+        }
+
+        assertThat(errorLog.exists(), is(true));
+        assertThat(count("GET /test/person/ok/1"), equalTo(1));
+        assertThat(count("DELETE /test/person/fail/2"), greaterThan(1));
+        // the first retry does not count as one, see RetryChange
+        assertThat(updater.getMetrics().retryCount(), equalTo(2l));
+        assertThat(updater.getMetrics().errorCount(), equalTo(1l));
+        assertThat(updater.getMetrics().failuresByStatus().get("500"), equalTo(3l));
+        assertThat(updater.getMetrics().sendCount(), equalTo(4l));
+        assertThat(updater.getMetrics().requestLatency().count(), greaterThan(0l));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testFailedChangesAreReplayedFromTheErrorLog() throws Exception {
+        final Updater updater = start(updater("test").batchSize(10));
+        updater.add(Change.delete("person", "fail", 2));
+
+        final File errorLog = new File(logPath, "test-error.log");
+        for (int i = 0; i < 100 && !errorLog.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(count("DELETE /test/person/fail/2"), equalTo(3));
+
+        assertThat(updater.replayErrors(), equalTo(1));
+        assertThat(errorLog.exists(), is(false));
+        // it fails again, and is written to a new error log
+        for (int i = 0; i < 100 && !errorLog.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(count("DELETE /test/person/fail/2"), equalTo(6));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testChangesOfAllShardsArriveAlsoWhenAShardCloses() throws Exception {
+        final Updater updater = start(updater("test").batchSize(10));
+        final Thread[] producers = new Thread[2];
+        for (int i = 0; i < producers.length; i++) {
+            final int shard = i;
+            producers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20; j++) {
+                        updater.add(shard, Action.UPDATE, "person", shard + "-" + j, 1);
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        // the changes of the closed shard are handed off to the queue
+        updater.removeShard(1);
+
+        waitFor(40);
+        assertThat(received.size(), equalTo(40));
+        assertThat(updater.getShardChangeCounts().get("test[0]"), equalTo(20l));
+        assertThat(updater.getShardChangeCounts().containsKey("test[1]"), is(false));
+        assertThat(updater.getShardIngestSizes().get("test[0]"), equalTo(0));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testReceiverFansOutToAliases() throws Exception {
+        final Updater updater = start(updater("test").aliasFanOut(Updater.AliasFanOut.RECEIVER));
+        updater.setAliases(Arrays.asList("a", "b"));
+        updater.add(Change.update("person", "ok", 1));
+        updater.add(Change.delete("person", "fail", 2));
+
+        final File errorLog = new File(logPath, "test-error.log");
+        for (int i = 0; i < 100 && !errorLog.exists(); i++) {
+            Thread.sleep(50);
+        }
+
+        assertThat(count("GET /test/person/ok/1?aliases=a,b"), equalTo(1));
+        // the retries are for the index and all its aliases as well
+        assertThat(count("DELETE /test/person/fail/2?aliases=a,b"), equalTo(3));
+        assertThat(received.size(), equalTo(4));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testRequestsForAliasesAreBatched() throws Exception {
+        final Updater updater = start(updater("test").aliasFanOut(Updater.AliasFanOut.BATCH));
+        updater.setAliases(Arrays.asList("a", "b"));
+        updater.add(Change.update("person", "id-1", 1));
+
+        waitFor(3);
+
+        assertThat(received.contains("GET /test/person/id-1/1"), is(true));
+        assertThat(received.contains("GET /a/person/id-1/1"), is(true));
+        assertThat(received.contains("GET /b/person/id-1/1"), is(true));
+        assertThat(requests.get(), equalTo(1));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testUpdatersShareWorkerPool() throws Exception {
+        final ScheduledExecutorService single = Executors.newScheduledThreadPool(1);
+        try {
+            final Updater first = start(updater("first").scheduler(single));
+            final Updater second = start(updater("second").scheduler(single));
+            for (int i = 0; i < 10; i++) {
+                first.add(Change.update("person", "id-" + i, 1));
+                second.add(Change.update("person", "id-" + i, 1));
+            }
+
+            waitFor(20);
+
+            assertThat(received.contains("GET /first/person/id-9/1"), is(true));
+            assertThat(received.contains("GET /second/person/id-9/1"), is(true));
+            first.shutdown();
+            second.shutdown();
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void testUpdatersShareAPoolOfConnections() throws Exception {
+        final HttpClientPool pool = new HttpClientPool(4, 4, 5000, 5000, 60000, 30000, 2000);
+        try {
+            final Updater first = start(updater("first", createTransport(pool)));
+            final Updater second = start(updater("second", createTransport(pool)));
+            for (int i = 0; i < 20; i++) {
+                first.add(Change.update("person", "id-" + i, 1));
+                second.add(Change.update("person", "id-" + i, 1));
+            }
+
+            waitFor(40);
+
+            assertThat(received.size(), equalTo(40));
+            assertThat(pool.getRequestCount(), equalTo(40l));
+            assertThat(pool.getCreatedConnections(), lessThanOrEqualTo(4l));
+            assertThat(pool.getReuseRate(), greaterThan(0.5));
+            first.shutdown();
+            second.shutdown();
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testChangesAreSpreadOverEndpoints() throws Exception {
+        final AtomicInteger other = new AtomicInteger();
+        final HttpServer second = startServer(other);
+        try {
+            final Endpoints endpoints = new Endpoints(Arrays.asList(target(), new HttpHost("127.0.0.1", second.getAddress().getPort(), "http")), 100, 3, 30000);
+            final Updater updater = start(updater("test").batchSize(10).endpoints(endpoints));
+            for (int i = 0; i < 40; i++) {
+                updater.add(Change.update("person", "id-" + i, 1));
+            }
+
+            waitFor(40);
+
+            assertThat(received.size(), equalTo(40));
+            assertThat(other.get(), greaterThan(0));
+            assertThat(requests.get(), greaterThan(other.get()));
+            updater.shutdown();
+        } finally {
+            second.stop(0);
+        }
+    }
+
+    @Test
+    public void testChangesMoveAwayFromAFailingEndpoint() throws Exception {
+        final HttpServer second = startServer(new AtomicInteger());
+        final int port = second.getAddress().getPort();
+        second.stop(0);
+        final Endpoints endpoints = new Endpoints(Arrays.asList(target(), new HttpHost("127.0.0.1", port, "http")), 100, 3, 30000);
+        final Updater updater = start(updater("test").endpoints(endpoints));
+        for (int i = 0; i < 20; i++) {
+            updater.add(Change.update("person", "id-" + i, 1));
+        }
+
+        waitFor(20);
+
+        // the changes that failed on the unreachable endpoint are retried on the other one
+        assertThat(received.size(), equalTo(20));
+        assertThat(endpoints.getStatus().get("http://127.0.0.1:" + port), containsString("ejected"));
+        assertThat(updater.getMetrics().errorCount(), equalTo(0l));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testOpenCircuitBreakerHoldsChanges() throws Exception {
+        final CircuitBreakerPolicy breakerPolicy = new CircuitBreakerPolicy(0.5, 4, 4, 60000, 0);
+        final Updater updater = start(updater("test").breakerPolicy(breakerPolicy));
+        for (int i = 0; i < 4; i++) {
+            updater.add(Change.delete("person", "fail-" + i, 1));
+        }
+        for (int i = 0; i < 10; i++) {
+            updater.add(Change.update("person", "id-" + i, 1));
+        }
+
+        for (int i = 0; i < 100 && updater.getMetrics().breakerOpenings() == 0; i++) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+
+        // the breaker opened after the first calls, the other changes wait without using up their retries
+        assertThat(updater.getMetrics().breakerOpenings(), equalTo(1l));
+        assertThat(requests.get(), lessThanOrEqualTo(4));
+        assertThat(updater.getMetrics().errorCount(), equalTo(0l));
+        assertThat(updater.getQueueSize(), greaterThanOrEqualTo(10));
+        assertThat(updater.getCircuitBreakers().values().iterator().next(), equalTo("open"));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testVersionsOfADocumentStayInOrder() throws Exception {
+        final Updater updater = start(updater("test", createTransport(4)).concurrency(4));
+        for (int version = 1; version <= 20; version++) {
+            for (int i = 0; i < 5; i++) {
+                updater.add(Change.update("person", "id-" + i, version));
+            }
+            Thread.sleep(5);
+        }
+
+        for (int i = 0; i < 100 && !(received.contains("GET /test/person/id-0/20") && received.contains("GET /test/person/id-4/20")); i++) {
+            Thread.sleep(50);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            long last = 0;
+            for (String line : received) {
+                if (line.startsWith("GET /test/person/id-" + i + "/")) {
+                    final long version = Long.parseLong(line.substring(line.lastIndexOf('/') + 1));
+                    assertThat(version, greaterThan(last));
+                    last = version;
+                }
+            }
+            assertThat(last, equalTo(20l));
+        }
+        updater.shutdown();
+    }
+
+    @Test
+    public void testPartitionWaitingForTheConcurrencyLimitIsWokenUp() throws Exception {
+        // two partitions share a single call in flight, the ids have hashes of a different parity so each partition
+        // gets one change
+        final Updater updater = start(updater("test", createTransport(2)).concurrency(2).concurrencyLimit(new ConcurrencyLimit(1, 0)));
+        updater.add(Change.update("person", "id-a", 1));
+        updater.add(Change.update("person", "id-b", 1));
+
+        waitFor(2);
+        assertThat(received.size(), equalTo(2));
+        updater.shutdown();
+    }
+
+    @Test
+    public void testSentChangesAreAcknowledgedInTheLog() throws Exception {
+        final File directory = new File(logPath, "test-log");
+        final Updater updater = start(updater("test").log(new SegmentLog(directory, 4096, 0)));
+        for (int i = 0; i < 10; i++) {
+            updater.add(Change.update("person", "id-" + i, 1));
+        }
+
+        waitFor(10);
+        for (int i = 0; i < 100 && updater.getQueueSize() > 0; i++) {
+            Thread.sleep(10);
+        }
+        updater.shutdown();
+        // the updater stops, and saves the offset of the log, when its last task is done
+        Thread.sleep(100);
+
+        assertThat(received.size(), equalTo(10));
+        assertThat(new SegmentLog(directory, 4096, 0).unread(), equalTo(0));
+    }
+
+    /**
+     * The transport the updaters under test use, subclasses test other transports.
+     */
+    protected UpdaterTransport createTransport(final int concurrency) {
+        return new SyncUpdaterTransport(concurrency);
+    }
+
+    protected UpdaterTransport createTransport(final HttpClientPool pool) {
+        return new SyncUpdaterTransport(pool);
+    }
+
+    protected HttpHost target() {
+        return new HttpHost("127.0.0.1", server.getAddress().getPort(), "http");
+    }
+
+    /**
+     * @return a builder for an updater under test, sending to the stub Degraphmalizer one change per request unless
+     *         told otherwise
+     */
+    protected Updater.Builder updater(final String index) {
+        return updater(index, createTransport(1));
+    }
+
+    protected Updater.Builder updater(final String index, final UpdaterTransport transport) {
+        return Updater.builder(index)
+                .aliases(new IndexAliasesService(new Index(index), EMPTY_SETTINGS, null))
+                .transport(transport)
+                .endpoints(Endpoints.single(target()))
+                .retryPolicy(new RetryPolicy(10, 10, 0, 1))
+                .logPath(logPath.getPath())
+                .deadLetters(errorLog(index))
+                .queueLimit(1000)
+                .scheduler(scheduler)
+                .retryTimer(retryTimer);
+    }
+
+    protected Updater start(final Updater.Builder builder) {
+        final Updater updater = builder.build();
+        updater.startSending();
+        return updater;
+    }
+
+    private DeadLetterLog errorLog(final String index) {
+        return new DeadLetterLog(new File(logPath, index + "-error.log"), 0, 0, scheduler);
+    }
+
+    protected void waitFor(final int changes) throws InterruptedException {
+        for (int i = 0; i < 100 && received.size() < changes; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    private int count(final String line) {
+        int count = 0;
+        for (String r : received) {
+            if (r.equals(line)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Answers 200 for every change, except for documents with an id containing 'fail'. Documents with an id
+     * containing 'slow' take a while. A single change is echoed in the response.
+     */
+    private class StubDegraphmalizer implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            final int running = concurrent.incrementAndGet();
+            if (running > maxConcurrent.get()) {
+                maxConcurrent.set(running);
+            }
+            try {
+                respond(exchange);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+
+        private void respond(final HttpExchange exchange) throws IOException {
+            final StringBuilder result = new StringBuilder();
+            int status = 200;
+
+            if ("/_batch".equals(exchange.getRequestURI().getPath())) {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    received.add(line);
+                    result.append(line.contains("fail") ? "500" : "200").append('\n');
+                }
+            } else {
+                final String query = exchange.getRequestURI().getRawQuery();
+                final String line = exchange.getRequestMethod() + " " + exchange.getRequestURI().getRawPath() + (query == null ? "" : "?" + query);
+                received.add(line);
+                status = line.contains("fail") ? 500 : 200;
+                result.append(line);
+                if (line.contains("slow")) {
+                    try {
+                        Thread.sleep(SLOW_RESPONSE_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                answered.add(line);
+            }
+
+            final byte[] body = result.toString().getBytes("UTF-8");
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        }
+    }
+}
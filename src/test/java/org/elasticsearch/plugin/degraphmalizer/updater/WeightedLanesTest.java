@@ -0,0 +1,69 @@
+package org.elasticsearch.plugin.degraphmalizer.updater;
+
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@Test
+public class WeightedLanesTest {
+    @Test
+    public void testBusyLanesGetTheirShare() {
+        final WeightedLanes lanes = new WeightedLanes(6, 2, 2);
+        fill(lanes.live, 100);
+        fill(lanes.retry, 100);
+        fill(lanes.backlog, 100);
+
+        final Map<String, Integer> taken = take(lanes, 100);
+        assertThat(taken.get("live"), equalTo(60));
+        assertThat(taken.get("retry"), equalTo(20));
+        assertThat(taken.get("backlog"), equalTo(20));
+    }
+
+    @Test
+    public void testEmptyLaneLeavesItsShareToTheOthers() {
+        final WeightedLanes lanes = new WeightedLanes(6, 2, 2);
+        fill(lanes.retry, 100);
+        fill(lanes.backlog, 100);
+
+        final Map<String, Integer> taken = take(lanes, 100);
+        assertThat(taken.get("retry"), equalTo(50));
+        assertThat(taken.get("backlog"), equalTo(50));
+
+        // the live lane did not save up its share while it was empty
+        fill(lanes.live, 10);
+        final Map<String, Integer> next = take(lanes, 10);
+        assertThat(next.get("live"), equalTo(6));
+    }
+
+    @Test
+    public void testLaneWithoutWeightWaitsForTheOthers() {
+        final WeightedLanes lanes = new WeightedLanes(1, 1, 0);
+        fill(lanes.live, 10);
+        fill(lanes.backlog, 10);
+
+        assertThat(take(lanes, 10).get("backlog"), nullValue());
+        assertThat(take(lanes, 10).get("backlog"), equalTo(10));
+        assertThat(lanes.next(), nullValue());
+    }
+
+    private static void fill(final WeightedLanes.Lane lane, final int count) {
+        for (int i = 0; i < count; i++) {
+            lane.add(DelayedImpl.immediate(Change.update("person", String.valueOf(i), 1)));
+        }
+    }
+
+    private static Map<String, Integer> take(final WeightedLanes lanes, final int count) {
+        final Map<String, Integer> taken = new HashMap<String, Integer>();
+        for (int i = 0; i < count; i++) {
+            final WeightedLanes.Lane lane = lanes.next();
+            assertThat(lane.poll(), notNullValue());
+            final Integer sum = taken.get(lane.name());
+            taken.put(lane.name(), sum == null ? 1 : sum + 1);
+        }
+        return taken;
+    }
+}